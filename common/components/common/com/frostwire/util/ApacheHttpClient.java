@@ -0,0 +1,465 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frostwire.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An HTTP client backed by Apache HttpClient with a connection pool shared
+ * by all the instances, keep-alive connections, per host connection limits
+ * and gzip/deflate content encoding.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+final class ApacheHttpClient implements HttpClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApacheHttpClient.class);
+
+    private static final int DEFAULT_TIMEOUT = 10000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int MAX_TOTAL_CONNECTIONS = 48;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int IDLE_CONNECTION_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 32768;
+    private static final String DEFAULT_USER_AGENT = UserAgentGenerator.getUserAgent();
+
+    private static final DefaultHttpClient CLIENT = newPooledClient();
+
+    private HttpClientListener listener;
+
+    private volatile boolean canceled;
+    private volatile HttpGet request;
+
+    public String get(String url) {
+        return get(url, DEFAULT_TIMEOUT, DEFAULT_USER_AGENT);
+    }
+
+    public String get(String url, int timeout) {
+        return get(url, timeout, DEFAULT_USER_AGENT);
+    }
+
+    public String get(String url, int timeout, String userAgent) {
+        return get(url, timeout, userAgent, null, null);
+    }
+
+    public String get(String url, int timeout, String userAgent, String referrer, String cookie) {
+        String result = null;
+
+        ByteArrayOutputStream baos = null;
+
+        try {
+            baos = new ByteArrayOutputStream(BUFFER_SIZE);
+            get(url, baos, timeout, userAgent, referrer, cookie, -1);
+
+            result = new String(baos.toByteArray(), "UTF-8");
+        } catch (Throwable e) {
+            LOG.error("Error getting string from http body response: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(baos);
+        }
+
+        return result;
+    }
+
+    public byte[] getBytes(String url, int timeout, String userAgent, String referrer) {
+        byte[] result = null;
+
+        ByteArrayOutputStream baos = null;
+
+        try {
+            baos = new ByteArrayOutputStream(BUFFER_SIZE);
+            get(url, baos, timeout, userAgent, referrer, null, -1);
+
+            result = baos.toByteArray();
+        } catch (Throwable e) {
+            LOG.error("Error getting bytes from http body response: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(baos);
+        }
+
+        return result;
+    }
+
+    public void save(String url, File file, boolean resume) throws IOException {
+        save(url, file, resume, DEFAULT_TIMEOUT, DEFAULT_USER_AGENT);
+    }
+
+    public void save(String url, File file, boolean resume, int timeout, String userAgent) throws IOException {
+        FileOutputStream fos = null;
+        long rangeStart = -1;
+
+        try {
+            if (resume && file.exists()) {
+                fos = new FileOutputStream(file, true);
+                rangeStart = file.length();
+            } else {
+                fos = new FileOutputStream(file, false);
+            }
+
+            get(url, fos, timeout, userAgent, null, null, rangeStart);
+        } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    public void saveRange(String url, File file, long rangeStart, long rangeLength, int timeout, String userAgent) throws IOException {
+        RangeFileOutputStream out = null;
+
+        try {
+            out = new RangeFileOutputStream(file, rangeStart);
+
+            get(url, out, timeout, userAgent, null, null, rangeStart, rangeLength);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, long rangeStart) throws IOException {
+        get(url, out, timeout, userAgent, referrer, cookie, rangeStart, -1);
+    }
+
+    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, long rangeStart, long rangeLength) throws IOException {
+        canceled = false;
+
+        HttpGet get = new HttpGet(url);
+
+        HttpParams params = get.getParams();
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        HttpConnectionParams.setConnectionTimeout(params, Math.min(timeout, CONNECT_TIMEOUT));
+
+        get.setHeader("User-Agent", userAgent);
+
+        if (referrer != null) {
+            get.setHeader("Referer", referrer);
+        }
+
+        if (cookie != null) {
+            get.setHeader("Cookie", cookie);
+        }
+
+        if (rangeStart > 0 || rangeLength > -1) {
+            // the end of the range is inclusive
+            get.setHeader("Range", "bytes=" + Math.max(rangeStart, 0) + "-" + (rangeLength > -1 ? String.valueOf(Math.max(rangeStart, 0) + rangeLength - 1) : ""));
+        }
+
+        request = get;
+
+        HttpResponse response = CLIENT.execute(get);
+        HttpEntity entity = response.getEntity();
+
+        int httpResponseCode = response.getStatusLine().getStatusCode();
+
+        if (httpResponseCode != HttpStatus.SC_OK && httpResponseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+            // release the connection back to the pool
+            get.abort();
+            throw new ResponseCodeNotSupportedException(httpResponseCode);
+        }
+
+        onHeaders(getHeaderFields(response));
+
+        if (rangeStart > 0 && response.getFirstHeader("Content-Range") == null && !"bytes".equals(getHeaderValue(response, "Accept-Ranges"))) {
+            get.abort();
+            RangeNotSupportedException rangeNotSupportedException = new RangeNotSupportedException("Server does not support bytes range request");
+            onError(rangeNotSupportedException);
+            throw rangeNotSupportedException;
+        }
+
+        if (rangeLength > -1 && httpResponseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+            // the whole content would be written at the range position
+            get.abort();
+            RangeNotSupportedException rangeNotSupportedException = new RangeNotSupportedException("Server ignored the bytes range request");
+            onError(rangeNotSupportedException);
+            throw rangeNotSupportedException;
+        }
+
+        InputStream in = null;
+
+        try {
+            if (entity != null) {
+                in = entity.getContent();
+
+                byte[] b = new byte[BUFFER_SIZE];
+                int n = 0;
+                while (!canceled && (n = in.read(b, 0, b.length)) != -1) {
+                    if (!canceled) {
+                        out.write(b, 0, n);
+                        onData(b, 0, n);
+                    }
+                }
+            }
+
+            closeQuietly(out);
+
+            if (canceled) {
+                get.abort();
+                onCancel();
+            } else {
+                onComplete();
+            }
+        } catch (Exception e) {
+            get.abort();
+            onError(e);
+        } finally {
+            // fully consumed streams give the connection back to the pool
+            closeQuietly(in);
+            request = null;
+        }
+    }
+
+    private static Map<String, List<String>> getHeaderFields(HttpResponse response) {
+        Map<String, List<String>> fields = new HashMap<String, List<String>>();
+
+        // same as URLConnection, the status line goes with the null key
+        fields.put(null, Collections.singletonList(response.getStatusLine().toString()));
+
+        for (Header header : response.getAllHeaders()) {
+            List<String> values = fields.get(header.getName());
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                fields.put(header.getName(), values);
+            }
+            values.add(header.getValue());
+        }
+
+        return fields;
+    }
+
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private void onHeaders(Map<String, List<String>> headerFields) {
+        if (getListener() != null) {
+            try {
+                getListener().onHeaders(this, headerFields);
+            } catch (Exception e) {
+                LOG.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void onCancel() {
+        if (getListener() != null) {
+            try {
+                getListener().onCancel(this);
+            } catch (Exception e) {
+                LOG.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void onData(byte[] b, int i, int n) {
+        if (getListener() != null) {
+            try {
+                getListener().onData(this, b, 0, n);
+            } catch (Exception e) {
+                LOG.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    protected void onError(Exception e) {
+        if (getListener() != null) {
+            try {
+                getListener().onError(this, e);
+            } catch (Exception e2) {
+                LOG.warn(e2.getMessage(), e2);
+            }
+        }
+    }
+
+    protected void onComplete() {
+        if (getListener() != null) {
+            try {
+                getListener().onComplete(this);
+            } catch (Exception e) {
+                LOG.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ioe) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void setListener(HttpClientListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public HttpClientListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+
+        HttpGet r = request;
+        if (r != null) {
+            r.abort();
+        }
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    private static DefaultHttpClient newPooledClient() {
+        HttpParams params = new BasicHttpParams();
+
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+        ConnManagerParams.setTimeout(params, DEFAULT_TIMEOUT);
+
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, DEFAULT_TIMEOUT);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, BUFFER_SIZE);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setUserAgent(params, DEFAULT_USER_AGENT);
+
+        SSLSocketFactory sslSocketFactory = SSLSocketFactory.getSocketFactory();
+        sslSocketFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", sslSocketFactory, 443));
+
+        final ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, registry);
+
+        DefaultHttpClient client = new DefaultHttpClient(cm, params);
+
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding") && !request.containsHeader("Range")) {
+                    request.addHeader("Accept-Encoding", "gzip, deflate");
+                }
+            }
+        });
+
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity != null && entity.getContentEncoding() != null) {
+                    for (HeaderElement codec : entity.getContentEncoding().getElements()) {
+                        if (codec.getName().equalsIgnoreCase("gzip")) {
+                            response.setEntity(new DecompressingEntity(entity, true));
+                            return;
+                        } else if (codec.getName().equalsIgnoreCase("deflate")) {
+                            response.setEntity(new DecompressingEntity(entity, false));
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+
+        Timer idleConnectionsTimer = new Timer("ApacheHttpClient-IdleConnections", true);
+        idleConnectionsTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                cm.closeExpiredConnections();
+                cm.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, IDLE_CONNECTION_TIMEOUT, IDLE_CONNECTION_TIMEOUT);
+
+        return client;
+    }
+
+    private static final class DecompressingEntity extends HttpEntityWrapper {
+
+        private final boolean gzip;
+
+        public DecompressingEntity(HttpEntity entity, boolean gzip) {
+            super(entity);
+            this.gzip = gzip;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = wrappedEntity.getContent();
+            return gzip ? new GZIPInputStream(in) : new InflaterInputStream(in);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        // getContentLength is the length on the wire, the connection reuse
+        // strategy needs it to keep the connection alive
+    }
+}
@@ -48,10 +48,11 @@ final class FWHttpClient implements HttpClient {
     private static final Logger LOG = LoggerFactory.getLogger(FWHttpClient.class);
 
     private static final int DEFAULT_TIMEOUT = 10000;
+    private static final int BUFFER_SIZE = 32768;
     private static final String DEFAULT_USER_AGENT = UserAgentGenerator.getUserAgent();
     private HttpClientListener listener;
 
-    private boolean canceled;
+    private volatile boolean canceled;
 
     public String get(String url) {
         return get(url, DEFAULT_TIMEOUT, DEFAULT_USER_AGENT);
@@ -113,12 +114,12 @@ final class FWHttpClient implements HttpClient {
 
     public void save(String url, File file, boolean resume, int timeout, String userAgent, String referrer) throws IOException {
         FileOutputStream fos = null;
-        int rangeStart = 0;
+        long rangeStart = 0;
 
         try {
             if (resume && file.exists()) {
                 fos = new FileOutputStream(file, true);
-                rangeStart = (int) file.length();
+                rangeStart = file.length();
             } else {
                 fos = new FileOutputStream(file, false);
                 rangeStart = -1;
@@ -130,20 +131,34 @@ final class FWHttpClient implements HttpClient {
         }
     }
 
-    private String buildRange(int rangeStart, int rangeLength) {
+    public void saveRange(String url, File file, long rangeStart, long rangeLength, int timeout, String userAgent) throws IOException {
+        RangeFileOutputStream out = null;
+
+        try {
+            out = new RangeFileOutputStream(file, rangeStart);
+
+            get(url, out, timeout, userAgent, null, null, rangeStart, rangeLength);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private String buildRange(long rangeStart, long rangeLength) {
         String prefix = "bytes=" + rangeStart + "-";
-        return prefix + ((rangeLength > -1) ? (rangeStart + rangeLength) : "");
+        // the end of the range is inclusive
+        return prefix + ((rangeLength > -1) ? (rangeStart + rangeLength - 1) : "");
     }
 
-    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, int rangeStart) throws IOException {
+    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, long rangeStart) throws IOException {
         get(url, out, timeout, userAgent, referrer, cookie, rangeStart, -1);
     }
 
-    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, int rangeStart, int rangeLength) throws IOException {
+    private void get(String url, OutputStream out, int timeout, String userAgent, String referrer, String cookie, long rangeStart, long rangeLength) throws IOException {
         canceled = false;
         URL u = new URL(url);
         URLConnection conn = u.openConnection();
 
+        conn.setConnectTimeout(timeout);
         conn.setReadTimeout(timeout);
         conn.setRequestProperty("User-Agent", userAgent);
 
@@ -163,8 +178,8 @@ final class FWHttpClient implements HttpClient {
             setHostnameVerifier((HttpsURLConnection) conn);
         }
 
-        if (rangeStart > 0) {
-            conn.setRequestProperty("Range", buildRange(rangeStart, rangeLength));
+        if (rangeStart > 0 || rangeLength > -1) {
+            conn.setRequestProperty("Range", buildRange(Math.max(rangeStart, 0), rangeLength));
         }
 
         InputStream in = conn.getInputStream();
@@ -178,8 +193,17 @@ final class FWHttpClient implements HttpClient {
         onHeaders(conn.getHeaderFields());
         checkRangeSupport(rangeStart, conn);
 
+        if (rangeLength > -1 && httpResponseCode != HttpURLConnection.HTTP_PARTIAL) {
+            // the whole content would be written at the range position
+            closeQuietly(in);
+            closeQuietly(conn);
+            RangeNotSupportedException rangeNotSupportedException = new RangeNotSupportedException("Server ignored the bytes range request");
+            onError(rangeNotSupportedException);
+            throw rangeNotSupportedException;
+        }
+
         try {
-            byte[] b = new byte[4096];
+            byte[] b = new byte[BUFFER_SIZE];
             int n = 0;
             while (!canceled && (n = in.read(b, 0, b.length)) != -1) {
                 if (!canceled) {
@@ -222,7 +246,7 @@ final class FWHttpClient implements HttpClient {
         }
     }
 
-    private void checkRangeSupport(int rangeStart, URLConnection conn) throws HttpRangeOutOfBoundsException, RangeNotSupportedException {
+    private void checkRangeSupport(long rangeStart, URLConnection conn) throws HttpRangeOutOfBoundsException, RangeNotSupportedException {
 
         boolean hasContentRange = conn.getHeaderField("Content-Range") != null;
         boolean hasAcceptRanges = conn.getHeaderField("Accept-Ranges") != null && conn.getHeaderField("Accept-Ranges").equals("bytes");
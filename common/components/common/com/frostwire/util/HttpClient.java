@@ -48,6 +48,15 @@ public interface HttpClient {
 
     public void save(String url, File file, boolean resume, int timeout, String userAgent) throws IOException;
 
+    /**
+     * Downloads the byte range [rangeStart, rangeStart + rangeLength) of the resource, writing it
+     * at the same position of the file. The file is not truncated, this allows several ranges to be
+     * downloaded concurrently into the same (preallocated) file.
+     * 
+     * @throws RangeNotSupportedException if the server doesn't answer with the partial content
+     */
+    public void saveRange(String url, File file, long rangeStart, long rangeLength, int timeout, String userAgent) throws IOException;
+
     public void cancel();
 
     public boolean isCanceled();
@@ -86,7 +95,7 @@ public interface HttpClient {
 
         private static final long serialVersionUID = -335661829606230147L;
 
-        public HttpRangeOutOfBoundsException(int rangeStart, long expectedFileSize) {
+        public HttpRangeOutOfBoundsException(long rangeStart, long expectedFileSize) {
             super("HttpRange Out of Bounds error: start=" + rangeStart + " expected file size=" + expectedFileSize);
         }
 
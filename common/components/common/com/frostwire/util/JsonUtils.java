@@ -50,6 +50,17 @@ public final class JsonUtils {
         return gson.toJson(obj);
     }
 
+    /**
+     * This method serializes the specified object into its equivalent Json
+     * representation, writing it to the given writer.
+     * 
+     * @param obj the object for which Json representation is to be created
+     * @param writer the writer to which the Json representation is written
+     */
+    public static void toJson(Object obj, Appendable writer) {
+        gson.toJson(obj, writer);
+    }
+
     /**
      * This method deserializes the specified Json into an object of the specified class.
      * 
@@ -18,6 +18,8 @@
 package com.frostwire.search;
 
 /**
+ * Cache of crawled data, implementations must be thread safe since it's
+ * accessed concurrently by the search performers without any external lock.
  * 
  * @author gubatron
  * @author aldenml
@@ -19,10 +19,19 @@
 package com.frostwire.search;
 
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.frostwire.search.torrent.TorrentSearchResult;
+
 /**
  * @author gubatron
  * @author aldenml
@@ -39,6 +48,9 @@ public abstract class CrawlPagedWebSearchPerformer<T extends CrawlableSearchResu
     private static CrawlCache cache = null;
     private static MagnetDownloader magnetDownloader = null;
 
+    // downloads in progress by crawl key, concurrent crawls of the same data share the download
+    private static final ConcurrentMap<String, CrawlFetch> fetches = new ConcurrentHashMap<String, CrawlFetch>();
+
     private int numCrawls;
 
     public CrawlPagedWebSearchPerformer(long token, String keywords, int timeout, int pages, int numCrawls) {
@@ -75,25 +87,8 @@ public abstract class CrawlPagedWebSearchPerformer<T extends CrawlableSearchResu
                 if (url != null) {
                     byte[] data = cacheGet(url);
 
-                    if (data == null) { // not a big deal about synchronization here
-                        LOG.debug("Downloading data for: " + url);
-
-                        if (url.startsWith("magnet")) {
-                            data = fetchMagnet(url);
-                        } else {
-                            data = fetchBytes(url, sr.getDetailsUrl(), DEFAULT_CRAWL_TIMEOUT);
-                        }
-
-                        //we put this here optimistically hoping this is actually
-                        //valid data. if no data can be crawled from this we remove it
-                        //from the cache. we do this because this same data may come
-                        //from another search engine and this way we avoid the
-                        //expense of performing another download.
-                        if (data != null) {
-                            cachePut(url, data);
-                        } else {
-                            LOG.warn("Failed to download data: " + url);
-                        }
+                    if (data == null) {
+                        data = fetchCrawlData(obj, url);
                     }
 
                     try {
@@ -134,11 +129,103 @@ public abstract class CrawlPagedWebSearchPerformer<T extends CrawlableSearchResu
         }
     }
 
+    /**
+     * Downloads the data to crawl, if the same data (by url or torrent info hash) is
+     * already being downloaded by another performer, waits for that download instead.
+     */
+    private byte[] fetchCrawlData(T sr, final String url) {
+        final String referrer = sr.getDetailsUrl();
+
+        CrawlFetch fetch = new CrawlFetch(url, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return download(url, referrer);
+            }
+        });
+
+        String key = crawlKey(sr, url);
+
+        CrawlFetch current = fetches.putIfAbsent(key, fetch);
+
+        if (current == null) {
+            current = fetch;
+            try {
+                fetch.run();
+            } finally {
+                fetches.remove(key, fetch);
+            }
+        } else {
+            LOG.debug("Waiting for download in progress of: " + key);
+        }
+
+        byte[] data = null;
+
+        try {
+            data = current.get(DEFAULT_CRAWL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (data != null && current != fetch && !url.equals(current.url)) {
+                // same data from another url, save it for the next time
+                cachePut(url, data);
+            }
+        } catch (TimeoutException e) {
+            LOG.warn("Timeout waiting for download in progress of: " + key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            LOG.warn("Error downloading data: " + url + ", e=" + e.getMessage());
+        }
+
+        return data;
+    }
+
+    private byte[] download(String url, String referrer) {
+        LOG.debug("Downloading data for: " + url);
+
+        byte[] data;
+
+        if (url.startsWith("magnet")) {
+            data = fetchMagnet(url);
+        } else {
+            data = fetchBytes(url, referrer, DEFAULT_CRAWL_TIMEOUT);
+        }
+
+        //we put this here optimistically hoping this is actually
+        //valid data. if no data can be crawled from this we remove it
+        //from the cache. we do this because this same data may come
+        //from another search engine and this way we avoid the
+        //expense of performing another download.
+        if (data != null) {
+            cachePut(url, data);
+        } else {
+            LOG.warn("Failed to download data: " + url);
+        }
+
+        return data;
+    }
+
+    private static String crawlKey(CrawlableSearchResult sr, String url) {
+        if (sr instanceof TorrentSearchResult) {
+            String hash = ((TorrentSearchResult) sr).getHash();
+            if (hash != null && hash.length() > 0) {
+                return "btih:" + hash.toLowerCase(Locale.US);
+            }
+        }
+
+        if (url.startsWith("magnet")) {
+            int start = url.indexOf("urn:btih:");
+            if (start >= 0) {
+                start += 9;
+                int end = url.indexOf('&', start);
+                return "btih:" + (end < 0 ? url.substring(start) : url.substring(start, end)).toLowerCase(Locale.US);
+            }
+        }
+
+        return url;
+    }
+
     private byte[] cacheGet(String key) {
         if (cache != null) {
-            synchronized (cache) {
-                return cache.get(key);
-            }
+            return cache.get(key);
         } else {
             return null;
         }
@@ -146,17 +233,13 @@ public abstract class CrawlPagedWebSearchPerformer<T extends CrawlableSearchResu
 
     private void cachePut(String key, byte[] data) {
         if (cache != null) {
-            synchronized (cache) {
-                cache.put(key, data);
-            }
+            cache.put(key, data);
         }
     }
 
     private void cacheRemove(String key) {
         if (cache != null) {
-            synchronized (cache) {
-                cache.remove(key);
-            }
+            cache.remove(key);
         }
     }
 
@@ -173,18 +256,24 @@ public abstract class CrawlPagedWebSearchPerformer<T extends CrawlableSearchResu
 
     public static void clearCache() {
         if (cache != null) {
-            synchronized (cache) {
-                cache.clear();
-            }
+            cache.clear();
+        }
+    }
+
+    private static final class CrawlFetch extends FutureTask<byte[]> {
+
+        private final String url;
+
+        public CrawlFetch(String url, Callable<byte[]> callable) {
+            super(callable);
+            this.url = url;
         }
     }
 
     public static long getCacheSize() {
         long result = 0;
         if (cache != null) {
-            synchronized (cache) {
-                result = cache.size();
-            }
+            result = cache.size();
         }
         return result;
     }
@@ -18,13 +18,16 @@
 package com.frostwire.search;
 
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,13 +45,13 @@ public class SearchManagerImpl implements SearchManager {
     private static final int DEFAULT_NTHREADS = 4;
 
     private final ExecutorService executor;
-    private final List<SearchTask> tasks;
+    private final ConcurrentMap<Long, TokenTasks> tasks;
 
     private SearchManagerListener listener;
 
     public SearchManagerImpl(int nThreads) {
         this.executor = newFixedThreadPool(nThreads);
-        this.tasks = Collections.synchronizedList(new LinkedList<SearchTask>());
+        this.tasks = new ConcurrentHashMap<Long, TokenTasks>();
     }
 
     public SearchManagerImpl() {
@@ -69,10 +72,7 @@ public class SearchManagerImpl implements SearchManager {
 
             performer.registerListener(new PerformerResultListener(this));
 
-            SearchTask task = new PerformTask(this, performer, getOrder(performer.getToken()));
-
-            tasks.add(task);
-            executor.execute(task);
+            schedule(new PerformTask(this, performer));
         } else {
             LOG.warn("Search performer is null, review your logic");
         }
@@ -132,13 +132,14 @@ public class SearchManagerImpl implements SearchManager {
     }
 
     private void stopTasks(long token) {
-        synchronized (tasks) {
-            Iterator<SearchTask> it = tasks.iterator();
-            while (it.hasNext()) {
-                SearchTask task = it.next();
-                if (token == -1L || task.getToken() == token) {
-                    task.stop();
-                }
+        if (token == -1L) {
+            for (TokenTasks entry : tasks.values()) {
+                entry.stop();
+            }
+        } else {
+            TokenTasks entry = tasks.get(token);
+            if (entry != null) {
+                entry.stop();
             }
         }
     }
@@ -146,9 +147,7 @@ public class SearchManagerImpl implements SearchManager {
     private void crawl(SearchPerformer performer, CrawlableSearchResult sr) {
         if (performer != null && !performer.isStopped()) {
             try {
-                SearchTask task = new CrawlTask(this, performer, sr, getOrder(performer.getToken()));
-                tasks.add(task);
-                executor.execute(task);
+                schedule(new CrawlTask(this, performer, sr));
             } catch (Throwable e) {
                 LOG.warn("Error scheduling crawling of search result: " + sr);
             }
@@ -157,40 +156,53 @@ public class SearchManagerImpl implements SearchManager {
         }
     }
 
-    private void checkIfFinished(SearchPerformer performer) {
-        SearchTask pendingTask = null;
-
-        synchronized (tasks) {
-            Iterator<SearchTask> it = tasks.iterator();
-            while (it.hasNext() && pendingTask == null) {
-                SearchTask task = it.next();
-                if (task.getToken() == performer.getToken() && !task.isStopped()) {
-                    pendingTask = task;
+    /**
+     * Registers the task as pending for its token and queues it for execution,
+     * the order in the queue is the number of tasks already pending for the token.
+     */
+    private void schedule(SearchTask task) {
+        Long token = task.getToken();
+
+        while (task.entry == null) {
+            TokenTasks entry = tasks.get(token);
+
+            if (entry == null) {
+                TokenTasks newEntry = new TokenTasks();
+                entry = tasks.putIfAbsent(token, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
                 }
+            }
 
-                if (task.isStopped()) {
-                    it.remove();
-                }
+            int order = entry.acquire();
+
+            if (order >= 0) {
+                task.entry = entry;
+                task.order = order;
+            } else {
+                // the entry was retired by a finishing task, clean it and try again
+                tasks.remove(token, entry);
             }
         }
 
-        if (pendingTask == null) {
-            onFinished(performer.getToken());
+        task.entry.performers.add(task.performer);
+
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            // the task will never run, give back the pending slot
+            release(task);
+            throw e;
         }
     }
 
-    private int getOrder(long token) {
-        int order = 0;
-        synchronized (tasks) {
-            Iterator<SearchTask> it = tasks.iterator();
-            while (it.hasNext()) {
-                SearchTask task = it.next();
-                if (task.getToken() == token) {
-                    order = order + 1;
-                }
-            }
+    private void release(SearchTask task) {
+        TokenTasks entry = task.entry;
+
+        if (entry.release()) {
+            tasks.remove(task.getToken(), entry);
+            onFinished(task.getToken());
         }
-        return order;
     }
 
     private static ExecutorService newFixedThreadPool(int nThreads) {
@@ -229,16 +241,63 @@ public class SearchManagerImpl implements SearchManager {
         }
     }
 
+    /**
+     * Bookkeeping of all the work in flight for a single search token.
+     * 
+     * The pending counter goes to -1 once the last task is done, this retires
+     * the entry so that late registrations create a fresh one.
+     */
+    private static final class TokenTasks {
+
+        private final Set<SearchPerformer> performers;
+        private final AtomicInteger pending;
+
+        public TokenTasks() {
+            this.performers = Collections.newSetFromMap(new ConcurrentHashMap<SearchPerformer, Boolean>());
+            this.pending = new AtomicInteger(0);
+        }
+
+        /**
+         * Returns the number of tasks pending before this one, or -1 if the entry is retired.
+         */
+        public int acquire() {
+            while (true) {
+                int n = pending.get();
+                if (n < 0) {
+                    return -1;
+                }
+                if (pending.compareAndSet(n, n + 1)) {
+                    return n;
+                }
+            }
+        }
+
+        /**
+         * Returns true if this was the last pending task and the entry is now retired.
+         */
+        public boolean release() {
+            return pending.decrementAndGet() == 0 && pending.compareAndSet(0, -1);
+        }
+
+        public void stop() {
+            for (SearchPerformer performer : performers) {
+                performer.stop();
+            }
+        }
+    }
+
     private static abstract class SearchTask implements Runnable, Comparable<SearchTask> {
 
         protected final SearchManagerImpl manager;
         protected final SearchPerformer performer;
-        private final int order;
 
-        public SearchTask(SearchManagerImpl manager, SearchPerformer performer, int order) {
+        // assigned once at schedule time, before the task is queued
+        private TokenTasks entry;
+        private int order;
+
+        public SearchTask(SearchManagerImpl manager, SearchPerformer performer) {
             this.manager = manager;
             this.performer = performer;
-            this.order = order;
         }
 
         public long getToken() {
@@ -261,8 +320,8 @@ public class SearchManagerImpl implements SearchManager {
 
     private static final class PerformTask extends SearchTask {
 
-        public PerformTask(SearchManagerImpl manager, SearchPerformer performer, int order) {
-            super(manager, performer, order);
+        public PerformTask(SearchManagerImpl manager, SearchPerformer performer) {
+            super(manager, performer);
         }
 
         @Override
@@ -274,9 +333,7 @@ public class SearchManagerImpl implements SearchManager {
             } catch (Throwable e) {
                 LOG.warn("Error performing search: " + performer + ", e=" + e.getMessage());
             } finally {
-                if (manager.tasks.remove(this)) {
-                    manager.checkIfFinished(performer);
-                }
+                manager.release(this);
             }
         }
     }
@@ -285,8 +342,8 @@ public class SearchManagerImpl implements SearchManager {
 
         private final CrawlableSearchResult sr;
 
-        public CrawlTask(SearchManagerImpl manager, SearchPerformer performer, CrawlableSearchResult sr, int order) {
-            super(manager, performer, order);
+        public CrawlTask(SearchManagerImpl manager, SearchPerformer performer, CrawlableSearchResult sr) {
+            super(manager, performer);
             this.sr = sr;
         }
 
@@ -299,9 +356,7 @@ public class SearchManagerImpl implements SearchManager {
             } catch (Throwable e) {
                 LOG.warn("Error performing crawling of: " + sr + ", e=" + e.getMessage());
             } finally {
-                if (manager.tasks.remove(this)) {
-                    manager.checkIfFinished(performer);
-                }
+                manager.release(this);
             }
         }
     }
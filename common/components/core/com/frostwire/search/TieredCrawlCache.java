@@ -0,0 +1,304 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.frostwire.search;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Crawl cache with a byte bounded in-memory tier in front of a slower cache,
+ * usually the database one.
+ * <p>
+ * The memory tier is split in segments with their own lock and LRU order, so
+ * concurrent crawls don't contend on a single monitor. Writes to the backing
+ * cache are done in order by a single background thread (write-behind).
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public class TieredCrawlCache implements CrawlCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredCrawlCache.class);
+
+    private static final int NUM_SEGMENTS = 16;
+
+    // pending writes before the crawl threads start writing by themselves
+    private static final int MAX_PENDING_WRITES = 1024;
+
+    private final CrawlCache backend;
+    private final Segment[] segments;
+    private final ExecutorService writer;
+    private final ConcurrentMap<String, Stats> stats;
+
+    public TieredCrawlCache(CrawlCache backend, long maxMemorySize) {
+        this.backend = backend;
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxMemorySize / NUM_SEGMENTS);
+        }
+        this.writer = newWriterExecutor();
+        this.stats = new ConcurrentHashMap<String, Stats>();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Stats s = stats(key);
+
+        byte[] data = segment(key).get(key);
+
+        if (data != null) {
+            s.memoryHits.incrementAndGet();
+            return data;
+        }
+
+        data = backend.get(key);
+
+        if (data != null) {
+            s.backendHits.incrementAndGet();
+            segment(key).put(key, data);
+        } else {
+            s.misses.incrementAndGet();
+        }
+
+        return data;
+    }
+
+    @Override
+    public void put(final String key, final byte[] data) {
+        segment(key).put(key, data);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                backend.put(key, data);
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String key) {
+        segment(key).remove(key);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                backend.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Clears both tiers, waiting for the pending writes to be done first.
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+
+        Future<?> f = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                backend.clear();
+            }
+        });
+
+        try {
+            f.get();
+        } catch (Throwable e) {
+            LOG.warn("Error clearing the backend crawl cache: " + e.getMessage());
+        }
+
+        stats.clear();
+    }
+
+    /**
+     * Returns the size of the backend cache, entries still in the write
+     * queue are not counted.
+     */
+    @Override
+    public long size() {
+        return backend.size();
+    }
+
+    /**
+     * Returns the total size in bytes of the data in the memory tier.
+     */
+    public long memorySize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the hit/miss counters by engine, the engine is
+     * the host of the crawled url or "magnet" for magnet links.
+     *
+     * Every value is an array of memory hits, backend hits and misses.
+     */
+    public Map<String, long[]> getStats() {
+        Map<String, long[]> snapshot = new HashMap<String, long[]>();
+        for (Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            snapshot.put(e.getKey(), new long[] { s.memoryHits.get(), s.backendHits.get(), s.misses.get() });
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stops the background writer, waiting for the pending writes to be done.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        writer.shutdown();
+        try {
+            return writer.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private Stats stats(String key) {
+        String engine = engine(key);
+        Stats s = stats.get(engine);
+        if (s == null) {
+            Stats newStats = new Stats();
+            s = stats.putIfAbsent(engine, newStats);
+            if (s == null) {
+                s = newStats;
+            }
+        }
+        return s;
+    }
+
+    private static String engine(String key) {
+        if (key.startsWith("magnet")) {
+            return "magnet";
+        }
+
+        int start = key.indexOf("://");
+        if (start < 0) {
+            return "unknown";
+        }
+        start += 3;
+
+        int end = key.indexOf('/', start);
+        if (end < 0) {
+            end = key.length();
+        }
+
+        return key.substring(start, end);
+    }
+
+    private static ExecutorService newWriterExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TieredCrawlCache-Writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // if the backend can't keep up, the crawl threads do the writing
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    private static final class Segment {
+
+        private final long maxSize;
+        private final LinkedHashMap<String, byte[]> map;
+
+        private long size;
+
+        public Segment(long maxSize) {
+            this.maxSize = maxSize;
+            this.map = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        }
+
+        public synchronized byte[] get(String key) {
+            return map.get(key);
+        }
+
+        public synchronized void put(String key, byte[] data) {
+            if (data.length > maxSize) {
+                remove(key);
+                return;
+            }
+
+            byte[] old = map.put(key, data);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += data.length;
+
+            Iterator<byte[]> it = map.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+
+        public synchronized void remove(String key) {
+            byte[] old = map.remove(key);
+            if (old != null) {
+                size -= old.length;
+            }
+        }
+
+        public synchronized void clear() {
+            map.clear();
+            size = 0;
+        }
+
+        public synchronized long size() {
+            return size;
+        }
+    }
+
+    private static final class Stats {
+
+        private final AtomicLong memoryHits = new AtomicLong();
+        private final AtomicLong backendHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+    }
+}
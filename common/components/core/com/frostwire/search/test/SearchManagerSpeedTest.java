@@ -0,0 +1,214 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.search.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.frostwire.licences.License;
+import com.frostwire.search.CrawlableSearchResult;
+import com.frostwire.search.SearchListener;
+import com.frostwire.search.SearchManagerImpl;
+import com.frostwire.search.SearchManagerListener;
+import com.frostwire.search.SearchPerformer;
+import com.frostwire.search.SearchResult;
+
+/**
+ * Measures the scheduling overhead of the search manager, with performers
+ * that only return crawlable results and crawls that do nothing.
+ * <p>
+ * Usage: SearchManagerSpeedTest [tokens] [performers_per_token] [crawls_per_performer]
+ * <p>
+ * Every token has to be finished exactly once and every crawl has to run,
+ * it's reported otherwise.
+ * 
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public class SearchManagerSpeedTest {
+
+    private static final int RUNS = 3;
+
+    // results are returned to the manager in chunks of this size
+    private static final int RESULTS_CHUNK = 100;
+
+    public static void main(String[] args) throws Exception {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int performers = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int crawls = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        for (int run = 0; run < RUNS; run++) {
+            run(tokens, performers, crawls);
+        }
+    }
+
+    private static void run(int tokens, int performers, int crawls) throws Exception {
+        final CountDownLatch finished = new CountDownLatch(tokens);
+        final ConcurrentMap<Long, AtomicInteger> finishedCount = new ConcurrentHashMap<Long, AtomicInteger>();
+        final AtomicInteger crawled = new AtomicInteger();
+
+        SearchManagerImpl manager = new SearchManagerImpl();
+        manager.registerListener(new SearchManagerListener() {
+            @Override
+            public void onResults(SearchPerformer performer, List<? extends SearchResult> results) {
+            }
+
+            @Override
+            public void onFinished(long token) {
+                AtomicInteger n = finishedCount.putIfAbsent(token, new AtomicInteger(1));
+                if (n == null) {
+                    finished.countDown();
+                } else {
+                    n.incrementAndGet();
+                }
+            }
+        });
+
+        long time = System.currentTimeMillis();
+
+        for (int t = 0; t < tokens; t++) {
+            for (int p = 0; p < performers; p++) {
+                manager.perform(new CrawlingPerformer(t, crawls, crawled));
+            }
+        }
+
+        boolean done = finished.await(5, TimeUnit.MINUTES);
+        time = System.currentTimeMillis() - time;
+
+        manager.shutdown(10, TimeUnit.SECONDS);
+
+        int tasks = tokens * performers * (crawls + 1);
+        int expectedCrawls = tokens * performers * crawls;
+        System.out.println(tokens + " tokens x " + performers + " performers x " + crawls + " crawls = " + time + " ms @ " + (tasks * 1000L / Math.max(time, 1)) + " tasks/s, " + crawled.get() + " crawled" + (crawled.get() == expectedCrawls ? "" : " (expected " + expectedCrawls + ")") + (done ? "" : " (timed out)")
+                + checkFinished(tokens, finishedCount));
+    }
+
+    private static String checkFinished(int tokens, ConcurrentMap<Long, AtomicInteger> finishedCount) {
+        StringBuilder sb = new StringBuilder();
+
+        for (long t = 0; t < tokens; t++) {
+            AtomicInteger n = finishedCount.get(t);
+            if (n == null || n.get() != 1) {
+                sb.append(" (token " + t + " finished " + (n != null ? n.get() : 0) + " times)");
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static final class CrawlingPerformer implements SearchPerformer {
+
+        private final long token;
+        private final int crawls;
+        private final AtomicInteger crawled;
+
+        private SearchListener listener;
+        private volatile boolean stopped;
+
+        public CrawlingPerformer(long token, int crawls, AtomicInteger crawled) {
+            this.token = token;
+            this.crawls = crawls;
+            this.crawled = crawled;
+        }
+
+        @Override
+        public long getToken() {
+            return token;
+        }
+
+        @Override
+        public void registerListener(SearchListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void perform() {
+            List<SearchResult> results = new ArrayList<SearchResult>(RESULTS_CHUNK);
+
+            for (int i = 0; i < crawls && !stopped; i++) {
+                results.add(new IncompleteResult(i));
+
+                if (results.size() == RESULTS_CHUNK || i == crawls - 1) {
+                    listener.onResults(this, results);
+                    results = new ArrayList<SearchResult>(RESULTS_CHUNK);
+                }
+            }
+        }
+
+        @Override
+        public void crawl(CrawlableSearchResult sr) {
+            crawled.incrementAndGet();
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
+
+    private static final class IncompleteResult implements CrawlableSearchResult {
+
+        private final int n;
+
+        public IncompleteResult(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "result " + n;
+        }
+
+        @Override
+        public String getDetailsUrl() {
+            return "http://localhost/" + n;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return -1;
+        }
+
+        @Override
+        public String getSource() {
+            return "test";
+        }
+
+        @Override
+        public License getLicense() {
+            return null;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return false;
+        }
+    }
+}
@@ -58,6 +58,8 @@ final class TOTorrentCreateImpl extends TOTorrentImpl implements TOTorrentFileHa
 
     private boolean cancelled;
 
+    private int io_mode = TOTorrentCreator.IO_MODE_STREAM;
+
     protected TOTorrentCreateImpl(Map<String, File> _linkage_map, File _torrent_base, URI _announce_url, boolean _add_other_hashes, long _piece_length) throws TOTorrentException {
         super(_torrent_base.getName(), _announce_url, _torrent_base.isFile());
 
@@ -79,6 +81,10 @@ final class TOTorrentCreateImpl extends TOTorrentImpl implements TOTorrentFileHa
         piece_length = getComputedPieceSize(total_size, _piece_min_size, _piece_max_size, _piece_num_lower, _piece_num_upper);
     }
 
+    protected void setIOMode(int _io_mode) {
+        io_mode = _io_mode;
+    }
+
     protected void create() throws TOTorrentException {
         constructFixed(torrent_base, piece_length);
 
@@ -150,7 +156,7 @@ final class TOTorrentCreateImpl extends TOTorrentImpl implements TOTorrentFileHa
 
         boolean add_other_per_file_hashes = add_other_hashes && !getSimpleTorrent();
 
-        file_hasher = new TOTorrentFileHasher(add_other_hashes, add_other_per_file_hashes, (int) _piece_length, progress_listeners.size() == 0 ? null : this);
+        file_hasher = new TOTorrentFileHasher(add_other_hashes, add_other_per_file_hashes, (int) _piece_length, io_mode, progress_listeners.size() == 0 ? null : this);
 
         try {
             if (cancelled) {
@@ -29,7 +29,21 @@ package com.frostwire.torrent;
 
 public interface TOTorrentCreator {
 
+    /** files are read through plain streams into heap buffers (default) */
+    public static final int IO_MODE_STREAM = 0;
+
+    /** files are memory mapped and the pieces hashed from the mapping */
+    public static final int IO_MODE_MMAP = 1;
+
+    /** files are read through the file channel into direct buffers */
+    public static final int IO_MODE_DIRECT = 2;
+
     public TOTorrent create() throws TOTorrentException;
 
+    /**
+     * Sets how the files are read when hashing the pieces, one of the IO_MODE_ constants.
+     */
+    public void setIOMode(int io_mode);
+
     public long getTorrentDataSizeFromFileOrDir();
 }
@@ -44,6 +44,8 @@ final class TOTorrentCreatorImpl implements TOTorrentCreator {
     private final long piece_num_upper;
     private final TOTorrentProgressListener listener;
 
+    private int io_mode = IO_MODE_STREAM;
+
     public TOTorrentCreatorImpl(File _torrent_base) {
         this(_torrent_base, null, false, 0);
     }
@@ -80,13 +82,25 @@ final class TOTorrentCreatorImpl implements TOTorrentCreator {
             torrent = new TOTorrentCreateImpl(linkage_map, base_to_use, announce_url, add_other_hashes, piece_min_size, piece_max_size, piece_num_lower, piece_num_upper);
         }
 
-        torrent.addListener(listener);
+        if (listener != null) {
+            torrent.addListener(listener);
+        }
+
+        torrent.setIOMode(io_mode);
 
         torrent.create();
 
         return torrent;
     }
 
+    public void setIOMode(int io_mode) {
+        if (io_mode != IO_MODE_STREAM && io_mode != IO_MODE_MMAP && io_mode != IO_MODE_DIRECT) {
+            throw new IllegalArgumentException("Invalid I/O mode: " + io_mode);
+        }
+
+        this.io_mode = io_mode;
+    }
+
     public long getTorrentDataSizeFromFileOrDir() {
         return getTorrentDataSizeFromFileOrDir(torrent_base);
     }
@@ -23,21 +23,79 @@
 
 package com.frostwire.torrent;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Vector;
-
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes the pieces of the torrent data.
+ * <p>
+ * The calling thread reads the files into pooled piece buffers and the full
+ * pieces are hashed in parallel by a shared pool of workers, the hashes are
+ * put back in piece order as they complete. Progress is reported by the reader,
+ * in piece order. The number of buffers bounds the memory used and how far the
+ * reader can go ahead of the workers.
+ * <p>
+ * In {@link TOTorrentCreator#IO_MODE_MMAP} mode the files are mapped in windows
+ * and the pieces are hashed straight from the mapping, a window is unmapped once
+ * its pieces are hashed. Only the pieces spanning two files are copied. {@link TOTorrentCreator#IO_MODE_DIRECT} reads through the
+ * file channel into direct buffers.
+ */
 public class TOTorrentFileHasher {
+
+    private static final int NUM_HASHING_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // memory used by the piece buffers of a single hasher
+    private static final long MAX_BUFFERS_SIZE = 64 * 1024 * 1024;
+
+    // size of the file regions mapped at once, a 32 bits VM can't map a big file whole
+    private static final long MAX_MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final ExecutorService HASHING_POOL = newHashingPool();
+
+    private static boolean unmapSupported = true;
+
+    private static final ThreadLocal<SHA1Hasher> PIECE_HASHER = new ThreadLocal<SHA1Hasher>() {
+        @Override
+        protected SHA1Hasher initialValue() {
+            return new SHA1Hasher();
+        }
+    };
+
     protected boolean do_other_per_file_hash;
     protected int piece_length;
+    protected int io_mode;
+
+    // hashes by piece number, guarded by itself
+    protected List<byte[]> pieces = new ArrayList<byte[]>();
+    protected int pieces_hashed;
+    protected int pieces_done;
+    protected Throwable hash_error;
+
+    // pieces reported to the listener, only used by the reader
+    protected int pieces_reported;
+
+    protected int pieces_submitted;
 
-    protected Vector<byte[]> pieces = new Vector<byte[]>();
+    protected BlockingQueue<ByteBuffer> free_buffers;
+    protected int max_buffers;
+    protected int buffers_allocated;
 
-    protected byte[] buffer;
-    protected int buffer_pos;
+    // piece being filled, it can span several files
+    protected ByteBuffer buffer;
 
     protected SHA1Hasher overall_sha1_hash;
     //protected ED2KHasher					overall_ed2k_hash;
@@ -50,9 +108,13 @@ public class TOTorrentFileHasher {
 
     protected TOTorrentFileHasherListener listener;
 
-    protected boolean cancelled;
+    protected volatile boolean cancelled;
 
     protected TOTorrentFileHasher(boolean _do_other_overall_hashes, boolean _do_other_per_file_hash, int _piece_length, TOTorrentFileHasherListener _listener) {
+        this(_do_other_overall_hashes, _do_other_per_file_hash, _piece_length, TOTorrentCreator.IO_MODE_STREAM, _listener);
+    }
+
+    protected TOTorrentFileHasher(boolean _do_other_overall_hashes, boolean _do_other_per_file_hash, int _piece_length, int _io_mode, TOTorrentFileHasherListener _listener) {
         if (_do_other_overall_hashes) {
             overall_sha1_hash = new SHA1Hasher();
 
@@ -61,9 +123,12 @@ public class TOTorrentFileHasher {
 
         do_other_per_file_hash = _do_other_per_file_hash;
         piece_length = _piece_length;
+        io_mode = _io_mode;
         listener = _listener;
 
-        buffer = new byte[piece_length];
+        // one per worker plus the one being filled, enough to keep all of them busy
+        max_buffers = (int) Math.max(2, Math.min(NUM_HASHING_THREADS + 2, MAX_BUFFERS_SIZE / piece_length));
+        free_buffers = new LinkedBlockingQueue<ByteBuffer>();
     }
 
     long add(File _file)
@@ -71,7 +136,7 @@ public class TOTorrentFileHasher {
     throws TOTorrentException {
         long file_length = 0;
 
-        InputStream is = null;
+        FileInputStream is = null;
 
         SHA1Hasher sha1_hash = null;
         //ED2KHasher	ed2k_hash		= null;
@@ -83,58 +148,19 @@ public class TOTorrentFileHasher {
                 //ed2k_hash		= new ED2KHasher();
             }
 
-            is = new BufferedInputStream(new FileInputStream(_file), 65536);
-
-            while (true) {
-
-                if (cancelled) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                    throw (new TOTorrentException("TOTorrentCreate: operation cancelled", TOTorrentException.RT_CANCELLED));
-                }
-
-                int len = is.read(buffer, buffer_pos, piece_length - buffer_pos);
-
-                if (len > 0) {
-
-                    if (do_other_per_file_hash) {
-
-                        sha1_hash.update(buffer, buffer_pos, len);
-                        //ed2k_hash.update( buffer, buffer_pos, len );
-                    }
-
-                    file_length += len;
-
-                    buffer_pos += len;
+            is = new FileInputStream(_file);
 
-                    if (buffer_pos == piece_length) {
+            if (io_mode == TOTorrentCreator.IO_MODE_MMAP) {
 
-                        // hash this piece
+                file_length = readMapped(is.getChannel(), sha1_hash);
 
-                        byte[] hash = new SHA1Hasher().calculateHash(buffer);
+            } else if (io_mode == TOTorrentCreator.IO_MODE_DIRECT) {
 
-                        if (overall_sha1_hash != null) {
+                file_length = readChannel(is.getChannel(), sha1_hash);
 
-                            overall_sha1_hash.update(buffer);
-                            //overall_ed2k_hash.update( buffer );
-                        }
+            } else {
 
-                        pieces.add(hash);
-
-                        if (listener != null) {
-
-                            listener.pieceHashed(pieces.size());
-                        }
-
-                        buffer_pos = 0;
-                    }
-                } else {
-
-                    break;
-                }
+                file_length = readStream(is, sha1_hash);
             }
 
             if (do_other_per_file_hash) {
@@ -154,7 +180,7 @@ public class TOTorrentFileHasher {
             if (is != null) {
                 try {
                     is.close();
-                } catch (Exception e) {
+                } catch (IOException e) {
                 }
             }
         }
@@ -176,39 +202,33 @@ public class TOTorrentFileHasher {
 
     throws TOTorrentException {
         try {
-            if (buffer_pos > 0) {
-
-                byte[] rem = new byte[buffer_pos];
+            if (buffer != null && buffer.position() > 0) {
 
-                System.arraycopy(buffer, 0, rem, 0, buffer_pos);
+                // the last piece is shorter
 
-                pieces.addElement(new SHA1Hasher().calculateHash(rem));
-
-                if (overall_sha1_hash != null) {
-
-                    overall_sha1_hash.update(rem);
-                    //overall_ed2k_hash.update( rem );
-                }
-
-                if (listener != null) {
-
-                    listener.pieceHashed(pieces.size());
-                }
-
-                buffer_pos = 0;
+                submitPiece();
             }
 
+            waitForPieces();
+
             if (overall_sha1_hash != null && sha1_digest == null) {
 
                 sha1_digest = overall_sha1_hash.getDigest();
                 //ed2k_digest	= overall_ed2k_hash.getDigest();
             }
 
-            byte[][] res = new byte[pieces.size()][];
+            synchronized (pieces) {
 
-            pieces.copyInto(res);
+                byte[][] res = new byte[pieces.size()][];
 
-            return (res);
+                pieces.toArray(res);
+
+                return (res);
+            }
+
+        } catch (TOTorrentException e) {
+
+            throw (e);
 
         } catch (Throwable e) {
 
@@ -243,4 +263,436 @@ public class TOTorrentFileHasher {
     protected void cancel() {
         cancelled = true;
     }
+
+    private long readStream(InputStream is, SHA1Hasher sha1_hash) throws TOTorrentException, IOException, InterruptedException {
+        long file_length = 0;
+
+        while (true) {
+
+            checkCancelled();
+
+            if (buffer == null) {
+
+                buffer = takeBuffer();
+            }
+
+            int pos = buffer.position();
+
+            // reads are piece sized, no need for an extra buffer
+            int len = is.read(buffer.array(), pos, buffer.remaining());
+
+            if (len > 0) {
+
+                updateOtherHashes(sha1_hash, buffer, pos, len);
+
+                file_length += len;
+
+                buffer.position(pos + len);
+
+                if (!buffer.hasRemaining()) {
+
+                    submitPiece();
+                }
+            } else {
+
+                break;
+            }
+        }
+
+        return (file_length);
+    }
+
+    private long readChannel(FileChannel channel, SHA1Hasher sha1_hash) throws TOTorrentException, IOException, InterruptedException {
+        long file_length = 0;
+
+        while (true) {
+
+            checkCancelled();
+
+            if (buffer == null) {
+
+                buffer = takeBuffer();
+            }
+
+            int pos = buffer.position();
+
+            int len = channel.read(buffer);
+
+            if (len > 0) {
+
+                updateOtherHashes(sha1_hash, buffer, pos, len);
+
+                file_length += len;
+
+                if (!buffer.hasRemaining()) {
+
+                    submitPiece();
+                }
+            } else {
+
+                break;
+            }
+        }
+
+        return (file_length);
+    }
+
+    private long readMapped(FileChannel channel, SHA1Hasher sha1_hash) throws TOTorrentException, IOException, InterruptedException {
+        long file_length = channel.size();
+
+        long pieces_per_window = Math.max(1, MAX_MAP_WINDOW_SIZE / piece_length);
+
+        long pos = 0;
+
+        while (pos < file_length) {
+
+            checkCancelled();
+
+            if (buffer != null || file_length - pos < piece_length) {
+
+                // the piece spans two files, it's copied to a buffer of its own
+
+                if (buffer == null) {
+
+                    buffer = takeBuffer();
+                }
+
+                int len = (int) Math.min(buffer.remaining(), file_length - pos);
+
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+                try {
+                    updateOtherHashes(sha1_hash, region, 0, len);
+
+                    buffer.put(region);
+                } finally {
+                    unmap(region);
+                }
+
+                pos += len;
+
+                if (!buffer.hasRemaining()) {
+
+                    submitPiece();
+                }
+            } else {
+
+                long num_pieces = Math.min((file_length - pos) / piece_length, pieces_per_window);
+
+                int len = (int) (num_pieces * piece_length);
+
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+                try {
+                    updateOtherHashes(sha1_hash, window, 0, len);
+
+                    for (int i = 0; i < num_pieces; i++) {
+
+                        waitForSlot();
+
+                        ByteBuffer piece = window.duplicate();
+
+                        piece.limit((i + 1) * piece_length);
+                        piece.position(i * piece_length);
+
+                        submitPiece(piece.slice(), false);
+                    }
+                } finally {
+                    // the mapping can't go while a piece is still being hashed from it
+                    waitForWorkers();
+
+                    unmap(window);
+                }
+
+                pos += len;
+            }
+        }
+
+        return (file_length);
+    }
+
+    private void updateOtherHashes(SHA1Hasher sha1_hash, ByteBuffer data, int pos, int len) {
+        if (sha1_hash == null && overall_sha1_hash == null) {
+
+            return;
+        }
+
+        ByteBuffer region = data.duplicate();
+
+        region.limit(pos + len);
+
+        if (sha1_hash != null) {
+
+            region.position(pos);
+
+            sha1_hash.update(region);
+            //ed2k_hash.update( region );
+        }
+
+        if (overall_sha1_hash != null) {
+
+            region.position(pos);
+
+            overall_sha1_hash.update(region);
+            //overall_ed2k_hash.update( region );
+        }
+    }
+
+    private void checkCancelled() throws TOTorrentException {
+        if (cancelled) {
+
+            throw (new TOTorrentException("TOTorrentCreate: operation cancelled", TOTorrentException.RT_CANCELLED));
+        }
+    }
+
+    private void checkHashError() throws TOTorrentException {
+        synchronized (pieces) {
+
+            if (hash_error != null) {
+
+                throw (new TOTorrentException("TOTorrentFileHasher: piece hash fails '" + hash_error.toString() + "'", TOTorrentException.RT_READ_FAILS));
+            }
+        }
+    }
+
+    /**
+     * Returns a free piece buffer, waiting for the workers to release one if all are in use.
+     */
+    private ByteBuffer takeBuffer() throws TOTorrentException, InterruptedException {
+        while (true) {
+
+            checkCancelled();
+            checkHashError();
+
+            reportProgress();
+
+            ByteBuffer b = free_buffers.poll();
+
+            if (b == null && buffers_allocated < max_buffers) {
+
+                buffers_allocated++;
+
+                b = io_mode == TOTorrentCreator.IO_MODE_DIRECT ? ByteBuffer.allocateDirect(piece_length) : ByteBuffer.allocate(piece_length);
+
+            } else if (b == null) {
+
+                b = free_buffers.poll(100, TimeUnit.MILLISECONDS);
+            }
+
+            if (b != null) {
+
+                return (b);
+            }
+        }
+    }
+
+    /**
+     * Waits until there is room for another piece in flight, the mapped pieces don't take a
+     * buffer from the pool but they still have to be bounded.
+     */
+    private void waitForSlot() throws TOTorrentException, InterruptedException {
+        while (true) {
+
+            checkCancelled();
+
+            reportProgress();
+
+            synchronized (pieces) {
+
+                if (pieces_submitted - pieces_done < max_buffers || hash_error != null) {
+
+                    break;
+                }
+
+                pieces.wait(100);
+            }
+        }
+
+        checkHashError();
+    }
+
+    /**
+     * Waits for the workers to be done with all the pieces submitted, cancelled or not.
+     */
+    private void waitForWorkers() {
+        boolean interrupted = false;
+
+        while (true) {
+
+            reportProgress();
+
+            synchronized (pieces) {
+
+                if (pieces_done == pieces_submitted) {
+
+                    break;
+                }
+
+                try {
+                    pieces.wait(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submitPiece() {
+        ByteBuffer piece = buffer;
+
+        buffer = null;
+
+        piece.flip();
+
+        submitPiece(piece, true);
+
+        reportProgress();
+    }
+
+    private void submitPiece(final ByteBuffer piece, final boolean pooled) {
+        final int piece_number = pieces_submitted++;
+
+        HASHING_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pieceHashed(piece_number, PIECE_HASHER.get().calculateHash(piece));
+                } catch (Throwable e) {
+                    pieceFailed(e);
+                } finally {
+                    if (pooled) {
+                        piece.clear();
+                        free_buffers.offer(piece);
+                    }
+                }
+            }
+        });
+    }
+
+    private void pieceHashed(int piece_number, byte[] hash) {
+        synchronized (pieces) {
+
+            while (pieces.size() <= piece_number) {
+
+                pieces.add(null);
+            }
+
+            pieces.set(piece_number, hash);
+
+            pieces_done++;
+
+            while (pieces_hashed < pieces.size() && pieces.get(pieces_hashed) != null) {
+
+                pieces_hashed++;
+            }
+
+            pieces.notifyAll();
+        }
+    }
+
+    /**
+     * Reports the pieces hashed in order since the last call, on the reader and outside the lock
+     * so that a slow listener doesn't hold up the workers.
+     */
+    private void reportProgress() {
+        int hashed;
+
+        synchronized (pieces) {
+
+            hashed = pieces_hashed;
+        }
+
+        while (pieces_reported < hashed) {
+
+            pieces_reported++;
+
+            if (listener != null) {
+
+                listener.pieceHashed(pieces_reported);
+            }
+        }
+    }
+
+    private void pieceFailed(Throwable e) {
+        synchronized (pieces) {
+
+            if (hash_error == null) {
+
+                hash_error = e;
+            }
+
+            pieces_done++;
+
+            pieces.notifyAll();
+        }
+    }
+
+    private void waitForPieces() throws TOTorrentException, InterruptedException {
+        while (true) {
+
+            checkCancelled();
+
+            reportProgress();
+
+            synchronized (pieces) {
+
+                if (pieces_hashed == pieces_submitted || hash_error != null) {
+
+                    break;
+                }
+
+                pieces.wait(100);
+            }
+        }
+
+        checkHashError();
+
+        reportProgress();
+    }
+
+    /**
+     * Releases a mapping now rather than when the buffer gets collected, the mappings of a big
+     * torrent can otherwise use up the address space. Left to the GC if the VM doesn't expose
+     * the cleaner.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (!unmapSupported) {
+            return;
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+
+            Object cleaner = cleanerMethod.invoke(buffer);
+
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable e) {
+            unmapSupported = false;
+        }
+    }
+
+    private static ExecutorService newHashingPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(NUM_HASHING_THREADS, NUM_HASHING_THREADS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int n;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TOTorrentFileHasher-Worker-" + (n++));
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        // don't keep the threads around once the torrent is created
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
 }
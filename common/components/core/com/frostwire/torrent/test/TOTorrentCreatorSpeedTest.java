@@ -0,0 +1,87 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.torrent.test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+
+import com.frostwire.torrent.TOTorrent;
+import com.frostwire.torrent.TOTorrentCreator;
+import com.frostwire.torrent.TOTorrentFactory;
+
+/**
+ * Compares the throughput of the torrent creation I/O modes.
+ * <p>
+ * Usage: TOTorrentCreatorSpeedTest file_or_dir [piece_length] [stream|mmap|direct ...]
+ * <p>
+ * To measure the disk and not the page cache use data larger than the RAM,
+ * or drop the OS caches between runs, the first run warms up the cache otherwise.
+ * 
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public class TOTorrentCreatorSpeedTest {
+
+    private static final String[] MODE_NAMES = { "stream", "mmap", "direct" };
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : MODE_NAMES;
+
+        boolean badArgs = args.length < 1;
+        for (String mode : modes) {
+            if (!Arrays.asList(MODE_NAMES).contains(mode)) {
+                System.err.println("Unknown mode '" + mode + "'");
+                badArgs = true;
+            }
+        }
+
+        if (badArgs) {
+            System.err.println("Usage: TOTorrentCreatorSpeedTest file_or_dir [piece_length] [stream|mmap|direct ...]");
+            System.exit(1);
+        }
+
+        File data = new File(args[0]);
+        long pieceLength = args.length > 1 ? Long.parseLong(args[1]) : TOTorrentFactory.TO_DEFAULT_FIXED_PIECE_SIZE;
+
+        URI announce = new URI("http://localhost:6969/announce");
+
+        byte[][] reference = null;
+
+        for (String mode : modes) {
+            TOTorrentCreator creator = TOTorrentFactory.createFromFileOrDirWithFixedPieceLength(data, announce, pieceLength);
+            creator.setIOMode(Arrays.asList(MODE_NAMES).indexOf(mode));
+
+            double totalMBytes = creator.getTorrentDataSizeFromFileOrDir() / (double) (1024 * 1024);
+
+            long time = System.currentTimeMillis();
+            TOTorrent torrent = creator.create();
+            time = System.currentTimeMillis() - time;
+
+            byte[][] pieces = torrent.getPieces();
+            if (reference == null) {
+                reference = pieces;
+            }
+
+            double speed = totalMBytes / (Math.max(time, 1) / 1000d);
+            System.out.println(mode + " [" + (long) totalMBytes + "MB, " + pieces.length + " pieces] = " + time + " ms @ " + (long) speed + " MiB/s" + (Arrays.deepEquals(reference, pieces) ? "" : " (pieces mismatch)"));
+        }
+    }
+}
@@ -17,9 +17,12 @@
 
 package com.frostwire.alexandria;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 import com.frostwire.alexandria.db.LibraryDatabase;
 import com.frostwire.alexandria.db.LibraryDatabaseEntity;
@@ -114,6 +117,80 @@ public class Playlist extends LibraryDatabaseEntity {
         }
     }
 
+    /**
+     * Adds the items at the end of the playlist, saving them in a single transaction.
+     */
+    public void addItems(Collection<PlaylistItem> items) {
+        addItems(-1, items);
+    }
+
+    /**
+     * Inserts the items at the given position, or at the end if the index is -1 or out of range.
+     * The items are saved and the sort indexes of the ones after them are rewritten in a single
+     * transaction.
+     */
+    public synchronized void addItems(int index, Collection<PlaylistItem> items) {
+        List<PlaylistItem> moved = new ArrayList<PlaylistItem>();
+
+        synchronized (_items) {
+            if (index < 0 || index > _items.size()) {
+                index = _items.size();
+            }
+
+            for (PlaylistItem item : items) {
+                item.setPlaylist(this);
+            }
+
+            _items.addAll(index, items);
+
+            int end = index + items.size();
+            ListIterator<PlaylistItem> it = _items.listIterator(index);
+            while (it.hasNext()) {
+                int i = it.nextIndex();
+                PlaylistItem item = it.next();
+                item.setSortIndex(i + 1); // 1-based
+                if (i >= end) {
+                    moved.add(item);
+                }
+            }
+        }
+
+        if (db != null) {
+            synchronized (db) {
+                boolean successful = false;
+                db.beginTransaction();
+
+                try {
+                    PlaylistItemDB.save(db, items);
+                    PlaylistItemDB.updateSortIndexes(db, moved);
+                    successful = true;
+                } finally {
+                    db.endTransaction(successful);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the sort index of every item to its position in the playlist and saves
+     * them in a single batch.
+     */
+    public synchronized void saveSortIndexes() {
+        List<PlaylistItem> items;
+
+        synchronized (_items) {
+            items = new ArrayList<PlaylistItem>(_items);
+        }
+
+        for (int i = 0; i < items.size(); i++) {
+            items.get(i).setSortIndex(i + 1); // 1-based
+        }
+
+        if (db != null) {
+            PlaylistItemDB.updateSortIndexes(db, items);
+        }
+    }
+
     public PlaylistItem newItem(String filePath, String fileName, long fileSize, String fileExtension, String trackTitle, float trackDurationInSecs, String trackArtist, String trackAlbum, String coverArtPath, String trackBitrate, String trackComment, String trackGenre, String trackNumber,
             String trackYear, boolean starred) {
         return new PlaylistItem(this, LibraryDatabase.OBJECT_NOT_SAVED_ID, filePath, fileName, fileSize, fileExtension, trackTitle, trackDurationInSecs, trackArtist, trackAlbum, coverArtPath, trackBitrate, trackComment, trackGenre, trackNumber, trackYear, starred);
@@ -9,11 +9,13 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import com.frostwire.alexandria.Playlist;
-import com.frostwire.alexandria.PlaylistItem;
 
 public class LibraryDatabase {
 
@@ -23,6 +25,8 @@ public class LibraryDatabase {
 
     public static final int LIBRARY_VERSION_PLAYLIST_SORT_INDEXES = 4; // indicates db version when playlist sort indexes were added
     public static final int LIBRARY_DATABASE_VERSION = 4;
+
+    private static final int MAX_CACHED_STATEMENTS = 64;
     
     private final File _databaseFile;
     private final String _name;
@@ -31,6 +35,23 @@ public class LibraryDatabase {
 
     private boolean _closed;
 
+    /** prepared statements of the library connection by SQL text, in LRU order */
+    private final Map<String, PreparedStatement> _statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        private static final long serialVersionUID = -3651829365087227140L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private int _transactionDepth;
+    private boolean _transactionFailed;
+
     static {
         try {
             Class.forName("org.h2.Driver");
@@ -104,6 +125,180 @@ public class LibraryDatabase {
         return OBJECT_INVALID_ID;
     }
 
+    /**
+     * Runs a batch of inserts in one transaction, with the same prepared statement.
+     * 
+     * @return the ids of the new rows, or {@link #OBJECT_INVALID_ID} for all if the batch fails
+     */
+    public synchronized int[] insertBatch(String statementSql, List<Object[]> argumentsList) {
+        int[] ids = new int[argumentsList.size()];
+        Arrays.fill(ids, OBJECT_INVALID_ID);
+
+        if (isClosed() || argumentsList.isEmpty()) {
+            return ids;
+        }
+
+        if (!statementSql.toUpperCase().startsWith("INSERT")) {
+            return ids;
+        }
+
+        boolean successful = false;
+        beginTransaction();
+
+        try {
+            PreparedStatement statement = prepareStatement(_connection, statementSql);
+
+            for (int i = 0; i < ids.length; i++) {
+                setArguments(statement, argumentsList.get(i));
+                statement.executeUpdate();
+                ids[i] = getIdentity();
+            }
+
+            successful = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            endTransaction(successful);
+        }
+
+        if (!successful) {
+            Arrays.fill(ids, OBJECT_INVALID_ID);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Runs the statement with every set of arguments as a single JDBC batch, in one transaction.
+     * 
+     * @return the number of updated rows, -1 if the batch fails
+     */
+    public synchronized int updateBatch(String statementSql, List<Object[]> argumentsList) {
+        if (isClosed()) {
+            return -1;
+        }
+
+        if (argumentsList.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        boolean successful = false;
+        PreparedStatement statement = null;
+        beginTransaction();
+
+        try {
+            statement = prepareStatement(_connection, statementSql);
+
+            for (Object[] arguments : argumentsList) {
+                setArguments(statement, arguments);
+                statement.addBatch();
+            }
+
+            for (int n : statement.executeBatch()) {
+                if (n > 0) {
+                    count += n;
+                }
+            }
+
+            successful = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!successful && statement != null) {
+                try {
+                    statement.clearBatch();
+                } catch (SQLException e) {
+                }
+            }
+            endTransaction(successful);
+        }
+
+        return successful ? count : -1;
+    }
+
+    /**
+     * Enables or disables the commit of the full text index on every row change of the table,
+     * disabled the changes are committed to the index with the next enabled row change. It's
+     * meant to commit the index once at the end of a batch.
+     */
+    public synchronized void enableFullTextIndexing(String tableName, boolean enable) {
+        if (isClosed()) {
+            return;
+        }
+
+        update(_connection, "CALL FTL_ENABLE_INDEXING(?, ?)", tableName, enable);
+    }
+
+    /**
+     * Starts a transaction, they can be nested and only the outermost one commits.
+     * <p>
+     * Callers grouping several operations must hold the database monitor from the beginning
+     * to the end of the transaction, so the statements of other threads don't get in:
+     * 
+     * <pre>
+     * synchronized (db) {
+     *     db.beginTransaction();
+     *     try {
+     *         ...
+     *         successful = true;
+     *     } finally {
+     *         db.endTransaction(successful);
+     *     }
+     * }
+     * </pre>
+     */
+    public synchronized void beginTransaction() {
+        if (isClosed()) {
+            return;
+        }
+
+        if (_transactionDepth == 0) {
+            try {
+                _connection.setAutoCommit(false);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            _transactionFailed = false;
+        }
+
+        _transactionDepth++;
+    }
+
+    /**
+     * Ends a transaction, the outermost one commits only if all of the nested ones
+     * were successful, and rolls back otherwise.
+     */
+    public synchronized void endTransaction(boolean successful) {
+        if (_transactionDepth == 0) {
+            return;
+        }
+
+        if (!successful) {
+            _transactionFailed = true;
+        }
+
+        if (--_transactionDepth > 0 || isClosed()) {
+            return;
+        }
+
+        try {
+            if (_transactionFailed) {
+                _connection.rollback();
+            } else {
+                _connection.commit();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                _connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public synchronized void close() {
         if (isClosed()) {
             return;
@@ -111,6 +306,11 @@ public class LibraryDatabase {
 
         _closed = true;
 
+        for (PreparedStatement statement : _statements.values()) {
+            closeQuietly(statement);
+        }
+        _statements.clear();
+
         try {
             Statement statement = _connection.createStatement();
             statement.execute("SHUTDOWN");
@@ -203,6 +403,8 @@ public class LibraryDatabase {
                 onUpdateDatabase(connection, version, LIBRARY_DATABASE_VERSION);
             }
         }
+
+        setupFullTextIndexingAlias(connection);
         
         return connection;
     }
@@ -229,12 +431,10 @@ public class LibraryDatabase {
             return OBJECT_INVALID_ID;
         }
 
-        Statement statement = null;
         ResultSet resultSet = null;
 
         try {
-            statement = _connection.createStatement();
-            resultSet = statement.executeQuery("CALL IDENTITY()");
+            resultSet = prepareStatement(_connection, "CALL IDENTITY()").executeQuery();
 
             resultSet.next();
 
@@ -242,12 +442,7 @@ public class LibraryDatabase {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                }
-            }
+            closeQuietly(resultSet);
         }
 
         return OBJECT_INVALID_ID;
@@ -258,13 +453,9 @@ public class LibraryDatabase {
         ResultSet resultSet = null;
 
         try {
-            statement = connection.prepareStatement(statementSql);
+            statement = prepareStatement(connection, statementSql);
 
-            if (arguments != null) {
-                for (int i = 0; i < arguments.length; i++) {
-                    statement.setObject(i + 1, arguments[i]);
-                }
-            }
+            setArguments(statement, arguments);
 
             resultSet = statement.executeQuery();
 
@@ -272,12 +463,8 @@ public class LibraryDatabase {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                }
-            }
+            closeQuietly(resultSet);
+            closeStatement(connection, statement);
         }
 
         return new ArrayList<List<Object>>();
@@ -288,29 +475,74 @@ public class LibraryDatabase {
         PreparedStatement statement = null;
 
         try {
-            statement = connection.prepareStatement(statementSql);
+            statement = prepareStatement(connection, statementSql);
 
-            if (arguments != null) {
-                for (int i = 0; i < arguments.length; i++) {
-                    statement.setObject(i + 1, arguments[i]);
-                }
-            }
+            setArguments(statement, arguments);
 
             return statement.executeUpdate();
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                }
+            if (_transactionDepth > 0 && connection == _connection) {
+                _transactionFailed = true;
             }
+        } finally {
+            closeStatement(connection, statement);
         }
 
         return -1;
     }
 
+    /**
+     * Statements of the library connection are cached, the ones of the connection
+     * used while creating or upgrading the database are not.
+     */
+    private PreparedStatement prepareStatement(Connection connection, String statementSql) throws SQLException {
+        if (connection != _connection) {
+            return connection.prepareStatement(statementSql);
+        }
+
+        PreparedStatement statement = _statements.get(statementSql);
+
+        if (statement == null) {
+            statement = connection.prepareStatement(statementSql);
+            _statements.put(statementSql, statement);
+        }
+
+        return statement;
+    }
+
+    private void closeStatement(Connection connection, Statement statement) {
+        if (connection != _connection) {
+            closeQuietly(statement);
+        }
+    }
+
+    private static void setArguments(PreparedStatement statement, Object[] arguments) throws SQLException {
+        if (arguments != null) {
+            for (int i = 0; i < arguments.length; i++) {
+                statement.setObject(i + 1, arguments[i]);
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private static void closeQuietly(ResultSet resultSet) {
+        if (resultSet != null) {
+            try {
+                resultSet.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
     private int getDatabaseVersion(Connection connection) {
         List<List<Object>> query = query(connection, "SELECT version FROM Library");
         return query.size() > 0 ? (Integer) query.get(0).get(0) : -1;
@@ -335,6 +567,10 @@ public class LibraryDatabase {
         update(connection, "CALL FTL_CREATE_INDEX('PUBLIC', 'INTERNETRADIOSTATIONS', 'NAME, DESCRIPTION, GENRE')");
     }
     
+    private void setupFullTextIndexingAlias(final Connection connection) {
+        update(connection, "CREATE ALIAS IF NOT EXISTS FTL_ENABLE_INDEXING FOR \"org.h2.fulltext.FullTextLucene2.enableIndexing\"");
+    }
+    
     private void setupPlaylistIndexes(final Connection connection) {
         
         // add new column
@@ -344,13 +580,7 @@ public class LibraryDatabase {
         List<Playlist> playlists = PlaylistDB.getPlaylists(this);
         
         for( Playlist playlist : playlists ) {
-            List<PlaylistItem> items = playlist.getItems();
-            
-            for(int i=0; i < items.size(); i++) {
-                PlaylistItem item = items.get(i);
-                item.setSortIndex(i+1); // set initial sort index (1-based)
-                item.save();
-            }
+            playlist.saveSortIndexes(); // set initial sort indexes (1-based)
         }
     }
 }
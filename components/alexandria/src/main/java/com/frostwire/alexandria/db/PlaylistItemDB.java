@@ -1,13 +1,23 @@
 package com.frostwire.alexandria.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.frostwire.alexandria.Playlist;
 import com.frostwire.alexandria.PlaylistItem;
 
 public class PlaylistItemDB {
 
+    private static final String INSERT_SQL = "INSERT INTO PlaylistItems (playlistId, filePath, fileName, fileSize, fileExtension, trackTitle, trackDurationInSecs, trackArtist, trackAlbum, coverArtPath, trackBitrate, trackComment, trackGenre, trackNumber, trackYear, starred, sortIndex) "
+            + " VALUES (?, LEFT(?, 10000), LEFT(?, 500), ?, LEFT(?, 10), LEFT(?, 500), ?, LEFT(?, 500), LEFT(?, 500), LEFT(?, 10000), LEFT(?, 10), LEFT(?, 500), LEFT(?, 20), LEFT(?, 6), LEFT(?, 6), ?, ?)";
+
+    private static final String UPDATE_SQL = "UPDATE PlaylistItems SET filePath = LEFT(?, 10000), fileName = LEFT(?, 500), fileSize = ?, fileExtension = LEFT(?, 10), trackTitle = LEFT(?, 500), trackDurationInSecs = ?, trackArtist = LEFT(?, 500), trackAlbum = LEFT(?, 500), coverArtPath = LEFT(?, 10000), trackBitrate = LEFT(?, 10), trackComment = LEFT(?, 500), trackGenre = LEFT(?, 20), trackNumber = LEFT(?, 6), trackYear = LEFT(?, 6), starred = ?, sortIndex = ? WHERE playlistItemId = ?";
+
+    private static final String UPDATE_STARRED_SQL = "UPDATE PlaylistItems SET starred = ? WHERE filePath = LEFT(?, 10000)";
+
     private PlaylistItemDB() {} // don't construct this direclty
 
     public static void fill(LibraryDatabase db, PlaylistItem obj) {
@@ -79,6 +89,90 @@ public class PlaylistItemDB {
         }
     }
 
+    /**
+     * Saves the items in a single transaction, the inserts, updates and starred
+     * propagation are done as batches instead of statement by statement.
+     */
+    public static void save(LibraryDatabase db, Collection<PlaylistItem> items) {
+        List<PlaylistItem> inserts = new ArrayList<PlaylistItem>();
+        List<Object[]> insertValues = new ArrayList<Object[]>();
+        List<Object[]> updateValues = new ArrayList<Object[]>();
+        List<Object[]> starredValues = new ArrayList<Object[]>();
+
+        synchronized (db) {
+            boolean successful = false;
+            db.beginTransaction();
+
+            try {
+                // starred state of the paths already seen in this batch, not yet in the database
+                Map<String, Boolean> starredPaths = new HashMap<String, Boolean>();
+
+                for (PlaylistItem item : items) {
+                    if (item.getId() == LibraryDatabase.OBJECT_INVALID_ID || item.getPlaylist() == null) {
+                        continue;
+                    }
+
+                    if (item.getId() == LibraryDatabase.OBJECT_NOT_SAVED_ID) {
+                        Boolean starred = starredPaths.get(item.getFilePath());
+                        item.setStarred((starred != null ? starred : isStarred(db, item)) || item.isStarred());
+                        inserts.add(item);
+                        insertValues.add((Object[]) createPlaylistItemInsert(item)[1]);
+                    } else {
+                        updateValues.add((Object[]) createPlaylistItemUpdate(item)[1]);
+                    }
+
+                    starredPaths.put(item.getFilePath(), item.isStarred());
+                    starredValues.add((Object[]) updateStarred(item)[1]);
+                }
+
+                if (!inserts.isEmpty()) {
+                    int last = inserts.size() - 1;
+                    int[] ids = new int[inserts.size()];
+
+                    // the full text index is committed on every insert, only the last one of the batch does it
+                    db.enableFullTextIndexing("PLAYLISTITEMS", false);
+                    try {
+                        System.arraycopy(db.insertBatch(INSERT_SQL, insertValues.subList(0, last)), 0, ids, 0, last);
+                    } finally {
+                        db.enableFullTextIndexing("PLAYLISTITEMS", true);
+                    }
+                    ids[last] = db.insertBatch(INSERT_SQL, insertValues.subList(last, last + 1))[0];
+
+                    for (int i = 0; i < ids.length; i++) {
+                        inserts.get(i).setId(ids[i]);
+                    }
+                }
+
+                if (!updateValues.isEmpty()) {
+                    db.updateBatch(UPDATE_SQL, updateValues);
+                }
+
+                if (!starredValues.isEmpty()) {
+                    db.updateBatch(UPDATE_STARRED_SQL, starredValues);
+                }
+
+                successful = true;
+            } finally {
+                db.endTransaction(successful);
+            }
+        }
+    }
+
+    /**
+     * Writes only the sort index of the items, in a single batch.
+     */
+    public static void updateSortIndexes(LibraryDatabase db, Collection<PlaylistItem> items) {
+        List<Object[]> values = new ArrayList<Object[]>(items.size());
+
+        for (PlaylistItem item : items) {
+            if (item.getId() >= 0) {
+                values.add(new Object[] { item.getSortIndex(), item.getId() });
+            }
+        }
+
+        db.updateBatch("UPDATE PlaylistItems SET sortIndex = ? WHERE playlistItemId = ?", values);
+    }
+
     public static void delete(LibraryDatabase db, PlaylistItem obj) {
         db.update("DELETE FROM PlaylistItems WHERE playlistItemId = ?", obj.getId());
     }
@@ -101,8 +195,7 @@ public class PlaylistItemDB {
     }
     
     private static Object[] createPlaylistItemInsert(PlaylistItem item) {
-        String sql = "INSERT INTO PlaylistItems (playlistId, filePath, fileName, fileSize, fileExtension, trackTitle, trackDurationInSecs, trackArtist, trackAlbum, coverArtPath, trackBitrate, trackComment, trackGenre, trackNumber, trackYear, starred, sortIndex) "
-                + " VALUES (?, LEFT(?, 10000), LEFT(?, 500), ?, LEFT(?, 10), LEFT(?, 500), ?, LEFT(?, 500), LEFT(?, 500), LEFT(?, 10000), LEFT(?, 10), LEFT(?, 500), LEFT(?, 20), LEFT(?, 6), LEFT(?, 6), ?, ?)";
+        String sql = INSERT_SQL;
 
         Object[] values = new Object[] { item.getPlaylist().getId(), item.getFilePath(), item.getFileName(), item.getFileSize(), item.getFileExtension(), item.getTrackTitle(),
                 item.getTrackDurationInSecs(), item.getTrackArtist(), item.getTrackAlbum(), item.getCoverArtPath(), item.getTrackBitrate(), item.getTrackComment(),
@@ -112,7 +205,7 @@ public class PlaylistItemDB {
     }
 
     private static Object[] createPlaylistItemUpdate(PlaylistItem item) {
-        String sql = "UPDATE PlaylistItems SET filePath = LEFT(?, 10000), fileName = LEFT(?, 500), fileSize = ?, fileExtension = LEFT(?, 10), trackTitle = LEFT(?, 500), trackDurationInSecs = ?, trackArtist = LEFT(?, 500), trackAlbum = LEFT(?, 500), coverArtPath = LEFT(?, 10000), trackBitrate = LEFT(?, 10), trackComment = LEFT(?, 500), trackGenre = LEFT(?, 20), trackNumber = LEFT(?, 6), trackYear = LEFT(?, 6), starred = ?, sortIndex = ? WHERE playlistItemId = ?";
+        String sql = UPDATE_SQL;
 
         Object[] values = new Object[] { item.getFilePath(), item.getFileName(), item.getFileSize(), item.getFileExtension(), item.getTrackTitle(),
                 item.getTrackDurationInSecs(), item.getTrackArtist(), item.getTrackAlbum(), item.getCoverArtPath(), item.getTrackBitrate(), item.getTrackComment(),
@@ -122,7 +215,7 @@ public class PlaylistItemDB {
     }
 
     private static Object[] updateStarred(PlaylistItem item) {
-        String sql = "UPDATE PlaylistItems SET starred = ? WHERE filePath = LEFT(?, 10000)";
+        String sql = UPDATE_STARRED_SQL;
 
         Object[] values = new Object[] { item.isStarred(), item.getFilePath() };
 
@@ -74,6 +74,24 @@ CacheFileManagerStats
 	public long
 	getFileWriteCount();
 	
+		// reads that couldn't be served from the cache
+	
+	public long
+	getCacheReadMissCount();
+	
+		// reads served from the cache in 1000ths of all the reads, -1 if nothing read yet
+	
+	public int
+	getCacheHitRatio();
+	
+		// acquisitions of the cache locks, and the ones that had to wait for another thread
+	
+	public long
+	getLockCount();
+	
+	public long
+	getContendedLockCount();
+	
 		// returns the number of bytes in the requested range that are in cache
 	
 	public boolean[] getBytesInCache(TOTorrent torrent, long[] absoluteOffsets, long[] lengths);
@@ -29,6 +29,8 @@ package com.aelitis.azureus.core.diskmanager.cache.impl;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.logging.LogEvent;
@@ -53,6 +55,17 @@ CacheFileManagerImpl
 	
 	public static final int		STATS_UPDATE_FREQUENCY		= 1*1000;	// 1 sec
 	public static final long	DIRTY_CACHE_WRITE_MAX_AGE	= 120*1000;	// 2 mins
+	
+		// the entries are spread over the segments by file and 1MB region, each segment
+		// has its own lock
+	
+	protected static final int	SEGMENT_COUNT				= 16;
+	protected static final int	SEGMENT_REGION_SHIFT		= 20;
+	
+		// share of a segment's space kept for the entries used more than once, a scan of
+		// entries used once (read-ahead, writes) only evicts other entries used once
+	
+	protected static final int	PROTECTED_PERCENT			= 80;
 		
 	static{
 		if ( DEBUG ){
@@ -113,7 +126,7 @@ CacheFileManagerImpl
 	protected long		cache_files_not_smaller_than;
 	
 	protected long		cache_minimum_free_size;
-	protected long		cache_space_free;
+	protected AtomicLong	cache_space_free	= new AtomicLong();
 
 	private long	cache_file_id_next	= 0;
 	
@@ -124,24 +137,33 @@ CacheFileManagerImpl
 	protected WeakHashMap		cache_files			= new WeakHashMap();
 	protected WeakHashMap		updated_cache_files	= null;
 	
-		// access order
+		// segmented LRU, see CacheSegment
+	
+	protected CacheSegment[]	segments	= new CacheSegment[SEGMENT_COUNT];
 	
-	protected LinkedHashMap		cache_entries = new LinkedHashMap(1024, 0.75f, true );
+	{
+		for (int i=0;i<segments.length;i++){
+			
+			segments[i] = new CacheSegment();
+		}
+	}
 	
 	protected CacheFileManagerStatsImpl	stats;
 	
 
 	protected Map	torrent_to_cache_file_map	= new LightHashMap();
 	
-	protected long				cache_bytes_written;
-	protected long				cache_bytes_read;
-	protected long				file_bytes_written;
-	protected long				file_bytes_read;
+	protected AtomicLong		cache_bytes_written	= new AtomicLong();
+	protected AtomicLong		cache_bytes_read	= new AtomicLong();
+	protected AtomicLong		file_bytes_written	= new AtomicLong();
+	protected AtomicLong		file_bytes_read		= new AtomicLong();
+	
+	protected AtomicLong		cache_read_count	= new AtomicLong();
+	protected AtomicLong		cache_write_count	= new AtomicLong();
+	protected AtomicLong		file_read_count		= new AtomicLong();
+	protected AtomicLong		file_write_count	= new AtomicLong();
 	
-	protected long				cache_read_count;
-	protected long				cache_write_count;
-	protected long				file_read_count;
-	protected long				file_write_count;
+	protected AtomicLong		cache_read_miss_count	= new AtomicLong();
 	
 	protected AEMonitor			this_mon	= new AEMonitor( "CacheFileManager" );
 	
@@ -200,7 +222,7 @@ CacheFileManagerImpl
 		
 		cache_minimum_free_size	= cache_size/4;
 		
-		cache_space_free		= cache_size;
+		cache_space_free.set( cache_size );
 		
 		stats = new CacheFileManagerStatsImpl( this );
 		
@@ -370,27 +392,29 @@ CacheFileManagerImpl
 			
 			CacheEntry	oldest_entry	= null;
 			
-			try{
-				this_mon.enter();
+			long	free = cache_space_free.get();
 			
-				if ( length < cache_space_free || cache_space_free == cache_size ){
+			if ( length < free || free == cache_size ){
+				
+				ok	= true;
+				
+			}else{
 				
-					ok	= true;
+				oldest_entry = getEvictionCandidate();
+				
+				if ( oldest_entry == null ){
 					
-				}else{
+						// released meanwhile, check again
 					
-					oldest_entry = (CacheEntry)cache_entries.keySet().iterator().next();
+					continue;
 				}
-			}finally{
-				
-				this_mon.exit();
 			}
 			
 			if ( !ok ){
 				
 				log	= true;
 				
-				long	old_free	= cache_space_free;
+				long	old_free	= cache_space_free.get();
 			
 				CacheFileWithCache	oldest_file = oldest_entry.getFile();
 				
@@ -414,7 +438,7 @@ CacheFileManagerImpl
 					}
 				}
 				
-				long	flushed = cache_space_free - old_free;
+				long	flushed = cache_space_free.get() - old_free;
 				
 				if (Logger.isEnabled()) {
 					TOTorrentFile tf = file.getTorrentFile();
@@ -426,20 +450,12 @@ CacheFileManagerImpl
 				
 				if ( flushed == 0 ){
 				
-					try{
-						this_mon.enter();
-						
-						if (	cache_entries.size() > 0 &&
-								(CacheEntry)cache_entries.keySet().iterator().next() == oldest_entry ){
+					if ( getSegment( oldest_entry ).contains( oldest_entry )){
 							
-								// hmm, something wrong with cache as the flush should have got rid
-								// of at least the oldest entry
-							
-							throw( new CacheFileManagerException( null, "Cache inconsistent: 0 flushed"));
-						}
-					}finally{
+							// hmm, something wrong with cache as the flush should have got rid
+							// of at least the oldest entry
 						
-						this_mon.exit();
+						throw( new CacheFileManagerException( null, "Cache inconsistent: 0 flushed"));
 					}
 				}
 			}
@@ -459,6 +475,52 @@ CacheFileManagerImpl
 		return( entry );
 	}
 	
+	protected CacheSegment
+	getSegment(
+		CacheEntry		entry )
+	{
+		int	h = entry.getFile().hashCode() * 31 + (int)( entry.getFilePosition() >>> SEGMENT_REGION_SHIFT );
+		
+		h ^= ( h >>> 16 );
+		
+		return( segments[ h & ( SEGMENT_COUNT - 1 )]);
+	}
+	
+		/**
+		 * Picks the entry to flush to make space: the oldest entry used only once in the
+		 * segment with most of them, or if there are none the least recently used entry
+		 * of the biggest segment
+		 */
+	
+	protected CacheEntry
+	getEvictionCandidate()
+	{
+		CacheSegment	best 			= null;
+		boolean			best_probation	= false;
+		
+		for ( CacheSegment segment: segments ){
+			
+			long	probation_size = segment.getProbationSize();
+			
+			if ( probation_size > 0 ){
+				
+				if ( !best_probation || probation_size > best.getProbationSize()){
+					
+					best			= segment;
+					best_probation	= true;
+				}
+			}else if ( !best_probation && segment.getSize() > 0 ){
+				
+				if ( best == null || segment.getSize() > best.getSize()){
+					
+					best = segment;
+				}
+			}
+		}
+		
+		return( best == null?null:best.getOldest());
+	}
+	
 	protected void
 	cacheStatsAndCleaner()
 	{
@@ -498,23 +560,6 @@ CacheFileManagerImpl
       						updated_cache_files	= null;
       					}
 
-      					if ( cache_entries.size() > 0 ){
-      						
-      						Iterator it = cache_entries.keySet().iterator();
-      						
-      						while( it.hasNext()){
-      							
-      							CacheEntry	entry = (CacheEntry)it.next();
-      								
-      							// System.out.println( "oldest entry = " + ( now - entry.getLastUsed()));
-      							
-      							if ( entry.isDirty()){
-      								
-      								dirty_files.add( entry.getFile());
-      							}
-      						}
-      					}
-      					
       					// System.out.println( "cache file = " + cache_files.size() + ", torrent map = " + torrent_to_cache_file_map.size());
       					
       				}finally{
@@ -522,6 +567,17 @@ CacheFileManagerImpl
       					this_mon.exit();
       				}
       				
+      				for ( CacheSegment segment: segments ){
+      					
+      					for ( CacheEntry entry: segment.getEntries()){
+      						
+      						if ( entry.isDirty()){
+      							
+      							dirty_files.add( entry.getFile());
+      						}
+      					}
+      				}
+      				
       				Iterator	it = dirty_files.iterator();
       				
       				while( it.hasNext()){
@@ -573,16 +629,16 @@ CacheFileManagerImpl
 	
 		throws CacheFileManagerException
 	{
-		try{
-			this_mon.enter();
-			
-			cache_space_free	-= new_entry.getLength();
-			
-				// 	System.out.println( "Total cache space = " + cache_space_free );
+		cache_space_free.addAndGet( -new_entry.getLength());
+		
+			// 	System.out.println( "Total cache space = " + cache_space_free );
+	
+		getSegment( new_entry ).add( new_entry );
 		
-			cache_entries.put( new_entry, new_entry );
+		if ( DEBUG ){
 			
-			if ( DEBUG ){
+			try{
+				this_mon.enter();
 				
 				CacheFileWithCache	file	= new_entry.getFile();
 								
@@ -590,17 +646,16 @@ CacheFileManagerImpl
 				
 				int		my_count = 0;
 
-				Iterator it = cache_entries.keySet().iterator();
-				
-				while( it.hasNext()){
+				for ( CacheSegment segment: segments ){
 					
-					CacheEntry	entry = (CacheEntry)it.next();
+					for ( CacheEntry entry: segment.getEntries()){
 					
-					total_cache_size	+= entry.getLength();
-					
-					if ( entry.getFile() == file ){
+						total_cache_size	+= entry.getLength();
 						
-						my_count++;
+						if ( entry.getFile() == file ){
+							
+							my_count++;
+						}
 					}
 				}
 			
@@ -615,7 +670,7 @@ CacheFileManagerImpl
 					//System.out.println( "Cache: file_count = " + my_count );
 				}
 				
-				if ( total_cache_size != cache_size - cache_space_free ){
+				if ( total_cache_size != cache_size - cache_space_free.get()){
 					
 					Debug.out( "Cache inconsistency: used_size = " + total_cache_size + ", free = " + cache_space_free + ", size = " + cache_size );
 					
@@ -625,10 +680,10 @@ CacheFileManagerImpl
 					
 					//System.out.println( "Cache: usage = " + total_cache_size );
 				}
+			}finally{
+				
+				this_mon.exit();
 			}
-		}finally{
-			
-			this_mon.exit();
 		}
 	}
 	
@@ -638,24 +693,13 @@ CacheFileManagerImpl
 	
 		throws CacheFileManagerException
 	{
-		try{
-			this_mon.enter();
+			// moves the entry to the MRU end of its segment
 		
-				// note that the "get" operation update the MRU in cache_entries
+		if ( !getSegment( entry ).used( entry, cache_size * PROTECTED_PERCENT / 100 / SEGMENT_COUNT )){
 			
-			if ( cache_entries.get( entry ) == null ){
-				
-				Debug.out( "Cache inconsistency: entry missing on usage" );
-				
-				throw( new CacheFileManagerException( null, "Cache inconsistency: entry missing on usage"));
-				
-			}else{
-				
-				entry.used();
-			}
-		}finally{
+			Debug.out( "Cache inconsistency: entry missing on usage" );
 			
-			this_mon.exit();
+			throw( new CacheFileManagerException( null, "Cache inconsistency: entry missing on usage"));
 		}
 	}
 	
@@ -667,37 +711,30 @@ CacheFileManagerImpl
 	{
 		entry.getBuffer().returnToPool();
 		
-		try{
-			this_mon.enter();
-			
-			cache_space_free	+= entry.getLength();
+		cache_space_free.addAndGet( entry.getLength());
+		
+		if ( !getSegment( entry ).remove( entry )){
 			
-			if ( cache_entries.remove( entry ) == null ){
-				
-				Debug.out( "Cache inconsistency: entry missing on removal" );
+			Debug.out( "Cache inconsistency: entry missing on removal" );
 
-				throw( new CacheFileManagerException( null, "Cache inconsistency: entry missing on removal"));
-			}
+			throw( new CacheFileManagerException( null, "Cache inconsistency: entry missing on removal"));
+		}
 
-			/*
-			if ( 	entry.getType() == CacheEntry.CT_READ_AHEAD ){
-				
-				if ( entry.getUsageCount() < 2 ){
-				
-					System.out.println( "ra: not used" );
-				
-				}else{
-				
-					System.out.println( "ra: used" );
-				}
-			}
-			*/
+		/*
+		if ( 	entry.getType() == CacheEntry.CT_READ_AHEAD ){
 			
-			// System.out.println( "Total cache space = " + cache_space_free );
-		}finally{
+			if ( entry.getUsageCount() < 2 ){
 			
-			this_mon.exit();
+				System.out.println( "ra: not used" );
+			
+			}else{
+			
+				System.out.println( "ra: used" );
+			}
 		}
+		*/
+		
+		// System.out.println( "Total cache space = " + cache_space_free );
 	}
 	
 	protected long
@@ -709,7 +746,7 @@ CacheFileManagerImpl
 	protected long
 	getCacheUsed()
 	{
-		long free = cache_space_free;
+		long free = cache_space_free.get();
 		
 		if ( free < 0 ){
 			
@@ -723,115 +760,122 @@ CacheFileManagerImpl
 	cacheBytesWritten(
 		long		num )
 	{
-		try{
-			this_mon.enter();
-			
-			cache_bytes_written	+= num;
-			
-			cache_write_count++;
-			
-		}finally{
-			
-			this_mon.exit();
-		}
+		cache_bytes_written.addAndGet( num );
+		
+		cache_write_count.incrementAndGet();
 	}
 	
 	protected void
 	cacheBytesRead(
 		int		num )
 	{
-		try{
-			this_mon.enter();
-			
-			cache_bytes_read	+= num;
-			
-			cache_read_count++;
-			
-		}finally{
-			
-			this_mon.exit();
-		}
+		cache_bytes_read.addAndGet( num );
+		
+		cache_read_count.incrementAndGet();
 	}
 	
 	protected void
 	fileBytesWritten(
-		long	num )
+		long		num )
 	{
-		try{
-			this_mon.enter();
-			
-			file_bytes_written	+= num;
-			
-			file_write_count++;
-			
-		}finally{
-			
-			this_mon.exit();
-		}
+		file_bytes_written.addAndGet( num );
+		
+		file_write_count.incrementAndGet();
 	}
 	
 	protected void
 	fileBytesRead(
 		int		num )
 	{
-		try{
-			this_mon.enter();
-			
-			file_bytes_read	+= num;
-			
-			file_read_count++;
-		}finally{
-			
-			this_mon.exit();
-		}
+		file_bytes_read.addAndGet( num );
+		
+		file_read_count.incrementAndGet();
+	}
+	
+	protected void
+	cacheReadMissed()
+	{
+		cache_read_miss_count.incrementAndGet();
 	}
 	
 	protected long
 	getBytesWrittenToCache()
 	{
-		return( cache_bytes_written );
+		return( cache_bytes_written.get());
 	}
 	
 	protected long
 	getBytesWrittenToFile()
 	{
-		return( file_bytes_written );
+		return( file_bytes_written.get());
 	}
 	
 	protected long
 	getBytesReadFromCache()
 	{
-		return( cache_bytes_read );
+		return( cache_bytes_read.get());
 	}
 	
 	protected long
 	getBytesReadFromFile()
 	{
-		return( file_bytes_read );
+		return( file_bytes_read.get());
 	}
 	
 	public long
 	getCacheReadCount()
 	{
-		return( cache_read_count );
+		return( cache_read_count.get());
 	}
 	
 	public long
 	getCacheWriteCount()
 	{
-		return( cache_write_count );
+		return( cache_write_count.get());
 	}
 	
 	public long
 	getFileReadCount()
 	{
-		return( file_read_count );
+		return( file_read_count.get());
 	}
 	
 	public long
 	getFileWriteCount()
 	{
-		return( file_write_count );
+		return( file_write_count.get());
+	}
+	
+	public long
+	getCacheReadMissCount()
+	{
+		return( cache_read_miss_count.get());
+	}
+	
+	public long
+	getLockCount()
+	{
+		long	total = 0;
+		
+		for ( CacheSegment segment: segments ){
+			
+			total += segment.getLockCount();
+		}
+		
+		return( total );
+	}
+	
+	public long
+	getContendedLockCount()
+	{
+		long	total = 0;
+		
+		for ( CacheSegment segment: segments ){
+			
+			total += segment.getContendedLockCount();
+		}
+		
+		return( total );
 	}
 	
 	protected void
@@ -963,22 +1007,19 @@ CacheFileManagerImpl
 		try{
 			writer.indent();
 			
-			Iterator it;
-			
 				// grab a copy to avoid potential deadlock as we never take the manager monitor
 				// and then the file's own monitor, always the other way around
 			
-			try{
-				this_mon.enter();
-
-				it = new ArrayList( cache_entries.keySet()).iterator();
-
-			}finally{
+			List<CacheEntry>	entries = new ArrayList<CacheEntry>();
+			
+			for ( CacheSegment segment: segments ){
 				
-				this_mon.exit();
+				entries.addAll( segment.getEntries());
 			}
 			
-			writer.println( "Entries = " + cache_entries.size());
+			Iterator it = entries.iterator();
+			
+			writer.println( "Entries = " + entries.size() + ", read misses = " + getCacheReadMissCount() + ", locks = " + getLockCount() + ", contended = " + getContendedLockCount());
 							
 			Set	files = new HashSet();
 			
@@ -1029,4 +1070,224 @@ CacheFileManagerImpl
 	{
 		file_manager.setFileLinks( torrent, links );
 	}
+	
+		/**
+		 * A part of the cache entries, with its own lock. The entries used once are in a
+		 * FIFO probation queue and move to an LRU protected queue when used again, when the
+		 * protected queue is over its share the least recently used go back to probation.
+		 * The entries to flush are taken from probation first, so a single pass over a lot
+		 * of data doesn't push out the entries in use (2Q/segmented LRU)
+		 */
+	
+	protected static class
+	CacheSegment
+	{
+		private final ReentrantLock		lock	= new ReentrantLock();
+		
+		private final LinkedHashMap<CacheEntry,CacheEntry>	probation		= new LinkedHashMap<CacheEntry,CacheEntry>( 64, 0.75f, false );
+		private final LinkedHashMap<CacheEntry,CacheEntry>	protected_lru	= new LinkedHashMap<CacheEntry,CacheEntry>( 64, 0.75f, true );
+		
+		private volatile long	probation_size;
+		private volatile long	protected_size;
+		
+		private volatile long	lock_count;
+		private volatile long	contended_lock_count;
+		
+		protected void
+		add(
+			CacheEntry		entry )
+		{
+			enter();
+			
+			try{
+				probation.put( entry, entry );
+				
+				probation_size += entry.getLength();
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected boolean
+		used(
+			CacheEntry		entry,
+			long			max_protected_size )
+		{
+			enter();
+			
+			try{
+				if ( protected_lru.get( entry ) != null ){
+					
+						// "get" moves it to the MRU end
+					
+				}else if ( probation.remove( entry ) != null ){
+					
+					probation_size -= entry.getLength();
+					
+					protected_lru.put( entry, entry );
+					
+					protected_size += entry.getLength();
+					
+					Iterator<CacheEntry>	it = protected_lru.keySet().iterator();
+					
+					while( protected_size > max_protected_size && it.hasNext()){
+						
+						CacheEntry	lru = it.next();
+						
+						if ( lru == entry ){
+							
+							break;
+						}
+						
+						it.remove();
+						
+						protected_size -= lru.getLength();
+						
+						probation.put( lru, lru );
+						
+						probation_size += lru.getLength();
+					}
+				}else{
+					
+					return( false );
+				}
+				
+				entry.used();
+				
+				return( true );
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected boolean
+		remove(
+			CacheEntry		entry )
+		{
+			enter();
+			
+			try{
+				if ( probation.remove( entry ) != null ){
+					
+					probation_size -= entry.getLength();
+					
+					return( true );
+				}
+				
+				if ( protected_lru.remove( entry ) != null ){
+					
+					protected_size -= entry.getLength();
+					
+					return( true );
+				}
+				
+				return( false );
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected boolean
+		contains(
+			CacheEntry		entry )
+		{
+			enter();
+			
+			try{
+				return( probation.containsKey( entry ) || protected_lru.containsKey( entry ));
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected CacheEntry
+		getOldest()
+		{
+			enter();
+			
+			try{
+				if ( probation.size() > 0 ){
+					
+					return( probation.keySet().iterator().next());
+				}
+				
+				if ( protected_lru.size() > 0 ){
+					
+					return( protected_lru.keySet().iterator().next());
+				}
+				
+				return( null );
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected List<CacheEntry>
+		getEntries()
+		{
+			enter();
+			
+			try{
+				List<CacheEntry>	result = new ArrayList<CacheEntry>( probation.size() + protected_lru.size());
+				
+				result.addAll( probation.keySet());
+				result.addAll( protected_lru.keySet());
+				
+				return( result );
+				
+			}finally{
+				
+				lock.unlock();
+			}
+		}
+		
+		protected long
+		getSize()
+		{
+			return( probation_size + protected_size );
+		}
+		
+		protected long
+		getProbationSize()
+		{
+			return( probation_size );
+		}
+		
+		protected long
+		getLockCount()
+		{
+			return( lock_count );
+		}
+		
+		protected long
+		getContendedLockCount()
+		{
+			return( contended_lock_count );
+		}
+		
+		private void
+		enter()
+		{
+			if ( !lock.tryLock()){
+				
+				lock.lock();
+				
+				contended_lock_count++;
+			}
+			
+				// both only updated with the lock held
+			
+			lock_count++;
+		}
+	}
 }
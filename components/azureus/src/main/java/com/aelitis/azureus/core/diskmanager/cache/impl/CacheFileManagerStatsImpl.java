@@ -195,6 +195,38 @@ CacheFileManagerStatsImpl
 		return( manager.getFileWriteCount());
 	}
 	
+	public long
+	getCacheReadMissCount()
+	{
+		return( manager.getCacheReadMissCount());
+	}
+	
+	public int
+	getCacheHitRatio()
+	{
+		long	hits	= manager.getCacheReadCount();
+		long	misses	= manager.getCacheReadMissCount();
+		
+		if ( hits + misses == 0 ){
+			
+			return( -1 );
+		}
+		
+		return((int)( hits * 1000 / ( hits + misses )));
+	}
+	
+	public long
+	getLockCount()
+	{
+		return( manager.getLockCount());
+	}
+	
+	public long
+	getContendedLockCount()
+	{
+		return( manager.getContendedLockCount());
+	}
+	
 	public boolean[] getBytesInCache(TOTorrent torrent, long[] absoluteOffsets, long[] lengths)
 	{
 		return manager.getBytesInCache( torrent, absoluteOffsets, lengths);
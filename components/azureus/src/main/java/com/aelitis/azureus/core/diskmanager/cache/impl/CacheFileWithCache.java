@@ -99,6 +99,12 @@ CacheFileWithCache
 	
 	protected final static int		READAHEAD_HISTORY	= 32;
 	
+		// after this many reads each starting where the previous one ended the file is
+		// being streamed, the read-ahead doubles every such number of reads up to the limit
+	
+	protected final static int		STREAMING_READS				= 4;
+	protected final static int		STREAMING_READAHEAD_LIMIT	= 1024*1024;
+	
 	protected CacheFileManagerImpl		manager;
 	protected FMFile					file;
 	protected int						access_mode	= CF_READ;
@@ -109,6 +115,9 @@ CacheFileWithCache
 	protected long[]					read_history; // lazy allocation
 	protected int						read_history_next	= 0;
 	
+	protected long						last_read_end		= -1;
+	protected int						sequential_reads	= 0;
+	
 	protected TreeSet					cache			= new TreeSet(comparator);
 			
 	protected int 	current_read_ahead_size				= 0;
@@ -239,6 +248,22 @@ CacheFileWithCache
 		// System.out.println( "read-ahead: done = " + read_ahead_bytes_made + ", used = " + read_ahead_bytes_used + ", done_av = " + read_ahead_made_average.getAverage() + ", used_av = " +  read_ahead_used_average.getAverage()+ ", size = " + current_read_ahead_size );
 	}
 	
+	protected int
+	getReadAheadSize(
+		int		sequential )
+	{
+		int	size = current_read_ahead_size;
+		
+		if ( sequential >= STREAMING_READS ){
+			
+			int	limit = (int)Math.min( STREAMING_READAHEAD_LIMIT, manager.getCacheSize()/16 );
+			
+			size = Math.max( size, Math.min( size << Math.min( sequential / STREAMING_READS, 4 ), limit ));
+		}
+		
+		return( size );
+	}
+	
 	protected void
 	readCache(
 		final DirectByteBuffer	file_buffer,
@@ -275,6 +300,7 @@ CacheFileWithCache
 				boolean	ok 				= true;
 				int		used_entries	= 0;
 				long	used_read_ahead	= 0;
+				int		sequential		= 0;
 				
 	
 			
@@ -301,6 +327,22 @@ CacheFileWithCache
 						read_history_next	= 0;
 					}
 					
+					if ( !recursive ){
+						
+						if ( file_position == last_read_end ){
+							
+							sequential_reads++;
+							
+						}else{
+							
+							sequential_reads = 0;
+						}
+						
+						last_read_end = file_position + read_length;
+					}
+					
+					sequential = sequential_reads;
+					
 					Iterator	it = cache.iterator();
 					
 					while( ok && writing_left > 0 && it.hasNext()){
@@ -406,10 +448,17 @@ CacheFileWithCache
 						Logger.log(new LogEvent(torrent, LOGID,
 								"cacheRead: cache use fails, reverting to plain read"));
 								
+					if ( !recursive ){
+						
+						manager.cacheReadMissed();
+					}
+					
 						// reset in case we've done some partial reads
 						
 					file_buffer.position( SS_CACHE, file_buffer_position );
 					
+					int	read_ahead_size = getReadAheadSize( sequential );
+					
 						// If read-ahead fails then we resort to a straight read
 						// Read-ahead can fail if a cache-flush fails (e.g. out of disk space
 						// on a file belonging to a different torrent than this.
@@ -424,8 +473,8 @@ CacheFileWithCache
 										!disable_read_cache &&
 										read_history != null &&
 										manager.isReadCacheEnabled() &&
-										read_length <  current_read_ahead_size &&
-										file_position + current_read_ahead_size <= file.getLength();
+										read_length <  read_ahead_size &&
+										file_position + read_ahead_size <= file.getLength();
 		
 							if ( do_read_ahead ){
 		
@@ -444,7 +493,7 @@ CacheFileWithCache
 								}
 							}
 							
-							int	actual_read_ahead = current_read_ahead_size;
+							int	actual_read_ahead = read_ahead_size;
 							
 							if ( do_read_ahead ){
 							
@@ -24,12 +24,15 @@ package com.aelitis.azureus.core.networkmanager;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.config.ParameterListener;
 import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.global.GlobalManagerListener;
+import org.gudy.azureus2.core3.util.AEMonitor;
 import org.gudy.azureus2.core3.util.Debug;
 
 import com.aelitis.azureus.core.AzureusCore;
@@ -138,8 +141,15 @@ public class NetworkManager {
   private final List<WriteController> 	write_controllers;
   private final List<ReadController> 	read_controllers;
   
+  	// owning controller of each entity, so removal only touches one of them
+  
+  private final Map<RateControlledEntity,WriteController>	write_owners 	= new IdentityHashMap<RateControlledEntity,WriteController>();
+  private final Map<RateControlledEntity,ReadController>	read_owners 	= new IdentityHashMap<RateControlledEntity,ReadController>();
+  
+  private final AEMonitor	controllers_mon = new AEMonitor( "NetworkManager:controllers" );
+  
   {
-	 int	num_read = COConfigurationManager.getIntParameter( "network.control.read.processor.count" );
+	 int	num_read = getProcessorCount( "network.control.read.processor.count" );
 	 
 	 read_controllers = new ArrayList<ReadController>(num_read);
 	 
@@ -148,7 +158,7 @@ public class NetworkManager {
 		 read_controllers.add( new ReadController());
 	 }
 	 
-	 int	num_write = COConfigurationManager.getIntParameter( "network.control.write.processor.count" );
+	 int	num_write = getProcessorCount( "network.control.write.processor.count" );
 	 
 	 write_controllers = new ArrayList<WriteController>(num_write);
 	 
@@ -158,6 +168,29 @@ public class NetworkManager {
 	 }
   }
   
+  	/**
+  	 * A count of 0 or less means one processor for the global entities plus one per
+  	 * available cpu for the peer connections, up to MAX_AUTO_PROCESSORS
+  	 */
+  
+  private static final int	MAX_AUTO_PROCESSORS	= 8;
+  
+  private static int
+  getProcessorCount(
+	String	name )
+  {
+	  int	num = COConfigurationManager.getIntParameter( name );
+	  
+	  if ( num <= 0 ){
+		  
+		  int	cpus = Runtime.getRuntime().availableProcessors();
+		  
+		  num = cpus <= 1?1:( 1 + Math.min( cpus, MAX_AUTO_PROCESSORS ));
+	  }
+	  
+	  return( num );
+  }
+  
   
   private final TransferProcessor upload_processor = 
 	  new TransferProcessor( 
@@ -401,18 +434,59 @@ public class NetworkManager {
   
   /**
    * Add an upload entity for write processing.
+   * Global entities (partition_id < 0) are processed by the first controller, the others
+   * are given to the least loaded of the remaining ones, so the connections are spread out
+   * again as they come and go.
    * @param entity to add
+   * @param partition_id preferred partition, used to break ties between equally loaded controllers
    */
   public void addWriteEntity( RateControlledEntity entity, int partition_id ) {
-	  if ( write_controllers.size() == 1 || partition_id < 0 ){
+	  if ( write_controllers.size() == 1 ){
 		  
 		  write_controllers.get(0).addWriteEntity(entity);
 		  
 	  }else{
 		  
-		  WriteController controller = write_controllers.get((partition_id%(write_controllers.size()-1))+1 );
-
-		  controller.addWriteEntity( entity );
+		  try{
+			  controllers_mon.enter();
+			  
+			  WriteController controller;
+			  
+			  if ( partition_id < 0 ){
+				  
+				  controller = write_controllers.get(0);
+				  
+			  }else{
+				  
+				  int	num 	= write_controllers.size() - 1;
+				  int	start	= partition_id % num;
+				  
+				  controller = null;
+				  
+				  for (int i=0;i<num;i++){
+					  
+					  WriteController c = write_controllers.get(((start+i)%num)+1 );
+					  
+					  if ( controller == null || c.getEntityCount() < controller.getEntityCount()){
+						  
+						  controller = c;
+					  }
+				  }
+			  }
+			  
+			  WriteController old = write_owners.put( entity, controller );
+			  
+			  if ( old != null && old != controller ){
+				  
+				  old.removeWriteEntity( entity );
+			  }
+			  
+			  controller.addWriteEntity( entity );
+			  
+		  }finally{
+			  
+			  controllers_mon.exit();
+		  }
 	  }
   }
   
@@ -423,10 +497,23 @@ public class NetworkManager {
    */
   public void removeWriteEntity( RateControlledEntity entity ) {
 	  if ( write_controllers.size() == 1 ){
+		  
 		  write_controllers.get(0).removeWriteEntity( entity );
+		  
 	  }else{
-		  for (WriteController write_controller: write_controllers ){
-			  write_controller.removeWriteEntity( entity );
+		  
+		  try{
+			  controllers_mon.enter();
+			  
+			  WriteController controller = write_owners.remove( entity );
+			  
+			  if ( controller != null ){
+				  
+				  controller.removeWriteEntity( entity );
+			  }
+		  }finally{
+			  
+			  controllers_mon.exit();
 		  }
 	  }
   }
@@ -434,18 +521,57 @@ public class NetworkManager {
   
   /**
    * Add a download entity for read processing.
+   * Assigned to a controller in the same way as the upload entities.
    * @param entity to add
+   * @param partition_id preferred partition, used to break ties between equally loaded controllers
    */
   public void addReadEntity( RateControlledEntity entity, int partition_id ) {
-	  if ( read_controllers.size() == 1 || partition_id < 0 ){
+	  if ( read_controllers.size() == 1 ){
 		  
 		  read_controllers.get(0).addReadEntity(entity);
 		  
 	  }else{
 		  
-		  ReadController controller = read_controllers.get((partition_id%(read_controllers.size()-1))+1 );
-
-		  controller.addReadEntity( entity );
+		  try{
+			  controllers_mon.enter();
+			  
+			  ReadController controller;
+			  
+			  if ( partition_id < 0 ){
+				  
+				  controller = read_controllers.get(0);
+				  
+			  }else{
+				  
+				  int	num 	= read_controllers.size() - 1;
+				  int	start	= partition_id % num;
+				  
+				  controller = null;
+				  
+				  for (int i=0;i<num;i++){
+					  
+					  ReadController c = read_controllers.get(((start+i)%num)+1 );
+					  
+					  if ( controller == null || c.getEntityCount() < controller.getEntityCount()){
+						  
+						  controller = c;
+					  }
+				  }
+			  }
+			  
+			  ReadController old = read_owners.put( entity, controller );
+			  
+			  if ( old != null && old != controller ){
+				  
+				  old.removeReadEntity( entity );
+			  }
+			  
+			  controller.addReadEntity( entity );
+			  
+		  }finally{
+			  
+			  controllers_mon.exit();
+		  }
 	  }
   }
   
@@ -456,14 +582,59 @@ public class NetworkManager {
    */
   public void removeReadEntity( RateControlledEntity entity ) {
 	  if ( read_controllers.size() == 1 ){
+		  
 		  read_controllers.get(0).removeReadEntity( entity );
+		  
 	  }else{
-		  for (ReadController read_controller: read_controllers ){
-			  read_controller.removeReadEntity( entity );
+		  
+		  try{
+			  controllers_mon.enter();
+			  
+			  ReadController controller = read_owners.remove( entity );
+			  
+			  if ( controller != null ){
+				  
+				  controller.removeReadEntity( entity );
+			  }
+		  }finally{
+			  
+			  controllers_mon.exit();
 		  }
 	  }
   }  
   
+  /**
+   * @return the number of entities processed by each write controller, the first one being the global entities
+   */
+  public int[]
+  getWriteControllerEntityCounts()
+  {
+	  int[]	res = new int[write_controllers.size()];
+	  
+	  for (int i=0;i<res.length;i++){
+		  
+		  res[i] = write_controllers.get(i).getEntityCount();
+	  }
+	  
+	  return( res );
+  }
+  
+  /**
+   * @return the number of entities processed by each read controller, the first one being the global entities
+   */
+  public int[]
+  getReadControllerEntityCounts()
+  {
+	  int[]	res = new int[read_controllers.size()];
+	  
+	  for (int i=0;i<res.length;i++){
+		  
+		  res[i] = read_controllers.get(i).getEntityCount();
+	  }
+	  
+	  return( res );
+  }
+  
   
   
 
@@ -22,27 +22,49 @@
 
 package org.gudy.azureus2.core3.disk.impl;
 
+import org.gudy.azureus2.core3.util.AESemaphore;
+
 public class 
 DiskManagerRecheckInstance 
 {
 	private DiskManagerRecheckScheduler	scheduler;
+	private DiskManagerHelper			helper;
+	private String						lane_key;
 	private long						metric;
 	private int							piece_length;
 	private boolean						low_priority;
 	
+	private AESemaphore	turn_sem = new AESemaphore( "DiskManagerRecheckInstance" );
+	
 	protected
 	DiskManagerRecheckInstance(
 		DiskManagerRecheckScheduler	_scheduler,
+		DiskManagerHelper			_helper,
+		String						_lane_key,
 		long						_size,
 		int							_piece_length,
 		boolean						_low_priority )
 	{
 		scheduler		= _scheduler;
+		helper			= _helper;
+		lane_key		= _lane_key;
 		metric			= (_low_priority?0:0x7000000000000000L) + _size;
 		piece_length	= _piece_length;
 		low_priority	= _low_priority;
 	}
 	
+	protected DiskManagerHelper
+	getHelper()
+	{
+		return( helper );
+	}
+	
+	protected String
+	getLaneKey()
+	{
+		return( lane_key );
+	}
+	
 	protected long
 	getMetric()
 	{
@@ -61,6 +83,19 @@ DiskManagerRecheckInstance
 		return( low_priority );
 	}
 	
+	protected void
+	wakeUp()
+	{
+		turn_sem.release();
+	}
+	
+	protected void
+	waitForTurn(
+		long		millis )
+	{
+		turn_sem.reserve( millis );
+	}
+	
 	public boolean
 	getPermission()
 	{
@@ -22,19 +22,36 @@
 
 package org.gudy.azureus2.core3.disk.impl;
 
+import java.io.File;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.config.ParameterListener;
 import org.gudy.azureus2.core3.util.AEMonitor;
 import org.gudy.azureus2.core3.util.RealTimeInfo;
 
+	/**
+	 * Orders the rechecks of the downloads. There is a lane per volume, found from the
+	 * save location of the download, the rechecks on different volumes run at the same
+	 * time while the ones on the same volume run one after the other, as they would
+	 * just compete for the disk.
+	 */
+
 public class 
 DiskManagerRecheckScheduler 
 {
+		// max time an instance waits for its turn before getPermission returns, so the
+		// callers can check if they were stopped
+	
+	private static final int	WAIT_TIME	= 250;
+	
 	private static boolean 	friendly_hashing;
 	private static boolean 	smallest_first;
 
@@ -57,8 +74,8 @@ DiskManagerRecheckScheduler
  				param_listener );
     }
     
-	private List		instances		= new ArrayList();
-	private AEMonitor	instance_mon	= new AEMonitor( "DiskManagerRecheckScheduler" );
+	private Map<String,List<DiskManagerRecheckInstance>>	lanes			= new HashMap<String,List<DiskManagerRecheckInstance>>();
+	private AEMonitor										instance_mon	= new AEMonitor( "DiskManagerRecheckScheduler" );
 	
 	
 	public DiskManagerRecheckInstance
@@ -66,30 +83,47 @@ DiskManagerRecheckScheduler
 		DiskManagerHelper	helper,
 		boolean				low_priority )
 	{
+			// outside the monitor, it can touch the disk
+		
+		String	lane_key = getLaneKey( helper.getSaveLocation());
+		
 		try{
 			instance_mon.enter();
 			
 			DiskManagerRecheckInstance	res = 
 				new DiskManagerRecheckInstance( 
 						this, 
+						helper,
+						lane_key,
 						helper.getTorrent().getSize(),
 						(int)helper.getTorrent().getPieceLength(),
 						low_priority );
 			
-			instances.add( res );
+			List<DiskManagerRecheckInstance>	lane = lanes.get( lane_key );
+			
+			if ( lane == null ){
+				
+				lane = new ArrayList<DiskManagerRecheckInstance>();
+				
+				lanes.put( lane_key, lane );
+			}
+			
+			DiskManagerRecheckInstance	old_head = lane.isEmpty()?null:lane.get(0);
+			
+			lane.add( res );
 			
 			if ( smallest_first ){
 				
 				Collections.sort(
-						instances,
-						new Comparator()
+						lane,
+						new Comparator<DiskManagerRecheckInstance>()
 						{
 							public int
 							compare(
-								Object	o1,
-								Object	o2 )
+								DiskManagerRecheckInstance	o1,
+								DiskManagerRecheckInstance	o2 )
 							{
-								long	comp = ((DiskManagerRecheckInstance)o1).getMetric() - ((DiskManagerRecheckInstance)o2).getMetric();
+								long	comp = o1.getMetric() - o2.getMetric();
 								
 								if ( comp < 0 ){
 									
@@ -106,6 +140,11 @@ DiskManagerRecheckScheduler
 						});
 			}
 			
+			if ( lane.get(0) != old_head ){
+				
+				lane.get(0).wakeUp();
+			}
+			
 			return( res );
 			
 		}finally{
@@ -119,12 +158,15 @@ DiskManagerRecheckScheduler
 		DiskManagerRecheckInstance	instance )
 	{
 		boolean	result 	= false;
-		int		delay	= 250;
+		int		delay	= 0;
+		boolean	wait	= true;
 		
 		try{
 			instance_mon.enter();
 
-			if ( instances.get(0) == instance ){
+			List<DiskManagerRecheckInstance>	lane = lanes.get( instance.getLaneKey());
+			
+			if ( lane != null && !lane.isEmpty() && lane.get(0) == instance ){
 					    
 				boolean	low_priority = instance.isLowPriority();
 				
@@ -136,6 +178,8 @@ DiskManagerRecheckScheduler
 					
 				}else{
 					
+					wait	= false;
+					
 		            if ( friendly_hashing ){
 		            	
 		            	delay	= 0;	// delay introduced elsewhere
@@ -164,7 +208,13 @@ DiskManagerRecheckScheduler
 			instance_mon.exit();
 		}
 		
-		if ( delay > 0 ){
+		if ( wait ){
+			
+				// woken up as soon as it becomes the head of its lane
+			
+			instance.waitForTurn( WAIT_TIME );
+			
+		}else if ( delay > 0 ){
 			
 			try{
 				Thread.sleep( delay );
@@ -184,10 +234,108 @@ DiskManagerRecheckScheduler
 		try{
 			instance_mon.enter();
 			
-			instances.remove( instance );
+			List<DiskManagerRecheckInstance>	lane = lanes.get( instance.getLaneKey());
+			
+			if ( lane != null ){
+				
+				boolean	was_head = !lane.isEmpty() && lane.get(0) == instance;
+				
+				lane.remove( instance );
+				
+				if ( lane.isEmpty()){
+					
+					lanes.remove( instance.getLaneKey());
+					
+				}else if ( was_head ){
+					
+					lane.get(0).wakeUp();
+				}
+			}
 		}finally{
 			
 			instance_mon.exit();
 		}	
 	}
+	
+		/**
+		 * @param helper
+		 * @return -1 if the disk manager has no recheck registered, 0 if its recheck can run, otherwise
+		 * the number of rechecks ahead of it on the same volume
+		 */
+	
+	public int
+	getQueuePosition(
+		DiskManagerHelper	helper )
+	{
+		int	result = -1;
+		
+		try{
+			instance_mon.enter();
+			
+			for ( List<DiskManagerRecheckInstance> lane: lanes.values()){
+				
+				for (int i=0;i<lane.size();i++){
+					
+					if ( lane.get(i).getHelper() == helper ){
+						
+						if ( result == -1 || i < result ){
+							
+							result = i;
+						}
+					}
+				}
+			}
+		}finally{
+			
+			instance_mon.exit();
+		}
+		
+		return( result );
+	}
+	
+		/**
+		 * Finds the volume of the location, the closest existing parent is used if it doesn't exist
+		 * yet. Partitions of the same disk are seen as different volumes.
+		 */
+	
+	protected static String
+	getLaneKey(
+		File		location )
+	{
+		if ( location == null ){
+			
+			return( "" );
+		}
+		
+		File	file = location.getAbsoluteFile();
+		
+		while( file != null && !file.exists()){
+			
+			file = file.getParentFile();
+		}
+		
+		if ( file != null ){
+			
+			try{
+				FileStore	store = Files.getFileStore( file.toPath());
+				
+					// the name alone can be an empty volume label on windows
+				
+				return( store.toString() + ":" + store.name());
+				
+			}catch( Throwable e ){
+			}
+		}
+		
+			// fall back to the root of the path
+		
+		File	root = location.getAbsoluteFile();
+		
+		while( root.getParentFile() != null ){
+			
+			root = root.getParentFile();
+		}
+		
+		return( root.getPath());
+	}
 }
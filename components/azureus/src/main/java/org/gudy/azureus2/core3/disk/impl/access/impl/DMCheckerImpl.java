@@ -699,6 +699,8 @@ DMCheckerImpl
 		   	
 		   	read_request.setUseCache( !request.isAdHoc());
 		   	
+		   	final long	read_start = SystemTime.getMonotonousTime();
+		   	
 			disk_manager.enqueueReadRequest( 
 				read_request,
 				new DiskManagerReadRequestListener()
@@ -710,6 +712,10 @@ DMCheckerImpl
 					{
 						complete();
 						
+							// lets the hasher throttle the friendly checks by the disk speed
+						
+						ConcurrentHasher.getSingleton().readCompleted( SystemTime.getMonotonousTime() - read_start );
+						
 					   	try{
 					   		this_mon.enter();
 					   	
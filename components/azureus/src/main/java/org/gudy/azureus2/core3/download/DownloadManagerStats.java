@@ -63,6 +63,23 @@ DownloadManagerStats
    */
 	public int
 	getDownloadCompleted(boolean bLive);
+
+		/**
+		 * @return -1 if no recheck is in progress, otherwise the progress of the recheck
+		 * in 1000 notation, either the initial check or the one after the download completes
+		 */
+	
+	public int
+	getRecheckProgress();
+	
+		/**
+		 * Rechecks of downloads on the same volume run one after the other
+		 * @return -1 if the download isn't rechecking, 0 if its recheck is running, otherwise
+		 * the number of rechecks waiting to run before it
+		 */
+	
+	public int
+	getRecheckQueuePosition();
 	
 	public void 
 	setDownloadCompleted(int completed);
@@ -31,6 +31,7 @@ import org.gudy.azureus2.core3.torrent.TOTorrent;
 import org.gudy.azureus2.core3.util.IndentWriter;
 import org.gudy.azureus2.core3.util.SystemTime;
 import org.gudy.azureus2.core3.disk.*;
+import org.gudy.azureus2.core3.disk.impl.DiskManagerHelper;
 
 public class 
 DownloadManagerStatsImpl 
@@ -165,6 +166,39 @@ DownloadManagerStatsImpl
 	  }
 	}
 
+	public int
+	getRecheckProgress()
+	{
+		DiskManager	dm = download_manager.getDiskManager();
+		
+		if ( dm == null ){
+			
+			return( -1 );
+		}
+		
+		if ( dm.getState() == DiskManager.CHECKING ){
+			
+			return( dm.getPercentDone());
+		}
+		
+		return( dm.getCompleteRecheckStatus());
+	}
+	
+	public int
+	getRecheckQueuePosition()
+	{
+		DiskManager	dm = download_manager.getDiskManager();
+		
+		if ( dm instanceof DiskManagerHelper ){
+			
+			DiskManagerHelper	helper = (DiskManagerHelper)dm;
+			
+			return( helper.getRecheckScheduler().getQueuePosition( helper ));
+		}
+		
+		return( -1 );
+	}
+	
 	public void setCompleted(int _completed) {
 	  completed = _completed;
 	}
@@ -672,7 +706,8 @@ DownloadManagerStatsImpl
 				",comp=" + getCompleted() 
 				+ "[live:" + getDownloadCompleted(true) + "/" + getDownloadCompleted( false) 
 				+ "],dl_comp=" + downloadCompleted
-				+ ",remaining=" + getRemaining());
+				+ ",remaining=" + getRemaining()
+				+ ",recheck=" + getRecheckProgress() + "/" + getRecheckQueuePosition());
 	
 		}finally{
 			
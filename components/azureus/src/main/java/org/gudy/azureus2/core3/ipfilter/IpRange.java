@@ -86,37 +86,37 @@ IpRange
 	long getStartIpLong();
 
 	/**
-	 * @return
+	 * @deprecated the ranges are merged by IPAddressRangeManager, returns the end of the range
 	 */
 	public long getMergedEndLong();
 
 	/**
-	 * @return
+	 * @deprecated the ranges are merged by IPAddressRangeManager, returns null
 	 */
 	public IpRange[] getMergedEntries();
 
 	/**
-	 * 
+	 * @deprecated the ranges are merged by IPAddressRangeManager, does nothing
 	 */
 	public void resetMergeInfo();
 
 	/**
-	 * @return
+	 * @deprecated the ranges are merged by IPAddressRangeManager, returns false
 	 */
 	public boolean getMerged();
 
 	/**
-	 * 
+	 * @deprecated the ranges are merged by IPAddressRangeManager, does nothing
 	 */
 	public void setMerged();
 
 	/**
-	 * @param endIpLong
+	 * @deprecated the ranges are merged by IPAddressRangeManager, does nothing
 	 */
 	public void setMergedEnd(long endIpLong);
 
 	/**
-	 * @param e2
+	 * @deprecated the ranges are merged by IPAddressRangeManager, does nothing
 	 */
 	public void addMergedEntry(IpRange e2);
 
@@ -47,10 +47,12 @@ IPAddressRangeManager
 	
 	protected long		total_span;
 	
-	protected boolean	rebuild_required;
-	protected long		last_rebuild_time;
+	protected volatile boolean	rebuild_required;
+	protected long				last_rebuild_time;
 	
-	protected IpRange[] mergedRanges = new IpRange[0];
+		// lookups only read the current snapshot, a rebuild replaces it as a whole
+	
+	protected volatile RangeSnapshot	snapshot = new RangeSnapshot();
 	
 	protected AEMonitor	this_mon	= new AEMonitor( "IPAddressRangeManager" );
 
@@ -104,26 +106,18 @@ IPAddressRangeManager
 			return( null );
 		}
 		
-		try{
-			this_mon.enter();
+		long address_long = addressToInt( ip );
 			
-			long address_long = addressToInt( ip );
-			
-			if ( address_long < 0 ){
+		if ( address_long < 0 ){
 				
-				address_long += 0x100000000L;
-			}
-			
-			Object res = isInRange( address_long );
+			address_long += 0x100000000L;
+		}
 			
-			// LGLogger.log( "IPAddressRangeManager: checking '" + ip + "' against " + entries.size() + "/" + merged_entries.length + " -> " + res );
+		Object res = isInRange( address_long );
 			
-			return( res );
-						
-		}finally{
+		// LGLogger.log( "IPAddressRangeManager: checking '" + ip + "' against " + entries.size() + "/" + merged_entries.length + " -> " + res );
 			
-			this_mon.exit();
-		}
+		return( res );
 	}
 	
 	public Object
@@ -137,126 +131,30 @@ IPAddressRangeManager
 			return( null );
 		}
 		
-		try{
-			this_mon.enter();
-			
-			long address_long = addressToInt( ip );
+		long address_long = addressToInt( ip );
 			
-			if ( address_long < 0 ){
+		if ( address_long < 0 ){
 				
-				address_long += 0x100000000L;
-			}
-			
-			Object res = isInRange( address_long );
+			address_long += 0x100000000L;
+		}
 			
-			// LGLogger.log( "IPAddressRangeManager: checking '" + ip + "' against " + entries.size() + "/" + merged_entries.length + " -> " + res );
+		Object res = isInRange( address_long );
 			
-			return( res );
-						
-		}finally{
+		// LGLogger.log( "IPAddressRangeManager: checking '" + ip + "' against " + entries.size() + "/" + merged_entries.length + " -> " + res );
 			
-			this_mon.exit();
-		}
+		return( res );
 	}
 	
 	protected Object
 	isInRange(
 		long	address_long )
 	{
-		try{
-			this_mon.enter();
+		if ( rebuild_required ){
 			
 			checkRebuild();
-			
-			if ( mergedRanges.length == 0 ){
-				
-				return( null );
-			}
-				
-				// assisted binary chop 
-			
-			int	bottom 	= 0;
-			int	top		= mergedRanges.length-1;
-			
-			int	current	= -1;
-			
-			while( top >= 0 && bottom < mergedRanges.length && bottom <= top){
-				
-				current = (bottom+top)/2;
-				
-				IpRange	e = mergedRanges[current];
-				
-				long	this_start 	= e.getStartIpLong();
-				long 	this_end	= e.getMergedEndLong();
-				
-				if ( address_long == this_start ){
-					
-					break;
-					
-				}else if ( address_long > this_start ){
-					
-					if ( address_long <= this_end ){
-						
-						break;
-					}
-					
-						// lies to the right of this entry
-					
-					bottom	= current + 1;
-					
-				}else if ( address_long == this_end ){
-					
-					break;
-					
-				}else{
-					// < this_end
-					
-					if ( address_long >= this_start ){
-						
-						break;
-					}
-					
-					top = current - 1;
-				}
-			}
-			
-			if ( top >= 0 && bottom < mergedRanges.length && bottom <= top ){
-	
-				IpRange	e = mergedRanges[current];
-			
-				if ( address_long <= e.getEndIpLong()){
-					
-					return( e );
-				}
-				
-				IpRange[]	merged = e.getMergedEntries();
-				
-				if ( merged == null ){
-					
-					Debug.out( "IPAddressRangeManager: inconsistent merged details - no entries" );
-					
-					return( null );
-				}
-				
-				for (int i=0;i<merged.length;i++){
-					
-					IpRange	me = merged[i];
-					
-					if ( me.getStartIpLong() <= address_long && me.getEndIpLong() >= address_long ){
-						
-						return( me );
-					}
-				}
-				
-				Debug.out( "IPAddressRangeManager: inconsistent merged details - entry not found" );
-			}
-			
-			return( null );
-			
-		}finally{
-			
-			this_mon.exit();
 		}
+		
+		return( snapshot.lookup( flip((int)address_long )));
 	}
 	
 	protected int
@@ -323,132 +221,126 @@ IPAddressRangeManager
 		
 		entries.toArray(ents);
 		
-		for (int i=0;i<ents.length;i++){
-			
-			ents[i].resetMergeInfo();
-		}
+			// sort on the start address, the index of the entry goes in the low bits
+			// so this is a primitive sort with no per entry objects
 		
-			// sort based on start address
-		
-		Arrays.sort( 
-			ents,
-			new Comparator()
-			{
-				public int 
-				compare(
-					Object o1, 
-					Object o2 )
-				{
-					IpRange	e1 = (IpRange)o1;
-					IpRange 	e2 = (IpRange)o2;
-					
-					long diff = e1.getStartIpLong() - e2.getStartIpLong();
-					if (diff == 0) {
-						diff = e2.getEndIpLong() - e1.getEndIpLong();
-					}
-
-					return signum(diff);
-				}
-				
-				public boolean 
-				equals(Object obj)
-				{
-					return( false );
-				}
-			});
-		
-			// now merge overlapping ranges
-		
-		List me = new ArrayList( ents.length );
+		long[]	keys 	= new long[ents.length];
+		int		num		= 0;
 		
 		for (int i=0;i<ents.length;i++){
 			
-			IpRange	entry = ents[i];
+			IpRange	e = ents[i];
 			
-			if ( entry.getMerged()){
+			if ( e.getStartIpLong() < 0 || e.getEndIpLong() < 0 ){
 				
 				continue;
 			}
 			
-			me.add( entry );
+			keys[num++] = ((long)flip((int)e.getStartIpLong()) << 32 ) | i;
+		}
+		
+		Arrays.sort( keys, 0, num );
+		
+		int[]		starts 	= new int[num];
+		int[]		ends	= new int[num];
+		IpRange[]	ranges	= new IpRange[num];
+		
+		for (int i=0;i<num;i++){
 			
-			int	pos = i+1;
+			IpRange	e = ents[(int)keys[i]];
 			
-			while( pos < ents.length ){
-				
-				long	end_pos = entry.getMergedEndLong();
-				
-				IpRange	e2 = ents[pos++];
+			starts[i]	= flip((int)e.getStartIpLong());
+			ends[i]		= flip((int)e.getEndIpLong());
+			ranges[i]	= e;
+		}
+		
+		keys = null;
+		
+			// now merge overlapping ranges into groups of consecutive entries
+		
+		int[]	group_starts 	= new int[num];
+		int[]	group_ends		= new int[num];
+		int[]	group_firsts	= new int[num+1];
+		int		groups			= 0;
+		
+		for (int i=0;i<num;i++){
+			
+			if ( groups > 0 && group_ends[groups-1] >= starts[i] ){
 				
-				if (!e2.getMerged()){
+				if ( ends[i] > group_ends[groups-1] ){
 					
-					if ( end_pos >= e2.getStartIpLong()){
-						
-						e2.setMerged();
-						
-						if ( e2.getEndIpLong() > end_pos ){
-							
-							entry.setMergedEnd( e2.getEndIpLong() );
-							
-							entry.addMergedEntry( e2 );
-						}
-					}else{
-						
-						break;
-					}	
+					group_ends[groups-1] = ends[i];
 				}
+			}else{
+				
+				group_starts[groups]	= starts[i];
+				group_ends[groups]		= ends[i];
+				group_firsts[groups]	= i;
+				
+				groups++;
 			}
 		}
 		
-		/*
-		for (int i=0;i<ents.length;i++){
-			
-			entry	e = ents[i];
-			
-			System.out.println( Long.toHexString(e.getStart()) + " - " + Long.toHexString(e.getEnd()) + ": " + e.getMerged() + "/" + Long.toHexString(e.getMergedEnd()));
-		}
-		*/
-		
-		mergedRanges = new IpRange[me.size()];
-		
-		me.toArray( mergedRanges );
+		group_firsts[groups] = num;
 		
 		total_span	= 0;
 		
-		for (int i=0;i<mergedRanges.length;i++){
-			
-			IpRange	e = mergedRanges[i];
+		for (int i=0;i<groups;i++){
 			
 				// span is inclusive
 			
-			long	span = ( e.getMergedEndLong() - e.getStartIpLong()) + 1;
+			long	span = ( unflip( group_ends[i] ) - unflip( group_starts[i] )) + 1;
 			
 			total_span	+= span;
 		}
-			//	System.out.println( "non_merged = " + merged_entries.length );
+		
+		snapshot = 
+			new RangeSnapshot( 
+				starts, ends, ranges, 
+				trim( group_starts, groups ), trim( group_ends, groups ), trim( group_firsts, groups+1 ));
 		
 		if (Logger.isEnabled())
 			Logger.log(new LogEvent(LOGID, "IPAddressRangeManager: rebuilding "
-					+ entries.size() + " entries ends"));
+					+ entries.size() + " entries ends, " + groups + " merged" ));
 
 	}
 	
-	/**
-	 * @param diff
-	 * @return
-	 */
-	protected int signum(long diff) {
-		if (diff > 0) {
-			return 1;
+	private static int[]
+	trim(
+		int[]	array,
+		int		len )
+	{
+		if ( array.length == len ){
+			
+			return( array );
 		}
 		
-		if (diff < 0) {
-			return -1;
-		}
-
-		return 0;
+		int[]	res = new int[len];
+		
+		System.arraycopy( array, 0, res, 0, len );
+		
+		return( res );
 	}
-
+	
+		/**
+		 * Flips the sign bit, so that the signed order of the result is the unsigned
+		 * order of the address
+		 */
+	
+	protected static int
+	flip(
+		int		address )
+	{
+		return( address ^ 0x80000000 );
+	}
+	
+	protected static long
+	unflip(
+		int		flipped )
+	{
+		return(((long)( flipped ^ 0x80000000 )) & 0xffffffffL );
+	}
+	
 	protected long
 	getTotalSpan()
 	{
@@ -584,4 +476,105 @@ IPAddressRangeManager
 			this_mon.exit();
 		}
 	}
+	
+		/**
+		 * Immutable view of the ranges for the lookups. All the addresses are flipped,
+		 * the ranges are sorted on the start address and each group holds the
+		 * consecutive ranges that overlap, with the highest end of them 
+		 */
+	
+	protected static class
+	RangeSnapshot
+	{
+		private final int[]		starts;
+		private final int[]		ends;
+		private final IpRange[]	ranges;
+		
+		private final int[]		group_starts;
+		private final int[]		group_ends;
+		private final int[]		group_firsts;
+		
+		protected
+		RangeSnapshot()
+		{
+			this( new int[0], new int[0], new IpRange[0], new int[0], new int[0], new int[]{ 0 });
+		}
+		
+		protected
+		RangeSnapshot(
+			int[]		_starts,
+			int[]		_ends,
+			IpRange[]	_ranges,
+			int[]		_group_starts,
+			int[]		_group_ends,
+			int[]		_group_firsts )
+		{
+			starts			= _starts;
+			ends			= _ends;
+			ranges			= _ranges;
+			group_starts	= _group_starts;
+			group_ends		= _group_ends;
+			group_firsts	= _group_firsts;
+		}
+		
+		protected IpRange
+		lookup(
+			int		address )
+		{
+			int	group = lastStartAtOrBefore( group_starts, 0, group_starts.length, address );
+			
+			if ( group < 0 || address > group_ends[group] ){
+				
+				return( null );
+			}
+			
+			int	first	= group_firsts[group];
+			int	last	= lastStartAtOrBefore( starts, first, group_firsts[group+1], address );
+			
+			for (int i=last;i>=first;i--){
+				
+				if ( ends[i] >= address ){
+					
+					return( ranges[i] );
+				}
+			}
+			
+			Debug.out( "IPAddressRangeManager: inconsistent merged details - entry not found" );
+			
+			return( null );
+		}
+		
+		protected int
+		size()
+		{
+			return( ranges.length );
+		}
+		
+		private static int
+		lastStartAtOrBefore(
+			int[]	array,
+			int		from,
+			int		to,
+			int		address )
+		{
+			int	bottom 	= from;
+			int	top		= to - 1;
+			
+			while( bottom <= top ){
+				
+				int	current = ( bottom + top ) >>> 1;
+				
+				if ( array[current] <= address ){
+					
+					bottom = current + 1;
+					
+				}else{
+					
+					top = current - 1;
+				}
+			}
+			
+			return( top >= from ? top : -1 );
+		}
+	}
 }
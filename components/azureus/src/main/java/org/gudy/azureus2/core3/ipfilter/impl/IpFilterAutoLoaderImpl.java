@@ -24,8 +24,9 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -33,7 +34,6 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
-import org.gudy.azureus2.core3.ipfilter.IpRange;
 import org.gudy.azureus2.core3.logging.LogEvent;
 import org.gudy.azureus2.core3.logging.LogIDs;
 import org.gudy.azureus2.core3.logging.Logger;
@@ -61,6 +61,10 @@ public class IpFilterAutoLoaderImpl
 	
 	public static final String CFG_AUTOLOAD_FILE = "Ip Filter Autoload File";
   
+	// parsed ranges of the autoload file, so the next start skips the parsing
+	private static final String CACHE_FILE = "ipfilter.bin";
+
+	private static final int CACHE_VERSION = 1;
 
 	private static AEMonitor class_mon = new AEMonitor(
 			"IpFilterAutoLoaderImpl:class");
@@ -82,12 +86,10 @@ public class IpFilterAutoLoaderImpl
 	 *
 	 * @since 3.0.1.5
 	 */
-	private void loadDATFilters(InputStream fin) {
+	private void loadDATFilters(InputStream fin, FilterCache cache) {
 		try {
 			class_mon.enter();
 
-			List new_ipRanges = new ArrayList(1024);
-
 			InputStreamReader streamReader = null;
 			BufferedReader reader = null;
 			try {
@@ -193,16 +195,13 @@ public class IpFilterAutoLoaderImpl
 						continue;
 					}
 
-					IpRangeImpl ipRange = new IpRangeImpl(description, startIp, endIp,
-							true);
-
-					//System.out.println(parseMode + ":" + description + ";" + ipRange.getStartIp());
-					ipRange.setAddedToRangeList(true);
-
-					new_ipRanges.add(ipRange);
+					addRange(description, startIp, endIp, cache);
 				}
 			} catch (IOException e) {
 				Debug.out(e);
+				if (cache != null) {
+					cache.abandon();
+				}
 			} finally {
 
 				if (reader != null) {
@@ -218,13 +217,6 @@ public class IpFilterAutoLoaderImpl
 					}
 				}
 
-				Iterator it = new_ipRanges.iterator();
-
-				while (it.hasNext()) {
-
-					((IpRange) it.next()).checkValid();
-				}
-
 				ipFilter.markAsUpToDate();
 			}
 		} finally {
@@ -274,8 +266,6 @@ public class IpFilterAutoLoaderImpl
 		try {
 			class_mon.enter();
 
-			List new_ipRanges = new ArrayList(1024);
-
 			InputStream fin = null;
 			BufferedInputStream bin = null;
 			boolean isURL = false;
@@ -319,6 +309,12 @@ public class IpFilterAutoLoaderImpl
 					}
 				}
 
+				if (loadCachedFilters(filtersFile)) {
+					return;
+				}
+
+				File sourceFile = filtersFile;
+
 				fin = new FileInputStream(filtersFile);
 				bin = new BufferedInputStream(fin, 16384);
 
@@ -359,7 +355,9 @@ public class IpFilterAutoLoaderImpl
 
 				if (p2bVersion < 1 || p2bVersion > 3) {
 					bin.reset();
-					loadDATFilters(bin);
+					FilterCache cache = new FilterCache();
+					loadDATFilters(bin, cache);
+					cache.write(sourceFile);
 					return;
 				}
 
@@ -368,6 +366,7 @@ public class IpFilterAutoLoaderImpl
 				String encoding = p2bVersion == 1 ? "ISO-8859-1" : "UTF-8";
 
 				if (p2bVersion == 1 || p2bVersion == 2) {
+					FilterCache cache = new FilterCache();
 					while (true) {
 						String description = readString(bin, descBytes, encoding);
 
@@ -382,58 +381,11 @@ public class IpFilterAutoLoaderImpl
 						}
 						int endIp = ByteFormatter.byteArrayToInt(ipBytes);
 
-						IpRangeImpl ipRange = new IpRangeImpl(description, startIp, endIp,
-								true);
-
-						ipRange.setAddedToRangeList(true);
-
-						new_ipRanges.add(ipRange);
-					}
-				} else { // version 3
-					int read = bin.read(ipBytes);
-					if (read < 4) {
-						return;
-					}
-					int numDescs = ByteFormatter.byteArrayToInt(ipBytes);
-					String[] descs = new String[numDescs];
-					for (int i = 0; i < numDescs; i++) {
-						descs[i] = readString(bin, descBytes, encoding);
-					}
-
-					read = bin.read(ipBytes);
-					if (read < 4) {
-						return;
-					}
-					int numRanges = ByteFormatter.byteArrayToInt(ipBytes);
-					for (int i = 0; i < numRanges; i++) {
-						read = bin.read(ipBytes);
-						if (read < 4) {
-							return;
-						}
-						int descIdx = ByteFormatter.byteArrayToInt(ipBytes);
-
-						read = bin.read(ipBytes);
-						if (read < 4) {
-							return;
-						}
-						int startIp = ByteFormatter.byteArrayToInt(ipBytes);
-
-						read = bin.read(ipBytes);
-						if (read < 4) {
-							return;
-						}
-						int endIp = ByteFormatter.byteArrayToInt(ipBytes);
-
-						String description = descIdx < descs.length && descIdx >= 0
-								? descs[descIdx] : "";
-
-						IpRangeImpl ipRange = new IpRangeImpl(description, startIp, endIp,
-								true);
-
-						ipRange.setAddedToRangeList(true);
-
-						new_ipRanges.add(ipRange);
+						addRange(description, startIp, endIp, cache);
 					}
+					cache.write(sourceFile);
+				} else { // version 3, already as compact as the cache
+					loadP2BV3Filters(bin, encoding);
 				}
 			} catch (IOException e) {
 				Debug.out(e);
@@ -452,13 +404,6 @@ public class IpFilterAutoLoaderImpl
 					}
 				}
 
-				Iterator it = new_ipRanges.iterator();
-
-				while (it.hasNext()) {
-
-					((IpRange) it.next()).checkValid();
-				}
-
 				ipFilter.markAsUpToDate();
 
 				if (!isURL) {
@@ -471,6 +416,304 @@ public class IpFilterAutoLoaderImpl
 		}
 	}
 
+	/**
+	 * Reads the ranges of a p2b version 3 stream, positioned after the header.
+	 */
+	private void loadP2BV3Filters(BufferedInputStream bin, String encoding)
+			throws IOException {
+		byte[] descBytes = new byte[255];
+		byte[] ipBytes = new byte[4];
+
+		int read = bin.read(ipBytes);
+		if (read < 4) {
+			return;
+		}
+		int numDescs = ByteFormatter.byteArrayToInt(ipBytes);
+		String[] descs = new String[numDescs];
+		for (int i = 0; i < numDescs; i++) {
+			descs[i] = readString(bin, descBytes, encoding);
+		}
+
+		read = bin.read(ipBytes);
+		if (read < 4) {
+			return;
+		}
+		int numRanges = ByteFormatter.byteArrayToInt(ipBytes);
+		for (int i = 0; i < numRanges; i++) {
+			read = bin.read(ipBytes);
+			if (read < 4) {
+				return;
+			}
+			int descIdx = ByteFormatter.byteArrayToInt(ipBytes);
+
+			read = bin.read(ipBytes);
+			if (read < 4) {
+				return;
+			}
+			int startIp = ByteFormatter.byteArrayToInt(ipBytes);
+
+			read = bin.read(ipBytes);
+			if (read < 4) {
+				return;
+			}
+			int endIp = ByteFormatter.byteArrayToInt(ipBytes);
+
+			String description = descIdx < descs.length && descIdx >= 0
+					? descs[descIdx] : "";
+
+			addRange(description, startIp, endIp, null);
+		}
+	}
+
+	/**
+	 * Adds the range to the filter as soon as it's parsed, so no list of all
+	 * the ranges of the file is kept while loading.
+	 */
+	private void addRange(String description, int startIp, int endIp,
+			FilterCache cache) {
+		IpRangeImpl ipRange = new IpRangeImpl(description, startIp, endIp, true);
+
+		ipRange.setAddedToRangeList(true);
+		ipRange.checkValid();
+
+		if (cache != null && ipRange.isValid()) {
+			cache.add(description, startIp, endIp);
+		}
+	}
+
+	private void addRange(String description, String startIp, String endIp,
+			FilterCache cache) {
+		long start = parseAddress(startIp);
+		long end = parseAddress(endIp);
+
+		if (start >= 0 && end >= 0) {
+			addRange(description, (int) start, (int) end, cache);
+			return;
+		}
+
+		// not a plain dotted address, let the range resolve it
+		IpRangeImpl ipRange = new IpRangeImpl(description, startIp, endIp, true);
+
+		ipRange.setAddedToRangeList(true);
+		ipRange.checkValid();
+
+		if (cache != null && ipRange.isValid()) {
+			// a host name could resolve to something else next time
+			cache.abandon();
+		}
+	}
+
+	/**
+	 * Parses a dotted IPv4 address without going through InetAddress.
+	 *
+	 * @return the address as an unsigned value, or -1 if it's not a dotted address
+	 */
+	private static long parseAddress(String address) {
+		int len = address.length();
+		if (len < 7 || len > 15) {
+			return -1;
+		}
+
+		long result = 0;
+		int part = 0;
+		int digits = 0;
+		int dots = 0;
+
+		for (int i = 0; i < len; i++) {
+			char c = address.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || ++dots > 3) {
+					return -1;
+				}
+				result = (result << 8) | part;
+				part = 0;
+				digits = 0;
+			} else if (c >= '0' && c <= '9') {
+				part = part * 10 + (c - '0');
+				if (++digits > 3 || part > 255) {
+					return -1;
+				}
+			} else {
+				return -1;
+			}
+		}
+
+		if (digits == 0 || dots != 3) {
+			return -1;
+		}
+
+		return (result << 8) | part;
+	}
+
+	/**
+	 * Loads the ranges from the binary cache if it was written for this very
+	 * version of the file.
+	 *
+	 * @return true if the ranges were loaded from the cache
+	 */
+	private boolean loadCachedFilters(File sourceFile) {
+		File cacheFile = FileUtil.getUserFile(CACHE_FILE);
+		if (!cacheFile.exists()) {
+			return false;
+		}
+
+		BufferedInputStream bin = null;
+		try {
+			bin = new BufferedInputStream(new FileInputStream(cacheFile), 65536);
+			DataInputStream din = new DataInputStream(bin);
+
+			if (din.readInt() != CACHE_VERSION
+					|| !din.readUTF().equals(sourceFile.getAbsolutePath())
+					|| din.readLong() != sourceFile.length()
+					|| din.readLong() != sourceFile.lastModified()) {
+				return false;
+			}
+
+			if (getP2BFileVersion(bin) != 3) {
+				return false;
+			}
+
+			long startTime = SystemTime.getMonotonousTime();
+
+			loadP2BV3Filters(bin, "UTF-8");
+
+			Logger.log(new LogEvent(LOGID, "IP Filter: loaded " + sourceFile
+					+ " from cache in " + (SystemTime.getMonotonousTime() - startTime)
+					+ "ms"));
+
+			return true;
+		} catch (IOException e) {
+			Debug.out(e);
+			return false;
+		} finally {
+			if (bin != null) {
+				try {
+					bin.close();
+				} catch (Throwable e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ranges of a text or p2b version 1/2 file, in primitive arrays, to be
+	 * written as the binary cache of the file. The cache is a p2b version 3
+	 * file with a header identifying the source file, with each description
+	 * written once.
+	 */
+	private static class FilterCache
+	{
+		private final Map<String, Integer> descIndexes = new HashMap<String, Integer>();
+
+		private final List<String> descs = new ArrayList<String>();
+
+		private int[] ranges = new int[3 * 1024];
+
+		private int numRanges;
+
+		private boolean abandoned;
+
+		public void add(String description, int startIp, int endIp) {
+			if (abandoned) {
+				return;
+			}
+
+			Integer index = descIndexes.get(description);
+			if (index == null) {
+				index = new Integer(descs.size());
+				descIndexes.put(description, index);
+				descs.add(description);
+			}
+
+			if (numRanges * 3 + 3 > ranges.length) {
+				int[] newRanges = new int[ranges.length * 2];
+				System.arraycopy(ranges, 0, newRanges, 0, numRanges * 3);
+				ranges = newRanges;
+			}
+
+			int pos = numRanges * 3;
+			ranges[pos] = index.intValue();
+			ranges[pos + 1] = startIp;
+			ranges[pos + 2] = endIp;
+			numRanges++;
+		}
+
+		public void abandon() {
+			abandoned = true;
+			descIndexes.clear();
+			descs.clear();
+			ranges = null;
+		}
+
+		public void write(File sourceFile) {
+			File cacheFile = FileUtil.getUserFile(CACHE_FILE);
+
+			if (abandoned || numRanges == 0) {
+				cacheFile.delete();
+				return;
+			}
+
+			File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+
+			DataOutputStream dos = null;
+			try {
+				dos = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(tempFile), 65536));
+
+				dos.writeInt(CACHE_VERSION);
+				dos.writeUTF(sourceFile.getAbsolutePath());
+				dos.writeLong(sourceFile.length());
+				dos.writeLong(sourceFile.lastModified());
+
+				dos.write(new byte[] {
+					(byte) 255,
+					(byte) 255,
+					(byte) 255,
+					(byte) 255,
+					'P',
+					'2',
+					'B',
+					3
+				});
+
+				dos.writeInt(descs.size());
+				for (int i = 0; i < descs.size(); i++) {
+					byte[] bytes = descs.get(i).getBytes("UTF-8");
+					// the reader stops at the first 0 and keeps 254 bytes at most
+					int len = 0;
+					while (len < bytes.length && len < 254 && bytes[len] != 0) {
+						len++;
+					}
+					dos.write(bytes, 0, len);
+					dos.write(0);
+				}
+
+				dos.writeInt(numRanges);
+				for (int i = 0; i < numRanges * 3; i++) {
+					dos.writeInt(ranges[i]);
+				}
+
+				dos.close();
+				dos = null;
+
+				cacheFile.delete();
+				if (!tempFile.renameTo(cacheFile)) {
+					tempFile.delete();
+				}
+			} catch (IOException e) {
+				Debug.out(e);
+				tempFile.delete();
+			} finally {
+				if (dos != null) {
+					try {
+						dos.close();
+					} catch (Throwable e) {
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * 
 	 *
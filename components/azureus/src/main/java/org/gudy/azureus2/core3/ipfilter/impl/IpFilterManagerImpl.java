@@ -31,6 +31,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.config.ParameterListener;
@@ -48,6 +50,22 @@ IpFilterManagerImpl
 
 	private RandomAccessFile rafDescriptions = null;
 	
+		// blocklists repeat the same descriptions over and over, so the most recent
+		// ones are remembered and their ranges share the stored copy
+	
+	private static final int MAX_RECENT_DESCRIPTIONS = 1024;
+	
+	private final Map<String,Integer> recentDescriptions = 
+		new LinkedHashMap<String,Integer>(MAX_RECENT_DESCRIPTIONS, 0.75f, true)
+		{
+			protected boolean 
+			removeEldestEntry(
+				Map.Entry<String,Integer> eldest ) 
+			{
+				return( size() > MAX_RECENT_DESCRIPTIONS );
+			}
+		};
+	
 	/**
 	 * 
 	 */
@@ -66,6 +84,20 @@ IpFilterManagerImpl
 			if (description == null || description.length == 0)
 				return null;
 
+			int stored_len = Math.min( description.length, 61 );
+			
+			String key = new String( description, 0, stored_len, "ISO-8859-1" );
+			
+			synchronized( recentDescriptions ){
+				
+				Integer existing = recentDescriptions.get( key );
+				
+				if ( existing != null ){
+					
+					return( existing );
+				}
+			}
+			
 			int start;
 			int end;
 			start = (int)rafDescriptions.getFilePointer();
@@ -97,7 +129,14 @@ IpFilterManagerImpl
 			
 			int info = start + ((end - start) << 25);
 			
-			return new Integer(info);
+			Integer res = new Integer(info);
+			
+			synchronized( recentDescriptions ){
+				
+				recentDescriptions.put( key, res );
+			}
+			
+			return res;
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -162,6 +201,10 @@ IpFilterManagerImpl
 	}
 	
 	public void deleteAllDescriptions() {
+		synchronized( recentDescriptions ){
+			recentDescriptions.clear();
+		}
+		
 		if (rafDescriptions != null) {
   		try {
   			rafDescriptions.close();
@@ -205,6 +248,9 @@ IpFilterManagerImpl
 				e.printStackTrace();
 			}
 		} else if (!enable && rafDescriptions != null) {
+			synchronized( recentDescriptions ){
+				recentDescriptions.clear();
+			}
 			try {
 				rafDescriptions.close();
 			} catch (IOException e) {
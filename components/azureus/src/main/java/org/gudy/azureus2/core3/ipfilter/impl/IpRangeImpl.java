@@ -52,13 +52,6 @@ public class IpRangeImpl implements IpRange
 
 	private Object descRef = null;
 
-	// Merging stuff 
-	private final static byte FLAG_MERGED = 0x4;
-
-	private int merged_end;
-
-	private IpRange[] my_merged_entries;
-
 	public IpRangeImpl(String _description, String _startIp, String _endIp,
 			boolean _sessionOnly) {
 		if (_sessionOnly) {
@@ -318,48 +311,26 @@ public class IpRangeImpl implements IpRange
 	}
 
 	public long getMergedEndLong() {
-		return (merged_end < 0 ? (merged_end + 0x100000000L) : merged_end);
+		return getEndIpLong();
 	}
 
 	public IpRange[] getMergedEntries() {
-		return (my_merged_entries);
+		return null;
 	}
 
 	public void resetMergeInfo() {
-		flags &= ~FLAG_MERGED;
-
-		if ((flags & FLAG_INVALID_END) == 0) {
-			merged_end = ipEnd;
-		}
 	}
 
 	public boolean getMerged() {
-		return (flags & FLAG_MERGED) != 0;
+		return false;
 	}
 
 	public void setMerged() {
-		flags |= FLAG_MERGED;
 	}
 
 	public void setMergedEnd(long endIpLong) {
-		merged_end = (int) (endIpLong >= 0x100000000L ? endIpLong - 0x100000000L
-				: endIpLong);
 	}
 
 	public void addMergedEntry(IpRange e2) {
-		if (my_merged_entries == null) {
-
-			my_merged_entries = new IpRange[] { e2 };
-
-		} else {
-
-			IpRange[] x = new IpRange[my_merged_entries.length + 1];
-
-			System.arraycopy(my_merged_entries, 0, x, 0, my_merged_entries.length);
-
-			x[x.length - 1] = e2;
-
-			my_merged_entries = x;
-		}
 	}
 }
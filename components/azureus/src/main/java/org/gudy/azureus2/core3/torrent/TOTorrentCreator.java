@@ -30,6 +30,12 @@ package org.gudy.azureus2.core3.torrent;
 public interface 
 TOTorrentCreator 
 {
+		// how the files are read when hashing the pieces
+	
+	public static final int	IO_MODE_STREAM	= 0;	// streams into heap buffers, the default
+	public static final int	IO_MODE_MMAP	= 1;	// files mapped, the pieces hashed from the mapping
+	public static final int	IO_MODE_DIRECT	= 2;	// file channel reads into direct buffers
+	
 	public TOTorrent
 	create()
 	
@@ -38,6 +44,14 @@ TOTorrentCreator
 	public void
 	cancel();
 	
+		/**
+		 * @param io_mode one of the IO_MODE_ constants, to be set before create
+		 */
+	
+	public void
+	setIOMode(
+		int		io_mode );
+	
 	public void
 	addListener(
 		TOTorrentProgressListener	listener );
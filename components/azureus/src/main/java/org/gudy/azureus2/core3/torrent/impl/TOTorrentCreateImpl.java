@@ -44,6 +44,7 @@ TOTorrentCreateImpl
 	
 	protected long							piece_count;
 	protected boolean						add_other_hashes;
+	protected int							io_mode	= TOTorrentCreator.IO_MODE_STREAM;
 	
 	protected List							progress_listeners = new ArrayList();
 	
@@ -136,6 +137,13 @@ TOTorrentCreateImpl
 		piece_length = getComputedPieceSize( total_size, _piece_min_size, _piece_max_size, _piece_num_lower, _piece_num_upper );
 	}
 	
+	protected void
+	setIOMode(
+		int		_io_mode )
+	{
+		io_mode	= _io_mode;
+	}
+	
 	protected void
 	create()
 	
@@ -183,6 +191,7 @@ TOTorrentCreateImpl
 					add_other_hashes,
 					add_other_per_file_hashes,
 					(int)_piece_length, 
+					io_mode,
 					progress_listeners.size()==0?null:this );
 		
 		if ( cancelled ){
@@ -58,6 +58,13 @@ TOTorrentCreatorImpl
 		torrent.cancel();
 	}
 	
+	public void
+	setIOMode(
+		int		io_mode )
+	{
+		torrent.setIOMode( io_mode );
+	}
+	
 	public void
 	addListener(
 		TOTorrentProgressListener	listener )
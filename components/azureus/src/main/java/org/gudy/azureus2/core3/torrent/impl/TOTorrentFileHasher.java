@@ -25,21 +25,62 @@ package org.gudy.azureus2.core3.torrent.impl;
 
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.gudy.azureus2.core3.torrent.*;
 import org.gudy.azureus2.core3.util.*;
 
+	/**
+	 * The files are read on the calling thread into pooled piece buffers and the full pieces
+	 * are hashed in parallel by the ConcurrentHasher. The hashes are collected, and progress 
+	 * reported, in piece order on the calling thread as the requests complete. The number of 
+	 * buffers bounds the memory used and how far the reads can get ahead of the hashing.
+	 * 
+	 * With IO_MODE_MMAP the files are mapped in windows and the pieces hashed straight from the
+	 * mapping, a window is unmapped once its pieces are hashed. Only the pieces spanning two
+	 * files are copied. IO_MODE_DIRECT reads through the file channel into direct buffers.
+	 */
+
 public class 
 TOTorrentFileHasher 
 {
+		// memory used by the piece buffers of a single hasher
+	
+	private static final long	MAX_BUFFERS_SIZE	= 64*1024*1024;
+	
+		// size of the file regions mapped at once, a 32 bit VM can't map a big file whole
+	
+	private static final long	MAX_MAP_WINDOW_SIZE	= 64*1024*1024;
+	
+	private static boolean		unmap_supported	= true;
+	
 	protected boolean	do_other_per_file_hash;
 	protected int		piece_length;
+	protected int		io_mode;
+	
+	protected List		pieces	= new ArrayList();
+	
+		// hash requests not collected yet, in piece order
+	
+	protected LinkedList			pending	= new LinkedList();
 	
-	protected Vector	pieces = new Vector();
+	protected LinkedBlockingQueue	free_buffers	= new LinkedBlockingQueue();
+	protected int					max_buffers;
+	protected int					buffers_allocated;
 	
-	protected byte[]	buffer;
-	protected int		buffer_pos;
+		// piece being filled, it can span several files
+	
+	protected ByteBuffer	buffer;
+	
+		// the ED2K hasher only takes arrays, used to copy from the direct buffers
+	
+	protected byte[]		other_hashes_buffer;
 	 
 	protected SHA1Hasher					overall_sha1_hash;
 	protected ED2KHasher					overall_ed2k_hash;
@@ -52,13 +93,14 @@ TOTorrentFileHasher
 	
 	protected TOTorrentFileHasherListener	listener;
 		
-	protected boolean						cancelled;
+	protected volatile boolean				cancelled;
 	
 	protected
 	TOTorrentFileHasher(
 		boolean							_do_other_overall_hashes,
 		boolean							_do_other_per_file_hash,				
 		int								_piece_length,
+		int								_io_mode,
 		TOTorrentFileHasherListener		_listener )
 	{
 		if ( _do_other_overall_hashes ){
@@ -69,9 +111,12 @@ TOTorrentFileHasher
 		
 		do_other_per_file_hash	= _do_other_per_file_hash;
 		piece_length			= _piece_length;
+		io_mode					= _io_mode;
 		listener				= _listener;
 		
-		buffer = new byte[piece_length];
+			// one per hashing slot plus the one being filled
+		
+		max_buffers = (int)Math.max( 2, Math.min( Runtime.getRuntime().availableProcessors() + 2, MAX_BUFFERS_SIZE / piece_length ));
 	}
 		
 	long
@@ -82,7 +127,7 @@ TOTorrentFileHasher
 	{
 		long		file_length = 0;
 		
-		InputStream is = null;
+		FileInputStream is = null;
 		
 		SHA1Hasher	sha1_hash		= null;
 		ED2KHasher	ed2k_hash		= null;
@@ -94,56 +139,19 @@ TOTorrentFileHasher
 				ed2k_hash		= new ED2KHasher();
 			}
 			
-			is = new BufferedInputStream(new FileInputStream( _file ), 65536);
+			is = new FileInputStream( _file );
 
-			while(true){
-	
-				if ( cancelled ){
-						
-					throw( new TOTorrentException( 	"TOTorrentCreate: operation cancelled",
-													TOTorrentException.RT_CANCELLED ));
-				}
+			if ( io_mode == TOTorrentCreator.IO_MODE_MMAP ){
 				
-				int	len = is.read( buffer, buffer_pos, piece_length - buffer_pos );
+				file_length = readMapped( is.getChannel(), sha1_hash, ed2k_hash );
 				
-				if ( len > 0 ){
-					
-					if ( do_other_per_file_hash ){
-						
-						sha1_hash.update( buffer, buffer_pos, len );
-						ed2k_hash.update( buffer, buffer_pos, len );
-					}
-					
-					
-					file_length += len;
-					
-					buffer_pos += len;
-					
-					if ( buffer_pos == piece_length ){
-						
-						// hash this piece
-						
-						byte[] hash = new SHA1Hasher().calculateHash(buffer);
-
-						if ( overall_sha1_hash != null ){
-							
-							overall_sha1_hash.update( buffer );
-							overall_ed2k_hash.update( buffer );
-						}
-						
-						pieces.add( hash );
-						
-						if ( listener != null ){
-							
-							listener.pieceHashed( pieces.size() );
-						}
-						
-						buffer_pos = 0;					
-					}
-				}else{
-					
-					break;
-				}		
+			}else if ( io_mode == TOTorrentCreator.IO_MODE_DIRECT ){
+				
+				file_length = readChannel( is.getChannel(), sha1_hash, ed2k_hash );
+				
+			}else{
+				
+				file_length = readStream( is, sha1_hash, ed2k_hash );
 			}
 			
 			if ( do_other_per_file_hash ){
@@ -191,27 +199,14 @@ TOTorrentFileHasher
 		throws TOTorrentException
 	{
 		try{
-			if ( buffer_pos > 0 ){
-								
-				byte[] rem = new byte[buffer_pos];
-				
-				System.arraycopy( buffer, 0, rem, 0, buffer_pos );
-				
-				pieces.addElement(new SHA1Hasher().calculateHash(rem));
+			if ( buffer != null && buffer.position() > 0 ){
 				
-				if ( overall_sha1_hash != null ){
-					
-					overall_sha1_hash.update( rem );
-					overall_ed2k_hash.update( rem );
-				}
-				
-				if ( listener != null ){
-							
-					listener.pieceHashed( pieces.size() );
-				}
+					// the last piece is shorter
 				
-				buffer_pos = 0;
+				submitPiece();
 			}
+			
+			collectPieces( true );
 		
 			if ( overall_sha1_hash != null && sha1_digest == null ){
 				
@@ -221,10 +216,14 @@ TOTorrentFileHasher
 			
 			byte[][] res = new byte[pieces.size()][];
 		
-			pieces.copyInto( res );
+			pieces.toArray( res );
 		
 			return( res );
 			
+		}catch( TOTorrentException e ){
+			
+			throw( e );
+			
 		}catch( Throwable e ){
 			
 			throw( new TOTorrentException( 	"TOTorrentFileHasher: file read fails '" + e.toString() + "'",
@@ -263,4 +262,417 @@ TOTorrentFileHasher
 	{
 		cancelled	= true;
 	}
+	
+	protected void
+	checkCancelled()
+	
+		throws TOTorrentException
+	{
+		if ( cancelled ){
+			
+			throw( new TOTorrentException( 	"TOTorrentCreate: operation cancelled",
+											TOTorrentException.RT_CANCELLED ));
+		}
+	}
+	
+	protected long
+	readStream(
+		InputStream		is,
+		SHA1Hasher		sha1_hash,
+		ED2KHasher		ed2k_hash )
+	
+		throws TOTorrentException, IOException, InterruptedException
+	{
+		long	file_length = 0;
+		
+		while( true ){
+			
+			checkCancelled();
+			
+			if ( buffer == null ){
+				
+				buffer = takeBuffer();
+			}
+			
+			int	pos = buffer.position();
+			
+				// reads are piece sized, no need for an extra buffer
+			
+			int	len = is.read( buffer.array(), pos, buffer.remaining());
+			
+			if ( len > 0 ){
+				
+				updateOtherHashes( sha1_hash, ed2k_hash, buffer.array(), pos, len );
+				
+				file_length += len;
+				
+				buffer.position( pos + len );
+				
+				if ( !buffer.hasRemaining()){
+					
+					submitPiece();
+				}
+			}else{
+				
+				break;
+			}		
+		}
+		
+		return( file_length );
+	}
+	
+	protected long
+	readChannel(
+		FileChannel		channel,
+		SHA1Hasher		sha1_hash,
+		ED2KHasher		ed2k_hash )
+	
+		throws TOTorrentException, IOException, InterruptedException
+	{
+		long	file_length = 0;
+		
+		while( true ){
+			
+			checkCancelled();
+			
+			if ( buffer == null ){
+				
+				buffer = takeBuffer();
+			}
+			
+			int	pos = buffer.position();
+			
+			int	len = channel.read( buffer );
+			
+			if ( len > 0 ){
+				
+				updateOtherHashes( sha1_hash, ed2k_hash, buffer, pos, len );
+				
+				file_length += len;
+				
+				if ( !buffer.hasRemaining()){
+					
+					submitPiece();
+				}
+			}else{
+				
+				break;
+			}		
+		}
+		
+		return( file_length );
+	}
+	
+	protected long
+	readMapped(
+		FileChannel		channel,
+		SHA1Hasher		sha1_hash,
+		ED2KHasher		ed2k_hash )
+	
+		throws TOTorrentException, IOException, InterruptedException
+	{
+		long	file_length = channel.size();
+		
+		long	pieces_per_window = Math.max( 1, MAX_MAP_WINDOW_SIZE / piece_length );
+		
+		long	pos = 0;
+		
+		while( pos < file_length ){
+			
+			checkCancelled();
+			
+			if ( buffer != null || file_length - pos < piece_length ){
+				
+					// the piece spans two files, it's copied to a buffer of its own
+				
+				if ( buffer == null ){
+					
+					buffer = takeBuffer();
+				}
+				
+				int	len = (int)Math.min( buffer.remaining(), file_length - pos );
+				
+				MappedByteBuffer	region = channel.map( FileChannel.MapMode.READ_ONLY, pos, len );
+				
+				try{
+					updateOtherHashes( sha1_hash, ed2k_hash, region, 0, len );
+					
+					buffer.put( region );
+					
+				}finally{
+					
+					unmap( region );
+				}
+				
+				pos += len;
+				
+				if ( !buffer.hasRemaining()){
+					
+					submitPiece();
+				}
+			}else{
+				
+				int	num_pieces = (int)Math.min(( file_length - pos ) / piece_length, pieces_per_window );
+				
+				int	len = num_pieces * piece_length;
+				
+				MappedByteBuffer	window = channel.map( FileChannel.MapMode.READ_ONLY, pos, len );
+				
+				List	window_reqs = new ArrayList( num_pieces );
+				
+				try{
+					updateOtherHashes( sha1_hash, ed2k_hash, window, 0, len );
+					
+					for (int i=0;i<num_pieces;i++){
+						
+						checkCancelled();
+						
+						ByteBuffer	piece = window.duplicate();
+						
+						piece.limit(( i + 1 ) * piece_length );
+						piece.position( i * piece_length );
+						
+							// blocks while all the hashing slots are taken
+						
+						ConcurrentHasherRequest	req = ConcurrentHasher.getSingleton().addRequest( piece.slice(), null, false );
+						
+						window_reqs.add( req );
+						
+						pending.add( req );
+						
+						collectPieces( false );
+					}
+					
+					collectPieces( true );
+					
+				}finally{
+					
+						// the mapping can't go while a piece is still being hashed from it
+					
+					for (int i=0;i<window_reqs.size();i++){
+						
+						((ConcurrentHasherRequest)window_reqs.get(i)).getResult();
+					}
+					
+					unmap( window );
+				}
+				
+				pos += len;
+			}
+		}
+		
+		return( file_length );
+	}
+	
+	protected void
+	updateOtherHashes(
+		SHA1Hasher		sha1_hash,
+		ED2KHasher		ed2k_hash,
+		ByteBuffer		data,
+		int				pos,
+		int				len )
+	{
+		if ( sha1_hash == null && overall_sha1_hash == null ){
+			
+			return;
+		}
+		
+		if ( data.hasArray()){
+			
+			updateOtherHashes( sha1_hash, ed2k_hash, data.array(), data.arrayOffset() + pos, len );
+			
+			return;
+		}
+		
+		if ( other_hashes_buffer == null ){
+			
+			other_hashes_buffer = new byte[65536];
+		}
+		
+		ByteBuffer	region = data.duplicate();
+		
+		region.limit( pos + len );
+		region.position( pos );
+		
+		while( region.hasRemaining()){
+			
+			int	chunk = Math.min( region.remaining(), other_hashes_buffer.length );
+			
+			region.get( other_hashes_buffer, 0, chunk );
+			
+			updateOtherHashes( sha1_hash, ed2k_hash, other_hashes_buffer, 0, chunk );
+		}
+	}
+	
+	protected void
+	updateOtherHashes(
+		SHA1Hasher		sha1_hash,
+		ED2KHasher		ed2k_hash,
+		byte[]			data,
+		int				pos,
+		int				len )
+	{
+		if ( sha1_hash != null ){
+			
+			sha1_hash.update( data, pos, len );
+			ed2k_hash.update( data, pos, len );
+		}
+		
+		if ( overall_sha1_hash != null ){
+			
+			overall_sha1_hash.update( data, pos, len );
+			overall_ed2k_hash.update( data, pos, len );
+		}
+	}
+	
+		/**
+		 * Returns a free piece buffer, waiting for the hashing to release one if they are all in use
+		 */
+	
+	protected ByteBuffer
+	takeBuffer()
+	
+		throws TOTorrentException, InterruptedException
+	{
+		while( true ){
+			
+			checkCancelled();
+			
+			collectPieces( false );
+			
+			ByteBuffer	b = (ByteBuffer)free_buffers.poll();
+			
+			if ( b == null ){
+				
+				if ( buffers_allocated < max_buffers ){
+				
+					buffers_allocated++;
+				
+					b = io_mode == TOTorrentCreator.IO_MODE_DIRECT?ByteBuffer.allocateDirect( piece_length ):ByteBuffer.allocate( piece_length );
+					
+				}else{
+					
+					b = (ByteBuffer)free_buffers.poll( 100, TimeUnit.MILLISECONDS );
+				}
+			}
+			
+			if ( b != null ){
+				
+				return( b );
+			}
+		}
+	}
+	
+	protected void
+	submitPiece()
+	
+		throws TOTorrentException
+	{
+		final ByteBuffer	piece = buffer;
+		
+		buffer	= null;
+		
+		piece.flip();
+		
+		ConcurrentHasherRequest	req = 
+			ConcurrentHasher.getSingleton().addRequest(
+				piece,
+				new ConcurrentHasherRequestListener()
+				{
+					public void
+					complete(
+						ConcurrentHasherRequest	request )
+					{
+						piece.clear();
+						
+						free_buffers.offer( piece );
+					}
+				},
+				false );
+		
+		pending.add( req );
+		
+		collectPieces( false );
+	}
+	
+		/**
+		 * Collects the hashes of the pending requests in order
+		 * @param wait false to stop at the first one not done so that the reads carry on
+		 */
+	
+	protected void
+	collectPieces(
+		boolean		wait )
+	
+		throws TOTorrentException
+	{
+		while( !pending.isEmpty()){
+			
+			ConcurrentHasherRequest	req = (ConcurrentHasherRequest)pending.getFirst();
+			
+			if ( !( wait || req.isComplete())){
+				
+				break;
+			}
+			
+			pending.removeFirst();
+			
+			pieceHashed( req );
+		}
+	}
+	
+	protected void
+	pieceHashed(
+		ConcurrentHasherRequest		req )
+	
+		throws TOTorrentException
+	{
+		byte[]	hash = req.getResult();
+		
+		if ( hash == null ){
+			
+			throw( new TOTorrentException( 	"TOTorrentFileHasher: piece hash cancelled",
+											TOTorrentException.RT_READ_FAILS ));
+		}
+		
+		pieces.add( hash );
+		
+		if ( listener != null ){
+			
+			listener.pieceHashed( pieces.size());
+		}
+	}
+	
+		/**
+		 * Releases a mapping now rather than when the buffer gets collected, the mappings of a 
+		 * big torrent can otherwise use up the address space. They are read only so there are
+		 * no dirty pages to flush, the problem described in MemoryMappedFile. Left to the GC if 
+		 * the VM doesn't expose the cleaner
+		 */
+	
+	protected static void
+	unmap(
+		MappedByteBuffer	buffer )
+	{
+		if ( !unmap_supported ){
+			
+			return;
+		}
+		
+		try{
+			Method	cleaner_method = buffer.getClass().getMethod( "cleaner" );
+			
+			cleaner_method.setAccessible( true );
+			
+			Object	cleaner = cleaner_method.invoke( buffer );
+			
+			if ( cleaner != null ){
+				
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+			}
+		}catch( Throwable e ){
+			
+			unmap_supported	= false;
+		}
+	}
 }
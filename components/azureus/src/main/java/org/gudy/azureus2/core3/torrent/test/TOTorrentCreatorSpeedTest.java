@@ -0,0 +1,115 @@
+/*
+ * Created on Oct 18, 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.gudy.azureus2.core3.torrent.test;
+
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.gudy.azureus2.core3.security.SESecurityManager;
+import org.gudy.azureus2.core3.torrent.*;
+
+	/**
+	 * Compares the throughput of the torrent creation IO modes and checks they all produce the
+	 * same pieces.
+	 * 
+	 * Usage: TOTorrentCreatorSpeedTest file_or_dir [piece_length] [stream|mmap|direct ...]
+	 * 
+	 * To measure the disk rather than the page cache use data larger than the RAM or drop the
+	 * OS caches between the runs, the first run warms up the cache otherwise.
+	 */
+
+public class 
+TOTorrentCreatorSpeedTest 
+{
+	private static final String[]	MODE_NAMES = { "stream", "mmap", "direct" };
+	
+	public static void
+	main(
+		String[]	args )
+	{
+		String[]	modes = args.length > 2?Arrays.copyOfRange( args, 2, args.length ):MODE_NAMES;
+		
+		int[]		io_modes = new int[modes.length];
+		
+		boolean		bad_args = args.length < 1;
+		
+		for (int i=0;i<modes.length;i++){
+			
+			io_modes[i] = Arrays.asList( MODE_NAMES ).indexOf( modes[i] );
+			
+			if ( io_modes[i] < 0 ){
+				
+				System.err.println( "Unknown mode '" + modes[i] + "'" );
+				
+				bad_args = true;
+			}
+		}
+		
+		if ( bad_args ){
+			
+			System.err.println( "Usage: TOTorrentCreatorSpeedTest file_or_dir [piece_length] [stream|mmap|direct ...]" );
+			
+			SESecurityManager.exitVM(1);
+			
+			return;
+		}
+		
+		try{
+			File		data			= new File( args[0] );
+			long		piece_length	= args.length > 1?Long.parseLong( args[1] ):TOTorrentFactory.TO_DEFAULT_FIXED_PIECE_SIZE;
+			
+			URL	announce_url = new URL( "http://localhost:6969/announce" );
+			
+			byte[][]	reference = null;
+			
+			for (int i=0;i<modes.length;i++){
+				
+				TOTorrentCreator	creator = TOTorrentFactory.createFromFileOrDirWithFixedPieceLength( data, announce_url, false, piece_length );
+				
+				creator.setIOMode( io_modes[i] );
+				
+				long	start = System.currentTimeMillis();
+				
+				TOTorrent	torrent = creator.create();
+				
+				long	elapsed = Math.max( 1, System.currentTimeMillis() - start );
+				
+				byte[][]	pieces = torrent.getPieces();
+				
+				if ( reference == null ){
+					
+					reference = pieces;
+				}
+				
+				long	mb = torrent.getSize() / ( 1024*1024 );
+				
+				System.out.println( 
+						modes[i] + " [" + mb + "MB, " + pieces.length + " pieces] = " + elapsed + " ms @ " + 
+						( torrent.getSize() * 1000 / elapsed / ( 1024*1024 )) + " MiB/s" +
+						( Arrays.deepEquals( reference, pieces )?"":" (pieces mismatch)" ));
+			}
+		}catch( Throwable e ){
+			
+			e.printStackTrace();
+			
+			SESecurityManager.exitVM(1);
+		}
+	}
+}
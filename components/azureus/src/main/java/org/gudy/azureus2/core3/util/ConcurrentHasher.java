@@ -27,28 +27,56 @@ package org.gudy.azureus2.core3.util;
  *
  */
 
-import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.nio.ByteBuffer;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.config.ParameterListener;
 
+	/**
+	 * Hashes the pieces on a work-stealing pool with one worker per processor, each worker
+	 * using its own SHA1Hasher. The number of requests waiting or running is bounded, adding
+	 * a request blocks while the bound is reached, so callers can't read ahead too much
+	 * piece data.
+	 * 
+	 * When "friendly" hash checking is enabled the low priority requests hold their slot for
+	 * a while after hashing, based on the average time the disk takes to read the pieces, so
+	 * a fast disk is barely throttled and a slow one is left for the other work.
+	 */
+
 public class 
 ConcurrentHasher 
 {
+		// max delay of a low priority request with friendly hashing
+	
+	private static final int	FRIENDLY_MAX_DELAY		= 250;
+	
+		// the delay is this many times the average read time
+	
+	private static final int	FRIENDLY_DELAY_FACTOR	= 2;
 	
 	protected static ConcurrentHasher		singleton	= new ConcurrentHasher();
 	
 	protected int			processor_num;
 	
-	protected List<ConcurrentHasherRequest>				requests		= new LinkedList<ConcurrentHasherRequest>();
+	protected AESemaphore		scheduler_sem	= new AESemaphore("ConcHashSched");
 	
-	protected List<SHA1Hasher>	hashers			= new ArrayList<SHA1Hasher>();
+	private ForkJoinPool		pool;
 	
-	protected AESemaphore		request_sem		= new AESemaphore("ConcHashReqQ");
-	protected AESemaphore		scheduler_sem	= new AESemaphore("ConcHashSched");
+	private ThreadLocal<SHA1Hasher>	hashers	= 
+		new ThreadLocal<SHA1Hasher>()
+		{
+			protected SHA1Hasher
+			initialValue()
+			{
+				return( new SHA1Hasher());
+			}
+		};
 		
-	protected AEMonitor			requests_mon	= new AEMonitor( "ConcurrentHasher:R" );
+		// average piece read time, in ms, updated with a moving average
+	
+	private volatile long		read_time_average	= -1;
 
 	private static boolean friendly_hashing;
 
@@ -98,98 +126,27 @@ ConcurrentHasher
 			scheduler_sem.release();
 		}
 	
-		final ThreadPool pool	= new ThreadPool( "ConcurrentHasher", 64 );
+			// async mode as the requests are never joined
 		
-		new AEThread2("ConcurrentHasher:scheduler", true )
-		{
-			public void
-			run()
-			{
-				while(true){
-					
-						// get a request to run
-					
-					request_sem.reserve();
-					
-						// now extract the request
-					
-					final ConcurrentHasherRequest	req;
-					final SHA1Hasher				hasher;
-					
-					try{
-						requests_mon.enter();
-						
-						req	= requests.remove(0);
-						
-						if ( hashers.size() == 0 ){
+		pool = new ForkJoinPool( 
+					processor_num,
+					new ForkJoinPool.ForkJoinWorkerThreadFactory()
+					{
+						public ForkJoinWorkerThread
+						newThread(
+							ForkJoinPool	pool )
+						{
+							ForkJoinWorkerThread	thread = new ForkJoinWorkerThread( pool ){};
 							
-							hasher = new SHA1Hasher();
+							thread.setName( "ConcurrentHasher" );
 							
-						}else{
+							thread.setDaemon( true );
 							
-							hasher	= hashers.remove( hashers.size()-1 );
+							return( thread );
 						}
-					}finally{
-						
-						requests_mon.exit();
-					}
-					
-					pool.run( 
-							new AERunnable()
-							{
-								public void
-								runSupport()
-								{
-									try{											
-										req.run( hasher );
-										
-									}finally{
-										try{
-											requests_mon.enter();
-
-											hashers.add( hasher );
-										
-										}finally{
-											
-											requests_mon.exit();
-										}
-
-										if ( friendly_hashing && req.isLowPriority()){
-				
-											try{  
-												int	size = req.getSize();
-												
-													// pieces can be several MB so delay based on size
-												
-												final int max = 250;
-												final int min = 50;
-												
-												size = size/1024;	// in K
-												
-												size = size/8;
-												
-													// 4MB -> 500
-													// 1MB -> 125
-												
-												size = Math.min( size, max );
-												size = Math.max( size, min );
-												
-												Thread.sleep( size );
-					
-											}catch( Throwable e ){ 
-					
-												Debug.printStackTrace( e ); 
-											}
-										}
-									       		
-										scheduler_sem.release();
-									}
-								}
-							});
-												
-				}
-			}
-		}.start();
+					},
+					null,
+					true );
 	}
 	
 		/**
@@ -219,71 +176,181 @@ ConcurrentHasher
 		ConcurrentHasherRequestListener		listener,
 		boolean								low_priorty )
 	{
-		final ConcurrentHasherRequest	req = new ConcurrentHasherRequest( this, buffer, listener, low_priorty );
-			
-			// get permission to run a request
+		ConcurrentHasherRequest	req = new ConcurrentHasherRequest( this, buffer, listener, low_priorty );
 		
-
-		// test code to force synchronous checking
-		//SHA1Hasher	hasher = new SHA1Hasher();
-		//req.run( hasher );
+			// get permission to run a request
 		
 		scheduler_sem.reserve();
 		
 		try{
-			requests_mon.enter();
+			pool.execute( new HashTask( req ));
 			
-			requests.add( req );
+		}catch( Throwable e ){
+			
+			scheduler_sem.release();
+			
+			Debug.printStackTrace( e );
+			
+			req.cancel();
+		}
 		
-		}finally{
+		return( req );
+	}
+	
+		/**
+		 * Reports the time it took to read a piece, used to throttle the low priority requests
+		 * when friendly hashing is enabled
+		 * @param millis
+		 */
+	
+	public void
+	readCompleted(
+		long		millis )
+	{
+		if ( millis < 0 ){
 			
-			requests_mon.exit();
+			return;
 		}
 		
-		request_sem.release();
+		long	average = read_time_average;
 		
-		return( req );
+			// a benign race, a lost sample doesn't matter
+		
+		if ( average < 0 ){
+			
+			read_time_average = millis;
+			
+		}else{
+			
+			read_time_average = ( average*7 + millis ) / 8;
+		}
+	}
+	
+	protected long
+	getFriendlyDelay()
+	{
+		long	average = read_time_average;
+		
+		if ( average < 0 ){
+			
+				// nothing measured yet, be friendly anyway
+			
+			return( FRIENDLY_MAX_DELAY / 5 );
+		}
+		
+		return( Math.min( average * FRIENDLY_DELAY_FACTOR, FRIENDLY_MAX_DELAY ));
+	}
+	
+	protected void
+	requestsDone(
+		boolean		low_priority )
+	{
+		long	delay = 0;
+		
+		if ( friendly_hashing && low_priority ){
+			
+			delay = getFriendlyDelay();
+		}
+		
+		if ( delay <= 0 ){
+			
+			scheduler_sem.release();
+			
+		}else{
+			
+				// the slot is held for a while, without holding the worker
+			
+			SimpleTimer.addEvent(
+				"ConcurrentHasher:friendly",
+				SystemTime.getOffsetTime( delay ),
+				new TimerEventPerformer()
+				{
+					public void
+					perform(
+						TimerEvent	event )
+					{
+						scheduler_sem.release();
+					}
+				});
+		}
+	}
+	
+	protected class
+	HashTask
+		implements Runnable
+	{
+		private final ConcurrentHasherRequest		req;
+		
+		protected
+		HashTask(
+			ConcurrentHasherRequest		_req )
+		{
+			req	= _req;
+		}
+		
+		public void
+		run()
+		{
+			try{
+				req.run( hashers.get());
+				
+			}catch( Throwable e ){
+				
+				Debug.printStackTrace( e );
+				
+			}finally{
+				
+				requestsDone( req.isLowPriority());
+			}
+		}
 	}
 	
 	public static void
 	main(
 		String[]	args )
 	{
-		/*
-		final ConcurrentHasher	hasher = ConcurrentHasher.getSingleton();
+			// pieces/sec benchmark: hasher [piece_kb] [pieces]
 		
-		int		threads			= 1;
+		final int	piece_size	= ( args.length > 0 ? Integer.parseInt( args[0] ) : 256 ) * 1024;
+		final int	pieces		= args.length > 1 ? Integer.parseInt( args[1] ) : 4096;
 		
-		final long	buffer_size		= 128*1024;
-		final long	loop			= 1024;
+		ConcurrentHasher	hasher = ConcurrentHasher.getSingleton();
 		
-		for (int i=0;i<threads;i++){
-						
-			new Thread()
-			{
-				public void
-				run()
+		ByteBuffer	buffer = ByteBuffer.allocateDirect( piece_size );
+		
+		for ( int run=0;run<3;run++){
+				
+			final AESemaphore	done = new AESemaphore( "ConcurrentHasher:bench" );
+			
+			ConcurrentHasherRequestListener	listener =
+				new ConcurrentHasherRequestListener()
 				{
-					// SHA1Hasher sha1_hasher = new SHA1Hasher();
-					
-					long	start = System.currentTimeMillis();
-					//ByteBuffer	buffer = ByteBuffer.allocate((int)buffer_size);
-					
-					for (int j=0;j<loop;j++){
-						
-												
-						//sha1_hasher.calculateHash( buffer );
-						//ConcurrentHasherRequest req = hasher.addRequest( buffer );
+					public void
+					complete(
+						ConcurrentHasherRequest		req )
+					{
+						done.release();
 					}
-					
-					long	elapsed = System.currentTimeMillis() - start;
-					
-					System.out.println( 
-							"elapsed = " + elapsed + ", " + 
-							((loop*buffer_size*1000)/elapsed) + " B/sec" );
-				}
-			}.start();
+				};
+				
+			long	start = SystemTime.getHighPrecisionCounter();
+			
+			for (int i=0;i<pieces;i++){
+				
+				hasher.addRequest( buffer.duplicate(), listener, false );
+			}
+			
+			for (int i=0;i<pieces;i++){
+				
+				done.reserve();
+			}
+			
+			long	elapsed = Math.max( 1, ( SystemTime.getHighPrecisionCounter() - start ) / 1000000 );
+			
+			System.out.println( 
+					"threads=" + hasher.processor_num + ", pieces=" + pieces + ", elapsed=" + elapsed + "ms, " + 
+					((pieces*1000L)/elapsed) + " pieces/sec, " + 
+					(((long)pieces*piece_size*1000)/elapsed/(1024*1024)) + " MB/sec" );
 		}
-		*/
 	}
 }
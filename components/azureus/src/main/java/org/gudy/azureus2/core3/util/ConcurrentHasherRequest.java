@@ -108,6 +108,16 @@ ConcurrentHasherRequest
 		}
 	}
 	
+		/**
+		 * @return true if the hash is done or the request cancelled, getResult won't block
+		 */
+	
+	public boolean
+	isComplete()
+	{
+		return( sem.isReleasedForever());
+	}
+	
 	public boolean
 	getCancelled()
 	{
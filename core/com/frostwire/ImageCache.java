@@ -24,6 +24,20 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
@@ -35,6 +49,13 @@ import com.limegroup.gnutella.settings.SharingSettings;
 import com.limegroup.gnutella.util.FrostWireUtils;
 
 /**
+ * Images cache in two levels, the decoded images in memory, bounded by
+ * bytes, and the image files in {@link SharingSettings#getImageCacheDirectory()},
+ * bounded by size and age.
+ * <p>
+ * The remote images are fetched by a small pool of threads, and the requests
+ * for an image already being fetched wait for the same fetch.
+ * 
  * @author gubatron
  * @author aldenml
  *
@@ -43,6 +64,17 @@ public class ImageCache {
 
     private static final Log LOG = LogFactory.getLog(ImageCache.class);
 
+    private static final long MAX_MEMORY_SIZE = 16 * 1024 * 1024;
+
+    private static final long MAX_DISK_SIZE = 64 * 1024 * 1024;
+
+    private static final long MAX_DISK_AGE = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    private static final int NUM_FETCHERS = 4;
+
+    // the disk cache is trimmed after this many saves
+    private static final int SAVES_PER_TRIM = 32;
+
     private static ImageCache instance;
 
     public synchronized static ImageCache instance() {
@@ -52,11 +84,36 @@ public class ImageCache {
         return instance;
     }
 
+    private final MemoryCache memoryCache;
+    private final Map<String, List<OnLoadedListener>> pendingFetches;
+    private final ExecutorService fetchExecutor;
+    private final AtomicInteger numSaves;
+
     private ImageCache() {
+        this.memoryCache = new MemoryCache(MAX_MEMORY_SIZE);
+        this.pendingFetches = new HashMap<String, List<OnLoadedListener>>();
+        this.numSaves = new AtomicInteger();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_FETCHERS, NUM_FETCHERS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ImageCache-Fetcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.fetchExecutor = executor;
+
+        scheduleTrim();
     }
 
     public BufferedImage getImage(URL url, OnLoadedListener listener) {
-        if (isCached(url)) {
+        BufferedImage image = memoryCache.get(url.toString());
+        if (image != null) {
+            notifyLoaded(listener, url, image, true, false);
+            return image;
+        } else if (isCached(url)) {
             return loadFromCache(url, listener);
         } else if (!url.getProtocol().equals("http")) {
             return loadFromResource(url, listener);
@@ -96,21 +153,26 @@ public class ImageCache {
 
     private boolean isCached(URL url) {
         File file = getCacheFile(url);
-        return file.exists();
+        return file.isFile();
     }
 
     private BufferedImage loadFromCache(URL url, OnLoadedListener listener) {
         try {
             File file = getCacheFile(url);
             BufferedImage image = ImageIO.read(file);
-            listener.onLoaded(url, image, true, false);
+            if (image != null) {
+                memoryCache.put(url.toString(), image);
+                // the age of the disk cache is counted from the last use
+                file.setLastModified(System.currentTimeMillis());
+            }
+            notifyLoaded(listener, url, image, true, false);
             return image;
         } catch (Throwable e) {
             LOG.error("Failed to load image from cache: " + url, e);
             if (e instanceof OutOfMemoryError) {
                 e.printStackTrace(); // this is a special condition
             }
-            listener.onLoaded(url, null, false, true);
+            notifyLoaded(listener, url, null, false, true);
             return null;
         }
     }
@@ -118,23 +180,39 @@ public class ImageCache {
     private BufferedImage loadFromResource(URL url, OnLoadedListener listener) {
         try {
             BufferedImage image = ImageIO.read(url);
-            saveToCache(url, image, 0);
-            listener.onLoaded(url, image, false, false);
+            memoryCache.put(url.toString(), image);
+            saveToCache(url, image);
+            notifyLoaded(listener, url, image, false, false);
             return image;
         } catch (Throwable e) {
             LOG.error("Failed to load image from resource: " + url, e);
-            listener.onLoaded(url, null, false, true);
+            notifyLoaded(listener, url, null, false, true);
             return null;
         }
     }
 
     private void loadFromUrl(final URL url, final OnLoadedListener listener) {
-        // TODO: may be I must use BackgroundExecutorService
-        new Thread(new Runnable() {
+        final String key = url.toString();
+
+        synchronized (pendingFetches) {
+            List<OnLoadedListener> listeners = pendingFetches.get(key);
+            if (listeners != null) {
+                // already being fetched, wait for the same result
+                listeners.add(listener);
+                return;
+            }
+
+            listeners = new ArrayList<OnLoadedListener>(1);
+            listeners.add(listener);
+            pendingFetches.put(key, listeners);
+        }
+
+        fetchExecutor.execute(new Runnable() {
             public void run() {
-                try {
-                    BufferedImage image = null;
+                BufferedImage image = null;
+                boolean fail = false;
 
+                try {
                     String userAgent = "FrostWire/" + OSUtils.getOS() + "/" + FrostWireUtils.getFrostWireVersion();
                     HttpFetcher fetcher = new HttpFetcher(url.toURI(), userAgent);
                     Object[] result = fetcher.fetch(false);
@@ -144,23 +222,35 @@ public class ImageCache {
                     }
 
                     byte[] data = (byte[]) result[0];
-                    long date = (Long) result[1];
                     if (data != null) {
                         image = ImageIO.read(new ByteArrayInputStream(data));
-                        saveToCache(url, image, date);
-                    }
-                    if (listener != null && image != null) {
-                        listener.onLoaded(url, image, false, false);
+                        memoryCache.put(key, image);
+                        saveToCache(url, image);
                     }
                 } catch (Throwable e) {
                     LOG.error("Failed to load image from: " + url, e);
-                    listener.onLoaded(url, null, false, true);
+                    fail = true;
+                }
+
+                List<OnLoadedListener> listeners;
+                synchronized (pendingFetches) {
+                    listeners = pendingFetches.remove(key);
+                }
+
+                if (fail || image != null) {
+                    for (OnLoadedListener l : listeners) {
+                        notifyLoaded(l, url, image, false, fail);
+                    }
                 }
             }
-        }).start();
+        });
     }
 
-    private void saveToCache(URL url, BufferedImage image, long date) {
+    private void saveToCache(URL url, BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+
         try {
             File file = getCacheFile(url);
 
@@ -175,13 +265,103 @@ public class ImageCache {
             String formatName = ImageIO.getImageReadersBySuffix(ext).next().getFormatName();
 
             if (!file.getParentFile().exists()) {
-                file.mkdirs();
+                file.getParentFile().mkdirs();
             }
             ImageIO.write(image, formatName, file);
-            file.setLastModified(date);
         } catch (Throwable e) {
             LOG.error("Failed to save image to cache: " + url, e);
         }
+
+        if (numSaves.incrementAndGet() % SAVES_PER_TRIM == 0) {
+            scheduleTrim();
+        }
+    }
+
+    private void notifyLoaded(OnLoadedListener listener, URL url, BufferedImage image, boolean fromCache, boolean fail) {
+        if (listener != null) {
+            try {
+                listener.onLoaded(url, image, fromCache, fail);
+            } catch (Throwable e) {
+                LOG.error("Error notifying image loaded: " + url, e);
+            }
+        }
+    }
+
+    private void scheduleTrim() {
+        fetchExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    trimDiskCache(SharingSettings.getImageCacheDirectory(), MAX_DISK_SIZE, MAX_DISK_AGE);
+                } catch (Throwable e) {
+                    LOG.error("Failed to trim the images disk cache", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the files not used in the max age, and then the least recently
+     * used files until the total size is within the max size.
+     */
+    public static void trimDiskCache(File dir, long maxSize, long maxAge) {
+        List<File> files = new ArrayList<File>();
+        collectFiles(dir, files);
+
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+
+        Iterator<File> it = files.iterator();
+        while (it.hasNext()) {
+            File f = it.next();
+            if (now - f.lastModified() > maxAge) {
+                f.delete();
+                it.remove();
+            } else {
+                totalSize += f.length();
+            }
+        }
+
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        File[] sorted = files.toArray(new File[files.size()]);
+        // the modification times read once, they change while sorting if the files are used
+        final Map<File, Long> times = new HashMap<File, Long>();
+        for (File f : sorted) {
+            times.put(f, f.lastModified());
+        }
+
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = times.get(a);
+                long tb = times.get(b);
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < sorted.length && totalSize > maxSize; i++) {
+            long length = sorted[i].length();
+            if (sorted[i].delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    private static void collectFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files);
+            } else {
+                files.add(child);
+            }
+        }
     }
 
     public interface OnLoadedListener {
@@ -191,4 +371,53 @@ public class ImageCache {
          */
         public void onLoaded(URL url, BufferedImage image, boolean fromCache, boolean fail);
     }
+
+    /**
+     * LRU of decoded images, bounded by the bytes of their pixels.
+     */
+    private static final class MemoryCache {
+
+        private final long maxSize;
+        private final LinkedHashMap<String, BufferedImage> images;
+
+        private long size;
+
+        public MemoryCache(long maxSize) {
+            this.maxSize = maxSize;
+            this.images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+        }
+
+        public synchronized BufferedImage get(String key) {
+            return images.get(key);
+        }
+
+        public synchronized void put(String key, BufferedImage image) {
+            if (image == null) {
+                return;
+            }
+
+            long imageSize = sizeOf(image);
+
+            if (imageSize > maxSize / 4) {
+                // too big, it would evict most of the cache
+                return;
+            }
+
+            BufferedImage old = images.put(key, image);
+            if (old != null) {
+                size -= sizeOf(old);
+            }
+            size += imageSize;
+
+            Iterator<BufferedImage> it = images.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= sizeOf(it.next());
+                it.remove();
+            }
+        }
+
+        private static long sizeOf(BufferedImage image) {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
 }
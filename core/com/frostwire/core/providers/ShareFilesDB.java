@@ -18,6 +18,9 @@
 
 package com.frostwire.core.providers;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.logging.Logger;
 
 import com.frostwire.content.ContentValues;
@@ -59,6 +62,13 @@ public final class ShareFilesDB {
     }
 
     public Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return query(projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * @param limit the LIMIT clause, in the form "count" or "offset, count", null for no limit
+     */
+    public Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder, String limit) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
         qb.setTables(TABLE_NAME);
@@ -75,12 +85,83 @@ public final class ShareFilesDB {
         // Get the database and run the query
         SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
 
         return c;
     }
 
     public long insert(ContentValues initialValues) {
+        ContentValues values = withDefaults(initialValues);
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+        return db.insert(TABLE_NAME, "", values);
+    }
+
+    public int bulkInsert(ContentValues[] rows) {
+        return bulkInsert(rows, null);
+    }
+
+    /**
+     * Inserts the rows in a single transaction, replacing the existing rows
+     * with the same file path. A row that can't be inserted is skipped, the
+     * others are still written.
+     *
+     * @param rows the rows to insert
+     * @param written if not null, receives the rows inserted
+     * @return the number of rows inserted, 0 if the transaction was rolled back
+     */
+    public int bulkInsert(ContentValues[] rows, List<ContentValues> written) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+        int count = 0;
+
+        if (rows.length == 0) {
+            return count;
+        }
+
+        StringBuilder where = new StringBuilder(Columns.FILE_PATH + " IN (");
+        String[] whereArgs = new String[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            where.append(i > 0 ? ",?" : "?");
+            whereArgs[i] = rows[i].getAsString(Columns.FILE_PATH);
+        }
+        where.append(')');
+
+        List<ContentValues> inserted = new ArrayList<ContentValues>(rows.length);
+
+        db.beginTransaction();
+        try {
+            if (db.delete(TABLE_NAME, where.toString(), whereArgs) < 0) {
+                return 0;
+            }
+
+            for (ContentValues initialValues : rows) {
+                ContentValues values = withDefaults(initialValues);
+
+                // only the failed statement is rolled back, the transaction goes on
+                if (db.insert(TABLE_NAME, "", values) < 0) {
+                    LOG.warning("Unable to insert " + values.getAsString(Columns.FILE_PATH) + " in the share table, skipped");
+                    continue;
+                }
+
+                inserted.add(initialValues);
+                count++;
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (written != null) {
+            written.addAll(inserted);
+        }
+
+        return count;
+    }
+
+    private ContentValues withDefaults(ContentValues initialValues) {
         ContentValues values;
 
         if (initialValues != null) {
@@ -135,9 +216,7 @@ public final class ShareFilesDB {
             values.put(Columns.YEAR, "");
         }
 
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-
-        return db.insert(TABLE_NAME, "", values);
+        return values;
     }
 
     public int delete(String where, String[] whereArgs) {
@@ -191,7 +270,7 @@ public final class ShareFilesDB {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("SET IGNORECASE TRUE");
 
-            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Columns.ID + " INTEGER IDENTITY," + Columns.FILE_TYPE + " INTEGER," + Columns.FILE_PATH + " VARCHAR," + Columns.FILE_SIZE + " INTEGER," + Columns.MIME + " VARCHAR," + Columns.DATE_ADDED + " BIGINT," + Columns.DATE_MODIFIED + " BIGINT,"
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Columns.ID + " INTEGER IDENTITY," + Columns.FILE_TYPE + " INTEGER," + Columns.FILE_PATH + " VARCHAR," + Columns.FILE_SIZE + " BIGINT," + Columns.MIME + " VARCHAR," + Columns.DATE_ADDED + " BIGINT," + Columns.DATE_MODIFIED + " BIGINT,"
                     + Columns.SHARED + " BOOLEAN," + Columns.TITLE + " VARCHAR," + Columns.ARTIST + " VARCHAR," + Columns.ALBUM + " VARCHAR," + Columns.YEAR + " VARCHAR" + ");");
 
             db.execSQL("CREATE INDEX idx_" + TABLE_NAME + "_" + Columns.ID + " ON " + TABLE_NAME + " (" + Columns.ID + ")");
@@ -206,5 +285,40 @@ public final class ShareFilesDB {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
             onCreate(db);
         }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // all the readers just iterate the rows once
+            db.setForwardOnlyCursors(true);
+
+            widenFileSize(db);
+        }
+
+        /**
+         * The file size column was created as INTEGER, the rows of the files
+         * over 2GB failed to insert. The database version is part of its
+         * folder name, a new version would start with an empty table, the
+         * column is altered in place instead.
+         */
+        private void widenFileSize(SQLiteDatabase db) {
+            Cursor c = db.rawQueryWithFactory(null, "SELECT TYPE_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?", new String[] { TABLE_NAME.toUpperCase(Locale.US), Columns.FILE_SIZE.toUpperCase(Locale.US) }, null);
+
+            if (c == null) {
+                return;
+            }
+
+            boolean integer;
+
+            try {
+                integer = c.moveToNext() && "INTEGER".equals(c.getString(1));
+            } finally {
+                c.close();
+            }
+
+            if (integer) {
+                LOG.info("Altering the " + Columns.FILE_SIZE + " column of " + TABLE_NAME + " to BIGINT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ALTER COLUMN " + Columns.FILE_SIZE + " BIGINT");
+            }
+        }
     }
 }
@@ -35,10 +35,31 @@ public class Cursor {
 
     private final Statement statement;
     private final ResultSet rs;
+    private final boolean forwardOnly;
 
     public Cursor(Statement statement, ResultSet rs) {
+        this(statement, rs, false);
+    }
+
+    /**
+     * Creates a cursor over the result set. If the cursor is forward only, it
+     * can only move to the next rows, and {@link #getCount()} is not supported.
+     *
+     * @param statement the statement to close with the cursor, or null if the statement is owned by someone else
+     * @param rs the result set
+     * @param forwardOnly true if the result set is of type {@link ResultSet#TYPE_FORWARD_ONLY}
+     */
+    public Cursor(Statement statement, ResultSet rs, boolean forwardOnly) {
         this.statement = statement;
         this.rs = rs;
+        this.forwardOnly = forwardOnly;
+    }
+
+    /**
+     * @return true if this cursor can only move forward
+     */
+    public boolean isForwardOnly() {
+        return forwardOnly;
     }
 
     /**
@@ -123,8 +144,12 @@ public class Cursor {
      * Returns the numbers of rows in the cursor.
      *
      * @return the number of rows in the cursor.
+     * @throws IllegalStateException if the cursor is forward only
      */
     public int getCount() {
+        if (forwardOnly) {
+            throw new IllegalStateException("Unable to get the number of rows of a forward only cursor");
+        }
         try {
             rs.last();
             int rows = rs.getRow();
@@ -147,10 +172,12 @@ public class Cursor {
         } catch (SQLException e) {
             LOG.log(Level.WARNING, "Error closing cursor result set", e);
         }
-        try {
-            statement.close();
-        } catch (SQLException e) {
-            LOG.log(Level.WARNING, "Error closing cursor inner statement", e);
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, "Error closing cursor inner statement", e);
+            }
         }
     }
 
@@ -161,11 +188,23 @@ public class Cursor {
      * <p>This method will return true if the request destination was reachable, 
      * otherwise, it returns false.
      *
+     * <p>A forward only cursor can only move forward.
+     *
      * @param position the zero-based position to move to.
      * @return whether the requested move fully succeeded.
      */
     public boolean moveToPosition(int offset) {
         try {
+            if (forwardOnly) {
+                if (offset < 0) {
+                    return false;
+                }
+                boolean moved = true;
+                for (int i = 0; i < offset && moved; i++) {
+                    moved = rs.next();
+                }
+                return moved;
+            }
             return rs.relative(offset);
         } catch (SQLException e) {
             LOG.log(Level.WARNING, "Error moving inside the result set, offset: " + offset, e);
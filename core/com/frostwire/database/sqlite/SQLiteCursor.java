@@ -0,0 +1,55 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.database.sqlite;
+
+import java.sql.ResultSet;
+
+import com.frostwire.database.Cursor;
+
+/**
+ * Cursor over a cached statement of a pooled read connection. Closing the
+ * cursor keeps the statement prepared and gives the connection back to the
+ * database.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+class SQLiteCursor extends Cursor {
+
+    private final SQLiteDatabase db;
+    private final SQLiteDatabase.CachedConnection connection;
+
+    private boolean closed;
+
+    SQLiteCursor(SQLiteDatabase db, SQLiteDatabase.CachedConnection connection, ResultSet rs, boolean forwardOnly) {
+        super(null, rs, forwardOnly);
+        this.db = db;
+        this.connection = connection;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            super.close();
+            db.releaseReader(connection);
+        }
+    }
+}
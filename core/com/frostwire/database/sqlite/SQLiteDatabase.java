@@ -19,10 +19,19 @@
 package com.frostwire.database.sqlite;
 
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,11 +49,36 @@ public class SQLiteDatabase {
 
     private static final Logger LOG = Logger.getLogger(SQLiteDatabase.class.getName());
 
+    private static final int MAX_READERS = 4;
+
+    // if all the read connections are busy for this long, the query uses the write connection
+    private static final long READER_WAIT_TIMEOUT = 2000;
+
+    private static final int MAX_CACHED_STATEMENTS = 64;
+
     private String path;
     private Connection connection;
 
+    private final CachedConnection writer;
+
+    // guards the main connection, held by the thread in a transaction until it ends
+    private final ReentrantLock writeLock;
+    private int transactionDepth;
+    private boolean transactionSuccessful;
+    private boolean transactionFailed;
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final BlockingQueue<CachedConnection> idleReaders;
+    private final List<CachedConnection> readers;
+
     private final AtomicBoolean open = new AtomicBoolean(false);
 
+    private volatile boolean readersEnabled;
+    private volatile boolean forwardOnlyCursors;
+
     static {
         try {
             Class.forName("org.h2.Driver");
@@ -54,9 +88,41 @@ public class SQLiteDatabase {
     }
 
     public SQLiteDatabase(String path, Connection connection) {
+        this(path, connection, null, null, null);
+    }
+
+    /**
+     * Creates a database that runs the queries in a pool of read connections,
+     * opened on demand with the given url, so readers don't wait behind
+     * the writers using the main connection.
+     * <p>
+     * The url must open the database with MVCC=TRUE, otherwise a query waits
+     * for the table locks of an open transaction and fails after the lock
+     * timeout. A query that fails in a read connection is run again in the
+     * main connection.
+     *
+     * @param path the path to the database file
+     * @param connection the main connection, used for writes
+     * @param url the url used to open the main connection, or null to run the queries in the main connection
+     * @param user the user for the read connections
+     * @param password the password for the read connections
+     */
+    public SQLiteDatabase(String path, Connection connection, String url, String user, String password) {
         this.path = path;
         this.connection = connection;
 
+        this.writer = new CachedConnection(connection);
+        this.writeLock = new ReentrantLock();
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+
+        this.idleReaders = new LinkedBlockingQueue<CachedConnection>();
+        this.readers = new ArrayList<CachedConnection>(MAX_READERS);
+
+        this.readersEnabled = url != null;
+
         open.set(true);
     }
 
@@ -69,6 +135,24 @@ public class SQLiteDatabase {
         return path;
     }
 
+    /**
+     * @return true if the queries return forward only cursors
+     */
+    public boolean isForwardOnlyCursors() {
+        return forwardOnlyCursors;
+    }
+
+    /**
+     * Sets whether the queries return forward only cursors. A forward only cursor
+     * can only be iterated with {@link Cursor#moveToNext()}, but the rows are
+     * read as needed instead of keeping the result set scrollable.
+     *
+     * @param forwardOnlyCursors true to return forward only cursors
+     */
+    public void setForwardOnlyCursors(boolean forwardOnlyCursors) {
+        this.forwardOnlyCursors = forwardOnlyCursors;
+    }
+
     /**
      * Runs the provided SQL and returns a cursor over the result set.
      *
@@ -86,19 +170,38 @@ public class SQLiteDatabase {
 
         Cursor cursor = null;
 
+        boolean forwardOnly = forwardOnlyCursors;
+        int resultSetType = forwardOnly ? ResultSet.TYPE_FORWARD_ONLY : ResultSet.TYPE_SCROLL_SENSITIVE;
+
+        CachedConnection reader = acquireReader();
+
+        if (reader != null) {
+            try {
+                PreparedStatement statement = reader.prepareStatement(sql, resultSetType);
+                setArguments(statement, (Object[]) selectionArgs);
+
+                return new SQLiteCursor(this, reader, statement.executeQuery(), forwardOnly);
+            } catch (Throwable e) {
+                LOG.log(Level.FINE, "Error performing SQL statement in read connection, using the main connection: " + sql, e);
+                releaseReader(reader);
+            }
+        }
+
         PreparedStatement statement = null;
         ResultSet resultSet = null;
 
+        writeLock.lock();
         try {
-            synchronized (connection) {
-                statement = prepareStatement(connection, sql, (Object[]) selectionArgs);
+            statement = connection.prepareStatement(sql, resultSetType, ResultSet.CONCUR_READ_ONLY);
+            setArguments(statement, (Object[]) selectionArgs);
 
-                resultSet = statement.executeQuery();
+            resultSet = statement.executeQuery();
 
-                return new Cursor(statement, resultSet);
-            }
+            return new Cursor(statement, resultSet, forwardOnly);
         } catch (Throwable e) {
             LOG.log(Level.WARNING, "Error performing SQL statement: " + sql, e);
+        } finally {
+            writeLock.unlock();
         }
 
         return cursor;
@@ -297,35 +400,191 @@ public class SQLiteDatabase {
 
     public void close() {
         if (open.compareAndSet(true, false)) {
+            synchronized (readers) {
+                for (CachedConnection reader : readers) {
+                    reader.close();
+                }
+                readers.clear();
+                idleReaders.clear();
+            }
+            writeLock.lock();
             try {
+                writer.closeStatements();
                 Statement statement = connection.createStatement();
                 statement.execute("SHUTDOWN");
                 connection.close();
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, "Error closing the smart search database", e);
+            } finally {
+                writeLock.unlock();
             }
         }
     }
 
-    private int executeSql(String sql, Object[] bindArgs) throws SQLException {
-        PreparedStatement statement = null;
+    /**
+     * Begins a transaction in the main connection. Transactions can be nested.
+     * When the outer transaction is ended all of the work done in that transaction
+     * and all of the nested transactions will be committed or rolled back. The
+     * changes will be rolled back if any transaction is ended without being
+     * marked as clean (by calling setTransactionSuccessful). Otherwise they
+     * will be committed.
+     * <p>
+     * Other threads can't write until the outer transaction is ended.
+     * <p>
+     * Here is the standard idiom for transactions:
+     *
+     * <pre>
+     *   db.beginTransaction();
+     *   try {
+     *     ...
+     *     db.setTransactionSuccessful();
+     *   } finally {
+     *     db.endTransaction();
+     *   }
+     * </pre>
+     */
+    public void beginTransaction() {
+        verifyDbIsOpen();
+
+        writeLock.lock();
+
+        if (transactionDepth == 0) {
+            try {
+                connection.setAutoCommit(false);
+            } catch (Throwable e) {
+                writeLock.unlock();
+                LOG.log(Level.WARNING, "Error beginning transaction", e);
+                throw new SQLException("Error beginning transaction: " + e.getMessage());
+            }
+            transactionFailed = false;
+        }
+
+        transactionDepth++;
+        transactionSuccessful = false;
+    }
+
+    /**
+     * Marks the current transaction as successful. Do not do any more database work between
+     * calling this and calling endTransaction.
+     *
+     * @throws IllegalStateException if the current thread is not in a transaction
+     */
+    public void setTransactionSuccessful() {
+        if (!inTransaction()) {
+            throw new IllegalStateException("no transaction pending");
+        }
+
+        transactionSuccessful = true;
+    }
+
+    /**
+     * End a transaction. See beginTransaction for notes about how to use this and when transactions
+     * are committed and rolled back.
+     *
+     * @throws IllegalStateException if the current thread is not in a transaction
+     */
+    public void endTransaction() {
+        if (!inTransaction()) {
+            throw new IllegalStateException("no transaction pending");
+        }
+
         try {
-            synchronized (connection) {
-                statement = prepareStatement(connection, sql.toString(), bindArgs);
+            if (!transactionSuccessful) {
+                transactionFailed = true;
+            }
+            transactionSuccessful = false;
 
-                return statement.executeUpdate();
+            if (--transactionDepth == 0) {
+                try {
+                    if (transactionFailed) {
+                        connection.rollback();
+                    } else {
+                        connection.commit();
+                    }
+                } catch (Throwable e) {
+                    LOG.log(Level.WARNING, "Error ending transaction", e);
+                } finally {
+                    try {
+                        connection.setAutoCommit(true);
+                    } catch (Throwable e) {
+                        LOG.log(Level.WARNING, "Error restoring auto commit", e);
+                    }
+                }
             }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the current thread is in a transaction
+     */
+    public boolean inTransaction() {
+        return writeLock.isHeldByCurrentThread() && transactionDepth > 0;
+    }
+
+    private int executeSql(String sql, Object[] bindArgs) throws SQLException {
+        writeLock.lock();
+        try {
+            PreparedStatement statement = writer.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY);
+            setArguments(statement, bindArgs);
+
+            return statement.executeUpdate();
         } catch (Throwable e) {
             LOG.log(Level.WARNING, "Error performing SQL statement: " + sql, e);
             return -1;
         } finally {
-            if (statement != null) {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Takes an idle read connection, opening a new one if the pool is not full.
+     *
+     * @return the read connection, or null if the query should use the main connection
+     */
+    private CachedConnection acquireReader() {
+        if (!readersEnabled) {
+            return null;
+        }
+
+        CachedConnection reader = idleReaders.poll();
+
+        if (reader != null) {
+            return reader;
+        }
+
+        synchronized (readers) {
+            if (readers.size() < MAX_READERS && isOpen()) {
                 try {
-                    statement.close();
+                    reader = new CachedConnection(DriverManager.getConnection(url, user, password));
+                    readers.add(reader);
+                    return reader;
                 } catch (Throwable e) {
+                    LOG.log(Level.WARNING, "Unable to open read connection, using the main connection for queries", e);
+                    readersEnabled = false;
+                    return null;
                 }
             }
         }
+
+        try {
+            return idleReaders.poll(READER_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    void releaseReader(CachedConnection reader) {
+        if (isOpen() && !reader.isClosed()) {
+            idleReaders.offer(reader);
+        } else {
+            synchronized (readers) {
+                readers.remove(reader);
+            }
+            reader.close();
+        }
     }
 
     /**
@@ -357,16 +616,84 @@ public class SQLiteDatabase {
         }
     }
 
-    private PreparedStatement prepareStatement(Connection connection, String sql, Object... arguments) throws Exception {
-
-        PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-
+    private static void setArguments(PreparedStatement statement, Object[] arguments) throws Exception {
         if (arguments != null) {
             for (int i = 0; i < arguments.length; i++) {
                 statement.setObject(i + 1, arguments[i]);
             }
         }
-        return statement;
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (Throwable e) {
+        }
+    }
+
+    /**
+     * A connection with a LRU cache of prepared statements keyed by the SQL text.
+     * It's not thread safe, the main connection is guarded by the write lock
+     * and a read connection is used by a single cursor at a time.
+     */
+    static final class CachedConnection {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+
+        public CachedConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 6817206935823917218L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > MAX_CACHED_STATEMENTS) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        public PreparedStatement prepareStatement(String sql, int resultSetType) throws Exception {
+            String key = resultSetType + ":" + sql;
+
+            PreparedStatement statement = statements.get(key);
+
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, resultSetType, ResultSet.CONCUR_READ_ONLY);
+                statements.put(key, statement);
+            }
+
+            return statement;
+        }
+
+        public boolean isClosed() {
+            try {
+                return connection.isClosed();
+            } catch (Throwable e) {
+                return true;
+            }
+        }
+
+        public void closeStatements() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+        }
+
+        public void close() {
+            closeStatements();
+            try {
+                connection.close();
+            } catch (Throwable e) {
+                LOG.log(Level.WARNING, "Error closing database read connection", e);
+            }
+        }
     }
 
     /**
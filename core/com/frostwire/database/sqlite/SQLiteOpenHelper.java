@@ -119,15 +119,22 @@ public abstract class SQLiteOpenHelper {
                 sb.append(";" + extraArgs);
             }
 
+            // the queries run in their own connections, without MVCC they wait on the table locks of the writes
+            sb.append(";MVCC=TRUE");
+
             boolean create = !(new File(folderpath).exists());
 
-            Connection connection = DriverManager.getConnection(sb.toString(), "SA", "");
-            SQLiteDatabase db = new SQLiteDatabase(fullpath, connection);
+            String url = sb.toString();
+
+            Connection connection = DriverManager.getConnection(url, "SA", "");
+            SQLiteDatabase db = new SQLiteDatabase(fullpath, connection, url, "SA", "");
 
             if (create) {
                 onCreate(db);
             }
 
+            onOpen(db);
+
             return db;
         } catch (Throwable e) {
             LOG.log(Level.SEVERE, "Error opening the database", e);
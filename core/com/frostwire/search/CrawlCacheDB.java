@@ -18,6 +18,7 @@
 
 package com.frostwire.search;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
@@ -52,7 +53,7 @@ public final class CrawlCacheDB {
 
     private static final String DATABASE_NAME = "crawldb";
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     private static final String TABLE_NAME = "CacheData";
 
@@ -107,6 +108,10 @@ public final class CrawlCacheDB {
             values.put(Columns.DATE_ADDED, now);
         }
 
+        if (values.containsKey(Columns.DATE_ACCESSED) == false) {
+            values.put(Columns.DATE_ACCESSED, now);
+        }
+
         SQLiteDatabase db = databaseHelper.getWritableDatabase();
 
         return db.insert(TABLE_NAME, "", values);
@@ -129,6 +134,30 @@ public final class CrawlCacheDB {
         return count;
     }
 
+    /**
+     * Returns a two elements array with the number of entries and the total
+     * size in bytes of the cached data, or null if the query fails.
+     */
+    public long[] stats() {
+        long[] stats = null;
+
+        SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+        Cursor c = db.rawQueryWithFactory(null, "SELECT COUNT(*), SUM(" + Columns.DATA_SIZE + ") FROM " + TABLE_NAME, null, TABLE_NAME);
+
+        if (c != null) {
+            try {
+                if (c.moveToNext()) {
+                    stats = new long[] { c.getLong(1), c.getLong(2) };
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        return stats;
+    }
+
     public static final class Columns {
 
         private Columns() {
@@ -138,6 +167,8 @@ public final class CrawlCacheDB {
         public static final String KEY = "key";
         public static final String DATA = "data";
         public static final String DATE_ADDED = "dateAdded";
+        public static final String DATE_ACCESSED = "dateAccessed";
+        public static final String DATA_SIZE = "dataSize";
     }
 
     /**
@@ -160,12 +191,35 @@ public final class CrawlCacheDB {
                 }
             }
 
+            deleteOldVersions(db);
+
             db.execSQL("SET IGNORECASE TRUE");
 
-            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Columns.ID + " INTEGER IDENTITY," + Columns.KEY + " VARCHAR," + Columns.DATA + " BINARY," + Columns.DATE_ADDED + " BIGINT" + ");");
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Columns.ID + " INTEGER IDENTITY," + Columns.KEY + " VARCHAR," + Columns.DATA + " BINARY," + Columns.DATE_ADDED + " BIGINT," + Columns.DATE_ACCESSED + " BIGINT," + Columns.DATA_SIZE + " BIGINT" + ");");
 
             db.execSQL("CREATE INDEX idx_" + TABLE_NAME + "_" + Columns.ID + " ON " + TABLE_NAME + " (" + Columns.ID + ")");
             db.execSQL("CREATE INDEX idx_" + TABLE_NAME + "_" + Columns.KEY + " ON " + TABLE_NAME + " (" + Columns.KEY + ")");
+            db.execSQL("CREATE INDEX idx_" + TABLE_NAME + "_" + Columns.DATE_ADDED + " ON " + TABLE_NAME + " (" + Columns.DATE_ADDED + ")");
+            db.execSQL("CREATE INDEX idx_" + TABLE_NAME + "_" + Columns.DATE_ACCESSED + " ON " + TABLE_NAME + " (" + Columns.DATE_ACCESSED + ")");
+        }
+
+        /**
+         * Every version lives in its own folder, the data of the previous ones
+         * would never be evicted, so it's removed when a new version is created.
+         */
+        private void deleteOldVersions(SQLiteDatabase db) {
+            File folder = new File(db.getPath()).getParentFile();
+
+            for (int version = 1; version < DATABASE_VERSION; version++) {
+                File oldFolder = new File(folder.getParentFile(), DATABASE_NAME + "." + version);
+                if (oldFolder.exists()) {
+                    try {
+                        FileUtils.deleteDirectory(oldFolder);
+                    } catch (IOException e) {
+                        LOG.warn("Unable to delete old crawl cache database: " + oldFolder);
+                    }
+                }
+            }
         }
 
         @Override
@@ -174,5 +228,11 @@ public final class CrawlCacheDB {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
             onCreate(db);
         }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // all the readers just iterate the rows once
+            db.setForwardOnlyCursors(true);
+        }
     }
 }
@@ -17,6 +17,8 @@
 
 package com.frostwire.search;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +28,12 @@ import com.frostwire.search.CrawlCacheDB.Columns;
 import com.limegroup.gnutella.settings.SearchSettings;
 
 /**
+ * Crawl cache backed by the H2 crawl database.
+ * <p>
+ * The number of entries and the total size of the data are kept in memory, once
+ * the size goes over {@link SearchSettings#SMART_SEARCH_DATABASE_MAX_SIZE} the least
+ * recently accessed entries are evicted, entries older than
+ * {@link SearchSettings#SMART_SEARCH_DATABASE_MAX_AGE} days are expired.
  * 
  * @author gubatron
  * @author aldenml
@@ -35,10 +43,32 @@ public class DatabaseCrawlCache implements CrawlCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseCrawlCache.class);
 
+    // seconds, the access date is only refreshed when older than this, avoiding a write per hit
+    private static final long ACCESS_UPDATE_INTERVAL = 60 * 60;
+
+    // milliseconds between expiration passes
+    private static final long EXPIRE_CHECK_INTERVAL = 60 * 60 * 1000;
+
+    // eviction frees space down to this fraction of the max size, so it doesn't run on every put
+    private static final double EVICTION_LOW_WATER_MARK = 0.9;
+
     private CrawlCacheDB db;
 
+    private final AtomicLong numEntries;
+    private final AtomicLong numBytes;
+    private final Object evictionLock;
+
+    private volatile long lastExpireCheck;
+
     public DatabaseCrawlCache() {
         db = CrawlCacheDB.instance();
+
+        numEntries = new AtomicLong(0);
+        numBytes = new AtomicLong(0);
+        evictionLock = new Object();
+
+        expire();
+        loadStats();
     }
 
     @Override
@@ -48,7 +78,7 @@ public class DatabaseCrawlCache implements CrawlCache {
         Cursor c = null;
 
         try {
-            String[] columns = new String[] { Columns.DATA };
+            String[] columns = new String[] { Columns.ID, Columns.DATA, Columns.DATE_ACCESSED };
             String where = Columns.KEY + " = ?";
             String[] whereArgs = new String[] { key };
 
@@ -56,6 +86,11 @@ public class DatabaseCrawlCache implements CrawlCache {
 
             if (c.moveToNext()) {
                 data = c.getBytes(c.getColumnIndex(Columns.DATA));
+
+                long now = System.currentTimeMillis() / 1000;
+                if (now - c.getLong(c.getColumnIndex(Columns.DATE_ACCESSED)) > ACCESS_UPDATE_INTERVAL) {
+                    touch(c.getLong(c.getColumnIndex(Columns.ID)), now);
+                }
             }
 
         } catch (Throwable e) {
@@ -77,8 +112,14 @@ public class DatabaseCrawlCache implements CrawlCache {
 
                 values.put(Columns.KEY, key);
                 values.put(Columns.DATA, data);
+                values.put(Columns.DATA_SIZE, Long.valueOf(data.length));
 
-                db.insert(values);
+                if (db.insert(values) > 0) {
+                    numEntries.incrementAndGet();
+                    numBytes.addAndGet(data.length);
+                }
+
+                checkLimits();
             } catch (Throwable e) {
                 LOG.warn("Error putting value to crawl cache: " + e.getMessage());
             }
@@ -91,7 +132,14 @@ public class DatabaseCrawlCache implements CrawlCache {
             String where = Columns.KEY + " = ?";
             String[] whereArgs = new String[] { key };
 
-            db.delete(where, whereArgs);
+            long bytes = dataSize(where, whereArgs);
+
+            int count = db.delete(where, whereArgs);
+
+            if (count > 0) {
+                numEntries.addAndGet(-count);
+                numBytes.addAndGet(-bytes);
+            }
         } catch (Throwable e) {
             LOG.warn("Error deleting value from crawl cache: " + e.getMessage());
         }
@@ -104,32 +152,155 @@ public class DatabaseCrawlCache implements CrawlCache {
         } catch (Throwable e) {
             LOG.warn("Error deleting crawl cache: " + e.getMessage());
         }
+
+        loadStats();
     }
 
+    /**
+     * Returns the number of entries in the cache, this is a constant time
+     * operation backed by an in-memory counter.
+     */
     @Override
     public long size() {
-        long size = 0;
+        return numEntries.get();
+    }
 
-        Cursor c = null;
+    /**
+     * Returns the total size in bytes of the cached data.
+     */
+    public long sizeInBytes() {
+        return numBytes.get();
+    }
 
+    private void touch(long id, long now) {
         try {
+            ContentValues values = new ContentValues();
+            values.put(Columns.DATE_ACCESSED, Long.valueOf(now));
 
-            String[] columns = new String[] { Columns.ID };
-            String where = "";
-            String[] whereArgs = new String[] {};
+            db.update(values, Columns.ID + " = ?", new String[] { String.valueOf(id) });
+        } catch (Throwable e) {
+            LOG.warn("Error updating access date of crawl cache entry: " + e.getMessage());
+        }
+    }
 
-            c = db.query(columns, where, whereArgs, null);
+    private long dataSize(String where, String[] whereArgs) {
+        long bytes = 0;
 
-            size = c.getCount();
+        Cursor c = null;
+
+        try {
+            c = db.query(new String[] { Columns.DATA_SIZE }, where, whereArgs, null);
 
-        } catch (Exception e) {
-            LOG.warn("Failed to get num of shared files", e);
+            while (c.moveToNext()) {
+                bytes += c.getLong(1);
+            }
         } finally {
             if (c != null) {
                 c.close();
             }
         }
 
-        return size;
+        return bytes;
+    }
+
+    private void checkLimits() {
+        if (System.currentTimeMillis() - lastExpireCheck > EXPIRE_CHECK_INTERVAL) {
+            expire();
+        }
+
+        long maxSize = SearchSettings.SMART_SEARCH_DATABASE_MAX_SIZE.getValue();
+
+        if (maxSize > 0 && numBytes.get() > maxSize) {
+            evict((long) (maxSize * EVICTION_LOW_WATER_MARK));
+        }
+    }
+
+    /**
+     * Deletes the entries added before the configured max age.
+     */
+    private void expire() {
+        lastExpireCheck = System.currentTimeMillis();
+
+        int maxAge = SearchSettings.SMART_SEARCH_DATABASE_MAX_AGE.getValue();
+
+        if (maxAge > 0) {
+            try {
+                long limit = System.currentTimeMillis() / 1000 - maxAge * 24L * 60 * 60;
+
+                int count = db.delete(Columns.DATE_ADDED + " < ?", new String[] { String.valueOf(limit) });
+
+                if (count > 0) {
+                    LOG.info("Expired " + count + " entries from the crawl cache");
+                    loadStats();
+                }
+            } catch (Throwable e) {
+                LOG.warn("Error expiring crawl cache entries: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently accessed entries until the total size of the
+     * data is below the target size.
+     */
+    private void evict(long targetSize) {
+        synchronized (evictionLock) {
+            long bytesToFree = numBytes.get() - targetSize;
+
+            if (bytesToFree <= 0) {
+                return;
+            }
+
+            long freed = 0;
+            long dateLimit = -1;
+            long idLimit = -1;
+
+            Cursor c = null;
+
+            try {
+                // access dates have a resolution of seconds, the id breaks the ties
+                c = db.query(new String[] { Columns.ID, Columns.DATE_ACCESSED, Columns.DATA_SIZE }, "", new String[] {}, Columns.DATE_ACCESSED + " ASC, " + Columns.ID + " ASC");
+
+                while (freed < bytesToFree && c.moveToNext()) {
+                    idLimit = c.getLong(1);
+                    dateLimit = c.getLong(2);
+                    freed += c.getLong(3);
+                }
+            } catch (Throwable e) {
+                LOG.warn("Error reading crawl cache entries for eviction: " + e.getMessage());
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+
+            if (dateLimit >= 0) {
+                try {
+                    String where = Columns.DATE_ACCESSED + " < ? OR (" + Columns.DATE_ACCESSED + " = ? AND " + Columns.ID + " <= ?)";
+                    String[] whereArgs = new String[] { String.valueOf(dateLimit), String.valueOf(dateLimit), String.valueOf(idLimit) };
+
+                    int count = db.delete(where, whereArgs);
+
+                    LOG.debug("Evicted " + count + " entries from the crawl cache");
+                } catch (Throwable e) {
+                    LOG.warn("Error evicting crawl cache entries: " + e.getMessage());
+                }
+
+                loadStats();
+            }
+        }
+    }
+
+    private void loadStats() {
+        try {
+            long[] stats = db.stats();
+
+            if (stats != null) {
+                numEntries.set(stats[0]);
+                numBytes.set(stats[1]);
+            }
+        } catch (Throwable e) {
+            LOG.warn("Failed to load crawl cache stats", e);
+        }
     }
 }
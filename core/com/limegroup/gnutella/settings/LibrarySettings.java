@@ -23,6 +23,7 @@ import java.io.File;
 import org.limewire.setting.BooleanSetting;
 import org.limewire.setting.FileSetSetting;
 import org.limewire.setting.FileSetting;
+import org.limewire.setting.IntSetting;
 import org.limewire.util.CommonUtils;
 
 import com.frostwire.AzureusStarter;
@@ -42,6 +43,10 @@ public class LibrarySettings extends LimeProps {
 
     public static final File LIBRARY_DATABASE = new File(CommonUtils.getUserSettingsDir(), "library_db");
 
+    public static final File LIBRARY_FILES_INDEX = new File(CommonUtils.getUserSettingsDir(), "library_files.idx");
+
+    public static final File LIBRARY_COVER_ART_CACHE = new File(CommonUtils.getUserSettingsDir(), "cover_art");
+
     public static final File DEFAULT_LIBRARY_FROM_DEVICE_DATA_DIR = new File((PORTABLE_ROOT_FOLDER == null) ? FrostWireUtils.getFrostWireRootFolder() : PORTABLE_ROOT_FOLDER, "From Device");
 
     /**
@@ -61,6 +66,31 @@ public class LibrarySettings extends LimeProps {
 
     public static final BooleanSetting LIBRARY_WIFI_SHARING_ENABLED = FACTORY.createBooleanSetting("LIBRARY_WIFI_SHARING_ENABLED", true);
 
+    /**
+     * The max number of files uploaded at the same time to the devices in the local network.
+     */
+    public static final IntSetting LIBRARY_WIFI_SHARING_MAX_UPLOADS = FACTORY.createIntSetting("LIBRARY_WIFI_SHARING_MAX_UPLOADS", 4);
+
+    /**
+     * The max upload speed of each file uploaded to the devices in the local network, in KB/s, 0 for no limit.
+     */
+    public static final IntSetting LIBRARY_WIFI_SHARING_MAX_UPLOAD_SPEED = FACTORY.createIntSetting("LIBRARY_WIFI_SHARING_MAX_UPLOAD_SPEED", 0);
+
+    /**
+     * The number of threads serving the requests of the devices in the local network.
+     */
+    public static final IntSetting LIBRARY_WIFI_SHARING_SERVER_THREADS = FACTORY.createIntSetting("LIBRARY_WIFI_SHARING_SERVER_THREADS", 4);
+
+    /**
+     * The max number of requests waiting for a thread, the rest are answered as busy.
+     */
+    public static final IntSetting LIBRARY_WIFI_SHARING_SERVER_QUEUE = FACTORY.createIntSetting("LIBRARY_WIFI_SHARING_SERVER_QUEUE", 32);
+
+    /**
+     * Watch the library folders for changes, instead of checking their modification time.
+     */
+    public static final BooleanSetting LIBRARY_WATCH_FOLDERS = FACTORY.createBooleanSetting("LIBRARY_WATCH_FOLDERS", false);
+
     
     public static void setupInitialLibraryFolders() {
         LibrarySettings.DIRECTORIES_TO_INCLUDE.add(SharingSettings.TORRENT_DATA_DIR_SETTING.getValue());
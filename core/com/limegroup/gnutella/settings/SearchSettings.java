@@ -21,6 +21,7 @@ import org.limewire.setting.BooleanSetting;
 import org.limewire.setting.CharArraySetting;
 import org.limewire.setting.FileSetting;
 import org.limewire.setting.IntSetting;
+import org.limewire.setting.LongSetting;
 import org.limewire.setting.StringSetting;
 import org.limewire.util.CommonUtils;
 
@@ -325,6 +326,22 @@ public final class SearchSettings extends LimeProps {
 	public static final StringSetting LAST_MEDIA_TYPE_USED = FACTORY.createStringSetting("LAST_MEDIA_TYPE_USED", MediaType.getAudioMediaType().getMimeType());
 	
 	public static final BooleanSetting SMART_SEARCH_ENABLED = FACTORY.createBooleanSetting("SMART_SEARCH_ENABLED", true);
+
+	/**
+	 * Maximum size in bytes of the crawled data kept in the smart search database,
+	 * the least recently used entries are evicted past this limit.
+	 */
+	public static final LongSetting SMART_SEARCH_DATABASE_MAX_SIZE = FACTORY.createLongSetting("SMART_SEARCH_DATABASE_MAX_SIZE", 256L * 1024 * 1024);
+
+	/**
+	 * Maximum age in days of the crawled data kept in the smart search database.
+	 */
+	public static final IntSetting SMART_SEARCH_DATABASE_MAX_AGE = FACTORY.createIntSetting("SMART_SEARCH_DATABASE_MAX_AGE", 90);
+
+	/**
+	 * Size in bytes of the in-memory tier in front of the smart search database.
+	 */
+	public static final LongSetting SMART_SEARCH_MEMORY_CACHE_SIZE = FACTORY.createLongSetting("SMART_SEARCH_MEMORY_CACHE_SIZE", 16L * 1024 * 1024);
 	
     public static final BooleanSetting SHOW_DETAIL_PAGE_AFTER_DOWNLOAD_START = FACTORY.createBooleanSetting("SHOW_DETAIL_PAGE_AFTER_DOWNLOAD_START", false);
 }
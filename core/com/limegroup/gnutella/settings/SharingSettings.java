@@ -256,4 +256,18 @@ public class SharingSettings extends LimeProps {
      */
     public static final BooleanSetting LOAD_PARTIAL_KEYWORDS = 
         FACTORY.createRemoteBooleanSetting("LOAD_PARTIAL_KEYWORDS", true, "SharingSettings.loadPartialKeywords");
+
+    /**
+     * Number of connections used to download a large HTTP file in parallel
+     * byte ranges, 1 downloads over a single connection.
+     */
+    public static final IntSetting HTTP_DOWNLOAD_SEGMENTS =
+        FACTORY.createIntSetting("HTTP_DOWNLOAD_SEGMENTS", 4);
+
+    /**
+     * How the files are read when creating a torrent, one of the
+     * TOTorrentCreator.IO_MODE_ constants: 0 stream, 1 mmap, 2 direct.
+     */
+    public static final IntSetting TORRENT_CREATION_IO_MODE =
+        FACTORY.createIntSetting("TORRENT_CREATION_IO_MODE", 0);
 }
@@ -19,14 +19,20 @@
 package com.frostwire.gui;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,10 +59,30 @@ public final class Librarian {
     public static final int FILE_STATE_SHARING = 1;
     public static final int FILE_STATE_SHARED = 2;
 
+    private static final int NUM_FILE_TYPES = Constants.FILE_TYPE_TORRENTS + 1;
+
+    // minimum time between passes pruning missing files from the index
+    private static final long RECONCILE_INTERVAL = 10 * 60 * 1000;
+
     //private final Set<String> pathSharedSet;
     private final Set<String> pathSharingSet;
     private final ExecutorService shareFileExec;
 
+    /**
+     * In-memory index of the share table, from path to file type, with the
+     * shared paths and the number of files by type. It's loaded once from
+     * the database and kept current by the scan, share and unshare operations.
+     */
+    private final ConcurrentMap<String, Byte> filePaths;
+    private final Set<String> sharedPaths;
+    private final AtomicIntegerArray numFiles;
+    private final AtomicIntegerArray numSharedFiles;
+    // incremented on every change of the index
+    private final AtomicLong revision;
+    private final Object indexLock;
+    private volatile boolean indexLoaded;
+    private volatile long lastReconcile;
+
     private static final Librarian instance = new Librarian();
 
     public static Librarian instance() {
@@ -67,9 +93,31 @@ public final class Librarian {
         //this.pathSharedSet = Collections.synchronizedSet(new HashSet<String>());
         this.pathSharingSet = Collections.synchronizedSet(new HashSet<String>());
         this.shareFileExec = Executors.newSingleThreadExecutor();
+
+        this.filePaths = new ConcurrentHashMap<String, Byte>();
+        this.sharedPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.numFiles = new AtomicIntegerArray(NUM_FILE_TYPES);
+        this.numSharedFiles = new AtomicIntegerArray(NUM_FILE_TYPES);
+        this.revision = new AtomicLong();
+        this.indexLock = new Object();
+
+        // warm up the index off the UI thread
+        shareFileExec.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+                reconcileIndex();
+            }
+        });
     }
 
+    /**
+     * Builds the finger from the index counters, it doesn't touch the database
+     * or the disk.
+     */
     public Finger finger() {
+        scheduleReconcile();
+
         Finger finger = new Finger();
 
         finger.uuid = ConfigurationManager.instance().getUUIDString();
@@ -93,6 +141,13 @@ public final class Librarian {
         finger.numSharedApplicationFiles = getNumSharedFiles(Constants.FILE_TYPE_APPLICATIONS);
         finger.numSharedRingtoneFiles = getNumSharedFiles(Constants.FILE_TYPE_RINGTONES);
 
+        finger.numTotalAudioFiles = getNumFiles(Constants.FILE_TYPE_AUDIO);
+        finger.numTotalVideoFiles = getNumFiles(Constants.FILE_TYPE_VIDEOS);
+        finger.numTotalPictureFiles = getNumFiles(Constants.FILE_TYPE_PICTURES);
+        finger.numTotalDocumentFiles = getNumFiles(Constants.FILE_TYPE_DOCUMENTS);
+        finger.numTotalApplicationFiles = getNumFiles(Constants.FILE_TYPE_APPLICATIONS);
+        finger.numTotalRingtoneFiles = getNumFiles(Constants.FILE_TYPE_RINGTONES);
+
         return finger;
     }
 
@@ -113,61 +168,35 @@ public final class Librarian {
      * @return
      */
     public int getNumSharedFiles(byte fileType) {
-        Cursor c = null;
-
-        int numFiles = 0;
-
-        try {
-            ShareFilesDB db = ShareFilesDB.intance();
-
-            String[] columns = new String[] { Columns.ID, Columns.FILE_PATH, Columns.SHARED };
-            String where = Columns.FILE_TYPE + " = ? AND " + Columns.SHARED + " = ?";
-            String[] whereArgs = new String[] { String.valueOf(fileType), String.valueOf(true) };
+        loadIndex();
 
-            c = db.query(columns, where, whereArgs, null);
+        return isValidFileType(fileType) ? numSharedFiles.get(fileType) : 0;
+    }
 
-            List<FileDescriptor> fds = filteredOutBadRows(c);
+    /**
+     * @param fileType
+     * @return the number of files of the given type in the share table, shared or unshared
+     */
+    public int getNumFiles(byte fileType) {
+        loadIndex();
 
-            numFiles = fds.size();
+        return isValidFileType(fileType) ? numFiles.get(fileType) : 0;
+    }
 
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "Failed to get num of shared files", e);
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
+    /**
+     * Returns the revision of the share table, it changes every time a file
+     * is added, removed, shared or unshared. It's not kept between sessions.
+     */
+    public long getRevision() {
+        loadIndex();
 
-        return numFiles;
+        return revision.get();
     }
 
     public boolean isFileShared(String filePath) {
-        Cursor c = null;
-
-        boolean isShared = false;
-
-        try {
-            ShareFilesDB db = ShareFilesDB.intance();
+        loadIndex();
 
-            String[] columns = new String[] { Columns.ID, Columns.FILE_PATH, Columns.SHARED };
-            String where = Columns.FILE_PATH + " = ?";
-            String[] whereArgs = new String[] { filePath };
-
-            c = db.query(columns, where, whereArgs, null);
-
-            List<FileDescriptor> fds = filteredOutBadRows(c);
-
-            isShared = fds.size() == 1;
-
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "Failed to get num of shared files", e);
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-
-        return isShared;
+        return sharedPaths.contains(filePath);
     }
 
     private List<FileDescriptor> filteredOutBadRows(Cursor c) {
@@ -240,6 +269,87 @@ public final class Librarian {
         return result;
     }
 
+    /**
+     * Queries the shared files of the given type, ordered by id, to be passed
+     * to {@link #visitSharedFiles(Cursor, FileDescriptorVisitor)}.
+     * 
+     * @param fileType
+     * @param offset the number of files to skip
+     * @param limit the max number of files, 0 for no limit
+     * @param since only the files added after this time, in seconds, 0 for all
+     * @return the cursor, to be closed by the caller, or null if the query fails
+     */
+    public Cursor querySharedFiles(byte fileType, int offset, int limit, long since) {
+        try {
+            ShareFilesDB db = ShareFilesDB.intance();
+
+            String[] columns = new String[] { Columns.ID, Columns.FILE_TYPE, Columns.FILE_PATH, Columns.FILE_SIZE, Columns.MIME, Columns.DATE_ADDED, Columns.DATE_MODIFIED, Columns.SHARED, Columns.TITLE, Columns.ARTIST, Columns.ALBUM, Columns.YEAR };
+            String where = Columns.FILE_TYPE + " = ? AND " + Columns.SHARED + " = ?";
+            String[] whereArgs;
+
+            if (since > 0) {
+                where += " AND " + Columns.DATE_ADDED + " > ?";
+                whereArgs = new String[] { String.valueOf(fileType), String.valueOf(true), String.valueOf(since) };
+            } else {
+                whereArgs = new String[] { String.valueOf(fileType), String.valueOf(true) };
+            }
+
+            String limitClause = null;
+            if (offset > 0 || limit > 0) {
+                limitClause = Math.max(0, offset) + "," + (limit > 0 ? limit : Integer.MAX_VALUE);
+            }
+
+            return db.query(columns, where, whereArgs, Columns.ID + " ASC", limitClause);
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Error querying shared files", e);
+            return null;
+        }
+    }
+
+    /**
+     * Passes the shared files of a cursor from {@link #querySharedFiles(byte, int, int, long)}
+     * to the visitor, one at a time as they are read from the database. The
+     * files no longer on disk are skipped and deleted from the share table.
+     * The cursor is not closed.
+     * 
+     * @param c
+     * @param visitor
+     * @throws IOException if the visitor fails
+     */
+    public void visitSharedFiles(Cursor c, FileDescriptorVisitor visitor) throws IOException {
+        final Set<String> toRemove = new HashSet<String>();
+
+        try {
+            int filePathCol = c.getColumnIndex(Columns.FILE_PATH);
+
+            while (c.moveToNext()) {
+                String filePath = c.getString(filePathCol);
+
+                if (!(new File(filePath)).exists()) {
+                    toRemove.add(filePath);
+                    continue;
+                }
+
+                visitor.visit(cursorToFileDescriptor(c));
+            }
+        } finally {
+            if (!toRemove.isEmpty()) {
+                shareFileExec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (String filePath : toRemove) {
+                                deleteFromShareTable(filePath);
+                            }
+                        } catch (Throwable e) {
+                            LOG.log(Level.WARNING, "Error deleting no existent files", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     public void scan(File file) {
         scan(file, TorrentUtil.getIgnorableFiles());
     }
@@ -257,19 +367,19 @@ public final class Librarian {
     }
 
     private void scan(File file, Set<File> ignorableFiles) {
-        if (ignorableFiles.contains(file)) {
-            return;
-        }
+        scan(file, ignorableFiles, null);
+    }
 
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) {
-                if (child.isDirectory() || child.isFile()) {
-                    scan(child);
-                }
-            }
-        } else if (file.isFile()) {
-            new UniversalScanner().scan(file.getAbsolutePath());
-        }
+    /**
+     * Scans the file, or all the files under the folder, into the share table.
+     * It returns when the scan is done.
+     *
+     * @param file
+     * @param ignorableFiles
+     * @param listener the listener of the scan progress, can be null
+     */
+    public void scan(File file, Set<File> ignorableFiles, LibraryScanner.ScanListener listener) {
+        new LibraryScanner(ignorableFiles, listener).scan(file);
     }
 
     public void shareFile(final String filePath, final boolean share) {
@@ -311,6 +421,10 @@ public final class Librarian {
         ShareFilesDB db = ShareFilesDB.intance();
 
         db.delete(where, whereArgs);
+
+        synchronized (indexLock) {
+            removeFromIndex(filePath);
+        }
     }
     
     public void deleteFolderFilesFromShareTable(String folderPath) {
@@ -324,6 +438,157 @@ public final class Librarian {
         } catch (Exception e) {
         
         }
+
+        synchronized (indexLock) {
+            Iterator<String> it = filePaths.keySet().iterator();
+            while (it.hasNext()) {
+                String filePath = it.next();
+                if (filePath.startsWith(folderPath)) {
+                    removeFromIndex(filePath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the scanner once the file is in the share table.
+     */
+    void onFileScanned(String filePath, byte fileType, boolean shared) {
+        synchronized (indexLock) {
+            addToIndex(filePath, fileType, shared);
+        }
+    }
+
+    /**
+     * Loads the index from the database, once. A load that fails is tried
+     * again on the next call, the files already added are just replaced.
+     * Missing files are pruned later by {@link #reconcileIndex()}.
+     * <p>
+     * The database updates are made before taking the index lock, so the ones
+     * concurrent with the load are applied to the index after it.
+     */
+    private void loadIndex() {
+        if (indexLoaded) {
+            return;
+        }
+
+        synchronized (indexLock) {
+            if (indexLoaded) {
+                return;
+            }
+
+            Cursor c = null;
+
+            try {
+                ShareFilesDB db = ShareFilesDB.intance();
+
+                String[] columns = new String[] { Columns.FILE_TYPE, Columns.FILE_PATH, Columns.SHARED };
+
+                c = db.query(columns, null, null, null);
+
+                if (c == null) {
+                    LOG.warning("Failed to load the index of shared files, no cursor");
+                    return;
+                }
+
+                int fileTypeCol = c.getColumnIndex(Columns.FILE_TYPE);
+                int filePathCol = c.getColumnIndex(Columns.FILE_PATH);
+                int sharedCol = c.getColumnIndex(Columns.SHARED);
+
+                while (c.moveToNext()) {
+                    addToIndex(c.getString(filePathCol), c.getByte(fileTypeCol), c.getBoolean(sharedCol));
+                }
+
+                indexLoaded = true;
+            } catch (Throwable e) {
+                LOG.log(Level.WARNING, "Failed to load the index of shared files", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the files no longer on disk from the share table and the index,
+     * in the share executor if the last pass is older than the reconcile interval.
+     */
+    private void scheduleReconcile() {
+        if (System.currentTimeMillis() - lastReconcile > RECONCILE_INTERVAL) {
+            lastReconcile = System.currentTimeMillis();
+
+            shareFileExec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reconcileIndex();
+                }
+            });
+        }
+    }
+
+    private void reconcileIndex() {
+        lastReconcile = System.currentTimeMillis();
+
+        loadIndex();
+
+        int removed = 0;
+
+        try {
+            for (String filePath : filePaths.keySet()) {
+                if (!(new File(filePath)).exists()) {
+                    deleteFromShareTable(filePath);
+                    removed++;
+                }
+            }
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Error deleting no existent files", e);
+        }
+
+        if (removed > 0) {
+            LOG.info("Deleted " + removed + " no existent files from the share table");
+        }
+    }
+
+    private void addToIndex(String filePath, byte fileType, boolean shared) {
+        removeFromIndex(filePath);
+
+        filePaths.put(filePath, fileType);
+        revision.incrementAndGet();
+
+        if (isValidFileType(fileType)) {
+            numFiles.incrementAndGet(fileType);
+        }
+
+        if (shared) {
+            sharedPaths.add(filePath);
+
+            if (isValidFileType(fileType)) {
+                numSharedFiles.incrementAndGet(fileType);
+            }
+        }
+    }
+
+    private void removeFromIndex(String filePath) {
+        Byte fileType = filePaths.remove(filePath);
+
+        if (fileType != null) {
+            revision.incrementAndGet();
+
+            boolean shared = sharedPaths.remove(filePath);
+
+            if (isValidFileType(fileType)) {
+                numFiles.decrementAndGet(fileType);
+
+                if (shared) {
+                    numSharedFiles.decrementAndGet(fileType);
+                }
+            }
+        }
+    }
+
+    private static boolean isValidFileType(byte fileType) {
+        return fileType >= 0 && fileType < NUM_FILE_TYPES;
     }
 
     private FileDescriptor cursorToFileDescriptor(Cursor c) {
@@ -422,4 +687,9 @@ public final class Librarian {
 
         return result;
     }
+
+    public interface FileDescriptorVisitor {
+
+        public void visit(FileDescriptor fd) throws IOException;
+    }
 }
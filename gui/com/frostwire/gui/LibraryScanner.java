@@ -0,0 +1,351 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.gui;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.frostwire.content.ContentValues;
+import com.frostwire.core.providers.ShareFilesDB;
+import com.frostwire.core.providers.ShareFilesDB.Columns;
+import com.frostwire.database.Cursor;
+
+/**
+ * Scans a file or a folder into the share table.
+ * <p>
+ * Folders are walked in parallel, the metadata of the files is read by a
+ * bounded pool of workers and the rows are written by the calling thread,
+ * in a transaction per batch. Files already in the share table with the
+ * same size and modification time are skipped.
+ * <p>
+ * An instance scans only once.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public final class LibraryScanner {
+
+    private static final Logger LOG = Logger.getLogger(LibraryScanner.class.getName());
+
+    private static final int NUM_WALKERS = 4;
+
+    private static final int BATCH_SIZE = 100;
+
+    // rows read and waiting for the writer, the readers block when it's full
+    private static final int MAX_PENDING_ROWS = 4 * BATCH_SIZE;
+
+    // max time a non full batch waits for more rows
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private static final ContentValues END = new ContentValues();
+
+    private final Set<File> ignorableFiles;
+    private final ScanListener listener;
+
+    private final BlockingQueue<ContentValues> rows;
+
+    // walk and read tasks not done yet
+    private final AtomicInteger pending;
+
+    private final AtomicInteger numFound;
+    private final AtomicInteger numSkipped;
+    private int numWritten;
+
+    private Map<String, long[]> existing;
+    private ExecutorService walkers;
+    private ExecutorService readers;
+
+    public LibraryScanner(Set<File> ignorableFiles, ScanListener listener) {
+        this.ignorableFiles = ignorableFiles;
+        this.listener = listener;
+
+        this.rows = new ArrayBlockingQueue<ContentValues>(MAX_PENDING_ROWS);
+        this.pending = new AtomicInteger();
+
+        this.numFound = new AtomicInteger();
+        this.numSkipped = new AtomicInteger();
+    }
+
+    /**
+     * Scans the file, or all the files under the folder, returning when all
+     * the rows are written.
+     *
+     * @param file
+     */
+    public void scan(File file) {
+        file = file.getAbsoluteFile();
+
+        if (ignorableFiles.contains(file)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        existing = loadExisting(file);
+
+        int numReaders = Runtime.getRuntime().availableProcessors();
+
+        walkers = new ThreadPoolExecutor(NUM_WALKERS, NUM_WALKERS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ScannerThreadFactory("LibraryScanner-Walker"));
+        // if the readers are all busy, the walkers read the files themselves
+        readers = new ThreadPoolExecutor(numReaders, numReaders, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_ROWS), new ScannerThreadFactory("LibraryScanner-Reader"), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            submitWalk(file);
+            writeRows();
+        } finally {
+            walkers.shutdownNow();
+            readers.shutdownNow();
+        }
+
+        LOG.info("Scanned " + file + ": " + numFound.get() + " files, " + numSkipped.get() + " unchanged, " + numWritten + " written in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public int getNumFound() {
+        return numFound.get();
+    }
+
+    public int getNumSkipped() {
+        return numSkipped.get();
+    }
+
+    public int getNumWritten() {
+        return numWritten;
+    }
+
+    private void submitWalk(final File file) {
+        pending.incrementAndGet();
+
+        walkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    walk(file);
+                } catch (Throwable e) {
+                    LOG.log(Level.WARNING, "Error walking " + file, e);
+                } finally {
+                    taskDone();
+                }
+            }
+        });
+    }
+
+    private void walk(File file) {
+        if (!file.isDirectory()) {
+            if (file.isFile()) {
+                submitRead(file);
+            }
+            return;
+        }
+
+        File[] children = file.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (ignorableFiles.contains(child)) {
+                continue;
+            }
+
+            if (child.isDirectory()) {
+                submitWalk(child);
+            } else if (child.isFile()) {
+                submitRead(child);
+            }
+        }
+    }
+
+    private void submitRead(final File file) {
+        pending.incrementAndGet();
+
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(file);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    LOG.log(Level.WARNING, "Error reading " + file, e);
+                } finally {
+                    taskDone();
+                }
+            }
+        });
+    }
+
+    private void read(File file) throws InterruptedException {
+        String filePath = file.getAbsolutePath();
+
+        numFound.incrementAndGet();
+
+        long[] old = existing.get(filePath);
+
+        if (old != null && old[0] == file.length() && old[1] == file.lastModified()) {
+            numSkipped.incrementAndGet();
+            return;
+        }
+
+        rows.put(new UniversalScanner().read(filePath));
+    }
+
+    private void taskDone() {
+        if (pending.decrementAndGet() == 0) {
+            try {
+                rows.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeRows() {
+        List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+
+        try {
+            while (true) {
+                ContentValues row = rows.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (row == END) {
+                    break;
+                }
+
+                if (row != null) {
+                    batch.add(row);
+
+                    if (batch.size() < BATCH_SIZE) {
+                        continue;
+                    }
+                }
+
+                flush(batch);
+            }
+
+            flush(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(List<ContentValues> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<ContentValues> written = new ArrayList<ContentValues>(batch.size());
+        int count = ShareFilesDB.intance().bulkInsert(batch.toArray(new ContentValues[batch.size()]), written);
+
+        for (ContentValues row : written) {
+            UniversalScanner.onInserted(row);
+        }
+        numWritten += count;
+
+        if (count < batch.size()) {
+            LOG.warning("Unable to write " + (batch.size() - count) + " of " + batch.size() + " rows to the share table");
+        }
+
+        batch.clear();
+
+        if (listener != null) {
+            try {
+                listener.onProgress(this, numFound.get(), numSkipped.get(), numWritten);
+            } catch (Throwable e) {
+                LOG.log(Level.WARNING, "Error notifying scan progress", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the size and modification time of the shared files already in
+     * the share table under the given path.
+     */
+    private static Map<String, long[]> loadExisting(File file) {
+        Map<String, long[]> existing = new HashMap<String, long[]>();
+
+        Cursor c = null;
+
+        try {
+            ShareFilesDB db = ShareFilesDB.intance();
+
+            String[] columns = new String[] { Columns.FILE_PATH, Columns.FILE_SIZE, Columns.DATE_MODIFIED };
+            String where = Columns.FILE_PATH + " LIKE ? AND " + Columns.SHARED + " = ?";
+            String[] whereArgs = new String[] { file.getAbsolutePath() + "%", String.valueOf(true) };
+
+            c = db.query(columns, where, whereArgs, null);
+
+            while (c.moveToNext()) {
+                existing.put(c.getString(1), new long[] { c.getLong(2), c.getLong(3) });
+            }
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Error loading the share table rows of " + file + ", all files will be scanned", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        return existing;
+    }
+
+    public interface ScanListener {
+
+        /**
+         * Called by the scanning thread after each batch of rows is written.
+         *
+         * @param scanner
+         * @param found the number of files found so far
+         * @param skipped the number of files skipped so far because they didn't change
+         * @param written the number of rows written so far
+         */
+        public void onProgress(LibraryScanner scanner, int found, int skipped, int written);
+    }
+
+    private static final class ScannerThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        public ScannerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    }
+}
@@ -736,6 +736,7 @@ public class CreateTorrentDialog extends JDialog implements TOTorrentProgressLis
 						.createFromFileOrDirWithComputedPieceLength(f, url,
 								addOtherHashes);
 
+				creator.setIOMode(SharingSettings.TORRENT_CREATION_IO_MODE.getValue());
 				creator.addListener(this);
 				
 				torrent = creator.create();
@@ -748,6 +749,7 @@ public class CreateTorrentDialog extends JDialog implements TOTorrentProgressLis
 						.createFromFileOrDirWithFixedPieceLength(f, url,
 								addOtherHashes, getPieceSizeManual());
 
+				c.setIOMode(SharingSettings.TORRENT_CREATION_IO_MODE.getValue());
 				c.addListener(this);
 
 				torrent = c.create();
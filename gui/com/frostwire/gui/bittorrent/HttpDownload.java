@@ -20,11 +20,14 @@ package com.frostwire.gui.bittorrent;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.gudy.azureus2.core3.download.DownloadManager;
@@ -37,6 +40,7 @@ import com.frostwire.util.HttpClient.HttpClientListener;
 import com.frostwire.util.HttpClient.RangeNotSupportedException;
 import com.frostwire.util.HttpClientFactory;
 import com.frostwire.util.HttpClientType;
+import com.frostwire.util.UserAgentGenerator;
 import com.limegroup.gnutella.gui.I18n;
 import com.limegroup.gnutella.settings.SharingSettings;
 
@@ -50,6 +54,9 @@ public class HttpDownload implements BTDownload {
     /** TODO: Make this configurable */
     private static final Executor HTTP_THREAD_POOL = Executors.newFixedThreadPool(6);
 
+    /** Every segment keeps a connection busy for the whole transfer, they can't queue behind others. */
+    private static final ExecutorService SEGMENTS_THREAD_POOL = Executors.newCachedThreadPool();
+
     private static final String STATE_DOWNLOADING = I18n.tr("Downloading");
     private static final String STATE_ERROR = I18n.tr("Error");
     private static final String STATE_ERROR_MD5 = I18n.tr("Error - corrupted file");
@@ -64,6 +71,11 @@ public class HttpDownload implements BTDownload {
 
     private static final int SPEED_AVERAGE_CALCULATION_INTERVAL_MILLISECONDS = 1000;
 
+    /** Smaller files are not worth the extra connections. */
+    private static final long MIN_SEGMENTED_DOWNLOAD_SIZE = 16 * 1024 * 1024;
+    private static final int SEGMENT_TIMEOUT = 10000;
+    private static final String SEGMENT_USER_AGENT = UserAgentGenerator.getUserAgent();
+
     private final String url;
     private final String title;
     private final String saveAs;
@@ -81,7 +93,7 @@ public class HttpDownload implements BTDownload {
     private final boolean deleteDataWhenCancelled;
 
     private long size;
-    private long bytesReceived;
+    private volatile long bytesReceived;
     protected String state;
     private long averageSpeed; // in bytes
 
@@ -93,6 +105,12 @@ public class HttpDownload implements BTDownload {
 
     private boolean isResumable;
 
+    /** null when downloading over a single connection, guarded by this for the segmented download. */
+    private Segment[] segments;
+    private int segmentsRunning;
+    private Throwable segmentsError;
+    private boolean rangesNotSupported;
+
     public HttpDownload(String theURL, String theTitle, String saveFileAs, long fileSize, String md5hash, boolean shouldResume, boolean deleteFileWhenTransferCancelled) {
         url = theURL;
         title = theTitle;
@@ -161,6 +179,7 @@ public class HttpDownload implements BTDownload {
         if (state != STATE_FINISHED) {
             state = STATE_CANCELING;
             httpClient.cancel();
+            cancelSegments();
         }
     }
 
@@ -173,6 +192,7 @@ public class HttpDownload implements BTDownload {
     public void pause() {
         state = STATE_PAUSING;
         httpClient.cancel();
+        cancelSegments();
     }
 
     @Override
@@ -314,6 +334,11 @@ public class HttpDownload implements BTDownload {
                         return;
                     }
 
+                    if (isSegmented()) {
+                        startSegments(resume);
+                        return;
+                    }
+
                     if (resume) {
                         if (incompleteFile.exists()) {
                             bytesReceived = incompleteFile.length();
@@ -329,6 +354,173 @@ public class HttpDownload implements BTDownload {
         });
     }
 
+    private boolean isSegmented() {
+        return SharingSettings.HTTP_DOWNLOAD_SEGMENTS.getValue() > 1 && size >= MIN_SEGMENTED_DOWNLOAD_SIZE && !rangesNotSupported;
+    }
+
+    /**
+     * Downloads the file in parallel byte ranges written directly at their position
+     * of the preallocated incomplete file. When resuming, every segment continues from
+     * where it was paused.
+     */
+    private void startSegments(boolean resume) throws IOException {
+        List<Segment> pending = new ArrayList<Segment>();
+
+        synchronized (this) {
+            if (!resume || segments == null) {
+                segments = buildSegments(size, SharingSettings.HTTP_DOWNLOAD_SEGMENTS.getValue());
+
+                RandomAccessFile file = new RandomAccessFile(incompleteFile, "rw");
+                try {
+                    file.setLength(size);
+                } finally {
+                    file.close();
+                }
+            }
+
+            isResumable = true;
+            segmentsError = null;
+
+            long received = 0;
+            for (Segment segment : segments) {
+                received += segment.done;
+            }
+            bytesReceived = received;
+
+            for (Segment segment : segments) {
+                segment.running = segment.done < segment.length;
+                if (segment.running) {
+                    segment.client = HttpClientFactory.newInstance(HttpClientType.PureJava);
+                    segment.client.setListener(new SegmentListener(segment));
+                    pending.add(segment);
+                }
+            }
+            segmentsRunning = pending.size();
+        }
+
+        if (pending.isEmpty()) {
+            onDownloadComplete();
+            return;
+        }
+
+        for (final Segment segment : pending) {
+            SEGMENTS_THREAD_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (state == STATE_PAUSING || state == STATE_CANCELING) {
+                            onSegmentEnd(segment, null);
+                        } else {
+                            segment.client.saveRange(url, incompleteFile, segment.start + segment.done, segment.length - segment.done, SEGMENT_TIMEOUT, SEGMENT_USER_AGENT);
+                        }
+                    } catch (Throwable e) {
+                        // any failure has to end the segment, or the download never finishes
+                        onSegmentEnd(segment, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void cancelSegments() {
+        if (segments != null) {
+            for (Segment segment : segments) {
+                if (segment.running) {
+                    segment.client.cancel();
+                }
+            }
+        }
+    }
+
+    private void onSegmentEnd(Segment segment, Throwable e) {
+        Throwable error;
+        boolean complete = true;
+
+        synchronized (this) {
+            if (!segment.running) {
+                // the client reports some errors and throws them too
+                return;
+            }
+            segment.running = false;
+
+            if (e != null && segmentsError == null) {
+                segmentsError = e;
+                for (Segment s : segments) {
+                    if (s.running) {
+                        s.client.cancel();
+                    }
+                }
+            }
+
+            if (--segmentsRunning > 0) {
+                return;
+            }
+
+            error = segmentsError;
+            for (Segment s : segments) {
+                complete = complete && s.done == s.length;
+            }
+        }
+
+        if (error instanceof RangeNotSupportedException) {
+            synchronized (this) {
+                rangesNotSupported = true;
+                segments = null;
+            }
+            isResumable = false;
+            start(false);
+        } else if (error != null) {
+            state = STATE_ERROR;
+            cleanup();
+        } else if (complete) {
+            onDownloadComplete();
+        } else {
+            onDownloadCancel();
+        }
+    }
+
+    private static Segment[] buildSegments(long size, int n) {
+        Segment[] segments = new Segment[n];
+        long length = size / n;
+        for (int i = 0; i < n; i++) {
+            long start = i * length;
+            // the last one takes the remainder
+            segments[i] = new Segment(start, i < n - 1 ? length : size - start);
+        }
+        return segments;
+    }
+
+    private void onDownloadComplete() {
+        if (md5 != null && !checkMD5(incompleteFile)) {
+            state = STATE_ERROR_MD5;
+            cleanupIncomplete();
+            return;
+        }
+
+        boolean renameTo = incompleteFile.renameTo(completeFile);
+
+        if (!renameTo) {
+            state = STATE_ERROR_MOVING_INCOMPLETE;
+        } else {
+            state = STATE_FINISHED;
+            cleanupIncomplete();
+            onComplete();
+        }
+    }
+
+    private void onDownloadCancel() {
+        if (state == STATE_CANCELING) {
+            if (deleteDataWhenCancelled) {
+                cleanup();
+            }
+            state = STATE_CANCELED;
+        } else if (state == STATE_PAUSING) {
+            state = STATE_PAUSED;
+        } else {
+            state = STATE_CANCELED;
+        }
+    }
+
     private void cleanupFile(File f) {
         if (f.exists()) {
             boolean delete = f.delete();
@@ -436,35 +628,12 @@ public class HttpDownload implements BTDownload {
 
         @Override
         public void onComplete(HttpClient client) {
-            if (md5 != null && !checkMD5(incompleteFile)) {
-                state = STATE_ERROR_MD5;
-                cleanupIncomplete();
-                return;
-            }
-
-            boolean renameTo = incompleteFile.renameTo(completeFile);
-
-            if (!renameTo) {
-                state = STATE_ERROR_MOVING_INCOMPLETE;
-            } else {
-                state = STATE_FINISHED;
-                cleanupIncomplete();
-                HttpDownload.this.onComplete();
-            }
+            onDownloadComplete();
         }
 
         @Override
         public void onCancel(HttpClient client) {
-            if (state == STATE_CANCELING) {
-                if (deleteDataWhenCancelled) {
-                    cleanup();
-                }
-                state = STATE_CANCELED;
-            } else if (state == STATE_PAUSING) {
-                state = STATE_PAUSED;
-            } else {
-                state = STATE_CANCELED;
-            }
+            onDownloadCancel();
         }
 
         @Override
@@ -492,6 +661,66 @@ public class HttpDownload implements BTDownload {
         }
     }
 
+    private final class SegmentListener implements HttpClientListener {
+
+        private final Segment segment;
+
+        public SegmentListener(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void onError(HttpClient client, Exception e) {
+            onSegmentEnd(segment, e);
+        }
+
+        @Override
+        public void onData(HttpClient client, byte[] buffer, int offset, int length) {
+            synchronized (HttpDownload.this) {
+                segment.done += length;
+                bytesReceived += length;
+                updateAverageDownloadSpeed();
+            }
+
+            if (state != STATE_PAUSING && state != STATE_CANCELING) {
+                state = STATE_DOWNLOADING;
+            } else {
+                // in case the client was not yet started when it was canceled
+                client.cancel();
+            }
+        }
+
+        @Override
+        public void onComplete(HttpClient client) {
+            onSegmentEnd(segment, null);
+        }
+
+        @Override
+        public void onCancel(HttpClient client) {
+            onSegmentEnd(segment, null);
+        }
+
+        @Override
+        public void onHeaders(HttpClient httpClient, Map<String, List<String>> headerFields) {
+        }
+    }
+
+    private static final class Segment {
+
+        private final long start;
+        private final long length;
+
+        /** bytes already written from start */
+        private long done;
+        private boolean running;
+        private HttpClient client;
+
+        public Segment(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+    }
+
     /** Meant to be overwritten by children classes that want to do something special
      * after the download is completed. */
     protected void onComplete() {
@@ -217,6 +217,7 @@ public class SendFileProgressDialog extends JDialog {
             final TOTorrent torrent;
 
             _torrentCreator = TOTorrentFactory.createFromFileOrDirWithComputedPieceLength(file, new URL("http://"), false);
+            _torrentCreator.setIOMode(SharingSettings.TORRENT_CREATION_IO_MODE.getValue());
 
             _torrentCreator.addListener(new TOTorrentProgressListener() {
                 public void reportProgress(int percent_complete) {
@@ -18,7 +18,10 @@
 
 package com.frostwire.gui.httpserver;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
@@ -27,11 +30,23 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 
 import com.frostwire.core.FileDescriptor;
+import com.frostwire.database.Cursor;
 import com.frostwire.gui.Librarian;
+import com.frostwire.gui.Librarian.FileDescriptorVisitor;
 import com.frostwire.util.JsonUtils;
 import com.sun.net.httpserver.HttpExchange;
 
 /**
+ * Lists the shared files of a type, as a gzipped JSON object with a files
+ * array. The files are written to the response as they are read from the
+ * database, the query runs before the response starts so that a failure gets
+ * a 503 rather than a truncated 200.
+ * <p>
+ * Optional parameters: offset and limit to get a page of the files, ordered
+ * by id, and since to get only the files added after that time, in seconds.
+ * The ETag of the response changes with the revision of the library, so an
+ * If-None-Match with the current ETag gets a 304.
+ * 
  * @author gubatron
  * @author aldenml
  *
@@ -40,58 +55,127 @@ class BrowseHandler extends AbstractHandler {
 
     private static final Logger LOG = Logger.getLogger(BrowseHandler.class.getName());
 
+    // the library revision restarts with every session
+    private static final String SESSION = Long.toHexString(System.currentTimeMillis());
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         assertUPnPActive();
 
-        GZIPOutputStream os = null;
+        Writer writer = null;
+        Cursor cursor = null;
 
         byte type = -1;
+        int offset = 0;
+        int limit = 0;
+        long since = 0;
 
         try {
 
             List<NameValuePair> query = URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8");
 
-            for (NameValuePair item : query) {
-                if (item.getName().equals("type")) {
-                    type = Byte.parseByte(item.getValue());
+            try {
+                for (NameValuePair item : query) {
+                    if (item.getName().equals("type")) {
+                        type = Byte.parseByte(item.getValue());
+                    }
+                    if (item.getName().equals("offset")) {
+                        offset = Integer.parseInt(item.getValue());
+                    }
+                    if (item.getName().equals("limit")) {
+                        limit = Integer.parseInt(item.getValue());
+                    }
+                    if (item.getName().equals("since")) {
+                        since = Long.parseLong(item.getValue());
+                    }
                 }
+            } catch (NumberFormatException e) {
+                type = -1;
             }
 
-            if (type == -1) {
+            if (type == -1 || offset < 0 || limit < 0) {
                 exchange.sendResponseHeaders(Code.HTTP_BAD_REQUEST, 0);
                 return;
             }
 
-            String response = getResponse(exchange, type);
+            String etag = "\"" + SESSION + "-" + Librarian.instance().getRevision() + "\"";
+
+            exchange.getResponseHeaders().set("ETag", etag);
+
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(Code.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+
+            cursor = Librarian.instance().querySharedFiles(type, offset, limit, since);
+
+            if (cursor == null) {
+                exchange.sendResponseHeaders(Code.HTTP_UNAVAILABLE, -1);
+                return;
+            }
 
             exchange.getResponseHeaders().set("Content-Encoding", "gzip");
             exchange.getResponseHeaders().set("Content-Type", "text/json; charset=UTF-8");
             exchange.sendResponseHeaders(Code.HTTP_OK, 0);
 
-            os = new GZIPOutputStream(exchange.getResponseBody());
+            writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(exchange.getResponseBody(), BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
 
-            os.write(response.getBytes("UTF-8"));
-            os.finish();
+            writeResponse(writer, cursor);
 
         } catch (IOException e) {
             LOG.warning("Error browsing files type=" + type);
             throw e;
         } finally {
-            if (os != null) {
-                os.close();
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (writer != null) {
+                writer.close();
             }
             exchange.close();
         }
     }
 
-    private String getResponse(HttpExchange exchange, byte fileType) {
-        List<FileDescriptor> fileDescriptors = Librarian.instance().getSharedFiles(fileType);
+    /**
+     * Writes the same JSON as serializing a {@link FileDescriptorList}, one
+     * file at a time.
+     */
+    private void writeResponse(final Writer writer, Cursor cursor) throws IOException {
+        writer.write("{\"files\":[");
+
+        Librarian.instance().visitSharedFiles(cursor, new FileDescriptorVisitor() {
 
-        FileDescriptorList list = new FileDescriptorList();
-        list.files = fileDescriptors;
+            private boolean first = true;
+
+            @Override
+            public void visit(FileDescriptor fd) throws IOException {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+
+                JsonUtils.toJson(fd, writer);
+            }
+        });
+
+        writer.write("]}");
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
 
-        return JsonUtils.toJson(list);
+        return false;
     }
 
     static final class FileDescriptorList {
@@ -19,11 +19,19 @@
 package com.frostwire.gui.httpserver;
 
 import java.io.Closeable;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,9 +42,16 @@ import com.frostwire.core.FileDescriptor;
 import com.frostwire.gui.Librarian;
 import com.frostwire.gui.bittorrent.BTDownloadMediator;
 import com.frostwire.gui.transfers.PeerHttpUpload;
+import com.limegroup.gnutella.settings.LibrarySettings;
 import com.sun.net.httpserver.HttpExchange;
 
 /**
+ * Uploads the shared files to the devices in the local network, supporting
+ * single range requests to resume interrupted transfers.
+ * <p>
+ * The uploads run in a bounded pool, when all the upload slots and the queue
+ * are busy the request is answered with a 503 and a Retry-After.
+ * 
  * @author gubatron
  * @author aldenml
  *
@@ -45,20 +60,56 @@ class DownloadHandler extends AbstractHandler {
 
     private static final Logger LOG = Logger.getLogger(DownloadHandler.class.getName());
 
+    // requests waiting for an upload slot
+    private static final int MAX_QUEUED_UPLOADS = 16;
+
+    private static final int RETRY_AFTER_SECONDS = 10;
+
+    // max bytes per transfer call, the upload is checked for cancellation and throttled between calls
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    private final ExecutorService uploadsPool;
+
+    public DownloadHandler() {
+        int maxUploads = Math.max(1, LibrarySettings.LIBRARY_WIFI_SHARING_MAX_UPLOADS.getValue());
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxUploads, maxUploads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_UPLOADS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DownloadHandler-Upload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+
+        this.uploadsPool = pool;
+    }
+
     @Override
     public void handle(final HttpExchange exchange) throws IOException {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    internalHandler(exchange);
-                } catch (IOException e) {
-                    LOG.log(Level.WARNING, "DownloadHandler async handle error", e);
+        try {
+            uploadsPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        internalHandler(exchange);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "DownloadHandler async handle error", e);
+                    }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            try {
+                sendBusyResponse(exchange);
+            } finally {
+                exchange.close();
             }
-        }).start();
+        }
     }
-    
+
     public void internalHandler(HttpExchange exchange) throws IOException {
         assertUPnPActive();
 
@@ -98,42 +149,49 @@ class DownloadHandler extends AbstractHandler {
                 throw new IOException("There is no such file shared");
             }
 
-            //upload = TransferManager.instance().upload(fd);
-            upload = BTDownloadMediator.instance().upload(fd);
+            fis = new FileInputStream(fd.filePath);
+            FileChannel channel = fis.getChannel();
+            long fileLength = channel.size();
 
-            exchange.getResponseHeaders().add("Content-Type", fd.mime);
-            
-            File file = new File(fd.filePath);
-            
-            exchange.sendResponseHeaders(Code.HTTP_OK, file.length());
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
 
-            os = exchange.getResponseBody();
+            long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"), fileLength);
 
-            fis = new FileInputStream(file);
+            if (range != null && range.length == 0) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + fileLength);
+                exchange.sendResponseHeaders(Code.HTTP_RANGE_NOT_SATISFIABLE, -1);
+                return;
+            }
 
-            byte[] buffer = new byte[4 * 1024];
-            int n;
-            int count = 0;
+            long start = range != null ? range[0] : 0;
+            long length = range != null ? range[1] - range[0] + 1 : fileLength;
 
-            while ((n = fis.read(buffer, 0, buffer.length)) != -1) {
-                os.write(buffer, 0, n);
-                upload.addBytesSent(n);
-                
-                if (upload.isCanceled()) {
-                    try {
-                        throw new IOException("Upload cancelled");
-                    } finally {
-                        os.close();
-                    }
-                }
-                
-                count += n;
-                if (count > 4096) {
-                    count = 0;
-                    Thread.yield();
-                }
+            exchange.getResponseHeaders().add("Content-Type", fd.mime);
+
+            if (range != null) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + fileLength);
             }
 
+            int code = range != null ? Code.HTTP_PARTIAL : Code.HTTP_OK;
+
+            if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+
+            //upload = TransferManager.instance().upload(fd);
+            upload = BTDownloadMediator.instance().upload(fd);
+            upload.setOffset(start);
+            upload.setMaxSpeed(LibrarySettings.LIBRARY_WIFI_SHARING_MAX_UPLOAD_SPEED.getValue() * 1024L);
+
+            // a length of 0 means chunked encoding for the http server
+            exchange.sendResponseHeaders(code, length > 0 ? length : -1);
+
+            os = exchange.getResponseBody();
+
+            transfer(channel, start, length, os, upload);
+
         } catch (IOException e) {
             LOG.log(Level.INFO, "Error uploading file type=" + type + ", id=" + id);
             throw e;
@@ -153,6 +211,113 @@ class DownloadHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Sends the range of the file with {@link FileChannel#transferTo}, in
+     * chunks so the upload can be canceled and throttled.
+     */
+    private void transfer(FileChannel channel, long start, long length, OutputStream os, PeerHttpUpload upload) throws IOException {
+        WritableByteChannel target = Channels.newChannel(os);
+
+        long maxSpeed = upload.getMaxSpeed();
+        // with a low max speed, smaller chunks keep the upload smooth
+        long chunkSize = maxSpeed > 0 ? Math.max(MIN_CHUNK_SIZE, Math.min(CHUNK_SIZE, maxSpeed / 4)) : CHUNK_SIZE;
+
+        long position = start;
+        long end = start + length;
+
+        while (position < end) {
+            try {
+                upload.throttle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Upload interrupted");
+            }
+
+            long n = channel.transferTo(position, Math.min(chunkSize, end - position), target);
+
+            if (n <= 0) {
+                throw new IOException("File truncated while uploading");
+            }
+
+            position += n;
+            upload.addBytesSent((int) n);
+
+            if (upload.isCanceled()) {
+                try {
+                    throw new IOException("Upload cancelled");
+                } finally {
+                    os.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single byte range of the Range header.
+     * 
+     * @return the first and last byte positions, null if the whole file should
+     *         be sent, or an empty array if the range is not satisfiable
+     */
+    static long[] parseRange(String header, long fileLength) {
+        if (header == null) {
+            return null;
+        }
+
+        header = header.trim();
+
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            // multiple ranges are not supported, the whole file is sent
+            return null;
+        }
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+
+        if (dash == -1) {
+            return null;
+        }
+
+        long first;
+        long last;
+
+        try {
+            String firstStr = spec.substring(0, dash).trim();
+            String lastStr = spec.substring(dash + 1).trim();
+
+            if (firstStr.length() == 0) {
+                // suffix range, the last n bytes
+                long suffix = Long.parseLong(lastStr);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, fileLength - suffix);
+                last = fileLength - 1;
+            } else {
+                first = Long.parseLong(firstStr);
+                if (lastStr.length() == 0) {
+                    last = fileLength - 1;
+                } else {
+                    last = Long.parseLong(lastStr);
+
+                    if (last < first) {
+                        // syntactically invalid, ignored
+                        return null;
+                    }
+
+                    last = Math.min(last, fileLength - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (first < 0 || first >= fileLength) {
+            return new long[0];
+        }
+
+        return new long[] { first, last };
+    }
+
     private void close(Closeable c) {
         if (c != null) {
             try {
@@ -163,8 +328,8 @@ class DownloadHandler extends AbstractHandler {
         }
     }
 
-    //    private void sendBusyResponse(HttpExchange exchange) throws IOException {
-    //        exchange.getResponseHeaders().add("Retry-After", "10"); // retry in 10 seconds
-    //        exchange.sendResponseHeaders(Code.HTTP_UNAVAILABLE, 0);
-    //    }
+    private void sendBusyResponse(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        exchange.sendResponseHeaders(Code.HTTP_UNAVAILABLE, -1);
+    }
 }
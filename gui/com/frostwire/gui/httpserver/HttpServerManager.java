@@ -19,9 +19,18 @@
 package com.frostwire.gui.httpserver;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.limegroup.gnutella.settings.LibrarySettings;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 /**
@@ -33,13 +42,19 @@ public class HttpServerManager {
 
     private static final Logger LOG = Logger.getLogger(HttpServerManager.class.getName());
 
+    // connections accepted by the system while the dispatcher is busy
+    private static final int BACKLOG = 64;
+
     //private final SessionManager sessionManager;
 
     private HttpServer httpServer;
+    private ThreadPoolExecutor threadPool;
+    private final List<MonitoredHandler> handlers;
 
     public HttpServerManager() {
         //this.threadPool = Executors.newCachedThreadPool();// ExecutorsHelper.n.newFixedSizeThreadPool(3, "HttpServer");
         //this.sessionManager = new SessionManager();
+        this.handlers = new ArrayList<MonitoredHandler>();
     }
 
     //    public SessionManager getSessionManager() {
@@ -54,14 +69,17 @@ public class HttpServerManager {
 
         try {
 
-            httpServer = HttpServer.create(new InetSocketAddress(port), 10);
+            httpServer = HttpServer.create(new InetSocketAddress(port), BACKLOG);
             
-            httpServer.createContext("/finger", new FingerHandler());
-            httpServer.createContext("/browse", new BrowseHandler());
-            httpServer.createContext("/download", new DownloadHandler());
+            createContext("/finger", new FingerHandler());
+            createContext("/browse", new BrowseHandler());
+            createContext("/download", new DownloadHandler());
             //httpServer.createContext("/dekstop-upload-request", new DesktopUploadRequestHandler(sessionManager));
             //httpServer.createContext("/desktop-upload", new DesktopUploadHandler(sessionManager));
 
+            threadPool = newThreadPool();
+            httpServer.setExecutor(threadPool);
+
             httpServer.start();
 
         } catch (Throwable e) {
@@ -80,6 +98,73 @@ public class HttpServerManager {
             LOG.log(Level.WARNING, "Something wrong stopping the HTTP server", e);
         } finally {
             httpServer = null;
+
+            if (threadPool != null) {
+                threadPool.shutdownNow();
+                threadPool = null;
+            }
+
+            LOG.info("HTTP server stats: " + getStats());
+
+            handlers.clear();
+        }
+    }
+
+    /**
+     * Returns the requests, rejections, errors, concurrency and latency of
+     * each context since the server started, one context per line.
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+
+        synchronized (handlers) {
+            for (MonitoredHandler h : handlers) {
+                sb.append("\n").append(h);
+            }
         }
+
+        return sb.toString();
+    }
+
+    private void createContext(String path, HttpHandler handler) {
+        MonitoredHandler h = new MonitoredHandler(path, handler);
+
+        synchronized (handlers) {
+            handlers.add(h);
+        }
+
+        httpServer.createContext(path, h);
+    }
+
+    /**
+     * A bounded pool for the exchanges. When all the threads are busy and the
+     * queue is full, the exchange runs in the dispatcher thread and it's
+     * answered with a 503 without calling the handler.
+     */
+    private static ThreadPoolExecutor newThreadPool() {
+        int numThreads = Math.max(1, LibrarySettings.LIBRARY_WIFI_SHARING_SERVER_THREADS.getValue());
+        int queueSize = Math.max(1, LibrarySettings.LIBRARY_WIFI_SHARING_SERVER_QUEUE.getValue());
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HttpServer-Worker");
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                MonitoredHandler.BUSY.set(Boolean.TRUE);
+                try {
+                    r.run();
+                } finally {
+                    MonitoredHandler.BUSY.remove();
+                }
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
     }
 }
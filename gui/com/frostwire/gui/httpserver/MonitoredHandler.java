@@ -0,0 +1,174 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.gui.httpserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Wraps the handler of a context, keeping the number of requests, the
+ * concurrency and the latency of the context, and answering with a 503 the
+ * requests the server is too busy to handle.
+ * <p>
+ * For the handlers that continue the work in their own threads, like the
+ * downloads, the latency is only the time to dispatch the request.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+class MonitoredHandler implements HttpHandler {
+
+    private static final int RETRY_AFTER_SECONDS = 10;
+
+    /**
+     * Set while the server runs a request it has no worker thread for.
+     */
+    static final ThreadLocal<Boolean> BUSY = new ThreadLocal<Boolean>();
+
+    private final String context;
+    private final HttpHandler handler;
+
+    private final AtomicLong numRequests;
+    private final AtomicLong numRejected;
+    private final AtomicLong numErrors;
+    private final AtomicLong totalTime;
+    private final AtomicLong maxTime;
+    private final AtomicInteger active;
+    private final AtomicInteger maxActive;
+
+    public MonitoredHandler(String context, HttpHandler handler) {
+        this.context = context;
+        this.handler = handler;
+
+        this.numRequests = new AtomicLong();
+        this.numRejected = new AtomicLong();
+        this.numErrors = new AtomicLong();
+        this.totalTime = new AtomicLong();
+        this.maxTime = new AtomicLong();
+        this.active = new AtomicInteger();
+        this.maxActive = new AtomicInteger();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (Boolean.TRUE.equals(BUSY.get())) {
+            numRejected.incrementAndGet();
+            sendBusyResponse(exchange);
+            return;
+        }
+
+        numRequests.incrementAndGet();
+        updateMax(maxActive, active.incrementAndGet());
+
+        long start = System.nanoTime();
+
+        try {
+            handler.handle(exchange);
+        } catch (IOException e) {
+            numErrors.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            numErrors.incrementAndGet();
+            throw e;
+        } finally {
+            long time = System.nanoTime() - start;
+
+            active.decrementAndGet();
+            totalTime.addAndGet(time);
+            updateMax(maxTime, time);
+        }
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    /**
+     * @return the average time to handle a request, in milliseconds
+     */
+    public long getAverageTime() {
+        long n = numRequests.get();
+        return n > 0 ? TimeUnit.NANOSECONDS.toMillis(totalTime.get() / n) : 0;
+    }
+
+    /**
+     * @return the max time to handle a request, in milliseconds
+     */
+    public long getMaxTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxTime.get());
+    }
+
+    @Override
+    public String toString() {
+        return context + ": requests=" + getNumRequests() + ", rejected=" + getNumRejected() + ", errors=" + getNumErrors() + ", active=" + getActive() + ", maxActive=" + getMaxActive() + ", avgTime=" + getAverageTime() + "ms, maxTime=" + getMaxTime() + "ms";
+    }
+
+    private void sendBusyResponse(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            exchange.sendResponseHeaders(Code.HTTP_UNAVAILABLE, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+}
@@ -27,28 +27,91 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.frostwire.ImageCache;
 import com.frostwire.gui.library.tags.TagsReader;
 import com.limegroup.gnutella.gui.GUIMediator;
+import com.limegroup.gnutella.settings.LibrarySettings;
+import com.limegroup.gnutella.util.DataUtils;
 
 /**
+ * Shows the artwork of the selected file.
+ * <p>
+ * The artwork is extracted by a single worker, if the selection changes
+ * while it's busy only the last file waits, so moving through a list of files
+ * parses the tags of a few of them. The extracted artwork is scaled down and
+ * kept in memory and on disk, by file path and modification time.
+ * 
  * @author gubatron
  * @author aldenml
  *
  */
 public final class LibraryCoverArt extends JPanel {
 
+    private static final Log LOG = LogFactory.getLog(LibraryCoverArt.class);
+
+    private static final int THUMBNAIL_SIZE = 350;
+
+    private static final int MAX_CACHED_THUMBNAILS = 32;
+
+    private static final long MAX_DISK_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private static final long MAX_DISK_CACHE_AGE = 90L * 24 * 60 * 60 * 1000; // 90 days
+
+    // cached for the files without artwork, so they are not parsed again
+    private static final Image NO_ARTWORK = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
     private final BufferedImage background;
     private final Image defaultCoverArt;
+    private final ExecutorService executor;
+    private final Map<String, Image> thumbnails;
 
     private Image coverArtImage;
-    private File file;
+    private volatile File file;
 
     public LibraryCoverArt() {
-        background = new BufferedImage(350, 350, BufferedImage.TYPE_INT_ARGB);
+        background = new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE, BufferedImage.TYPE_INT_ARGB);
         defaultCoverArt = GUIMediator.getThemeImage("default_cover_art").getImage();
+        thumbnails = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > MAX_CACHED_THUMBNAILS;
+            }
+        };
+        // a single pending request, a new one discards it
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Cover Art extract");
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    ImageCache.trimDiskCache(LibrarySettings.LIBRARY_COVER_ART_CACHE, MAX_DISK_CACHE_SIZE, MAX_DISK_CACHE_AGE);
+                } catch (Throwable e) {
+                    LOG.error("Failed to trim the cover art cache", e);
+                }
+            }
+        });
         setFile(null);
         addComponentListener(new ComponentAdapter() {
             @Override
@@ -67,26 +130,29 @@ public final class LibraryCoverArt extends JPanel {
             return;
         }
         this.file = file;
-        Thread t = new Thread(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
+                if (file == null || !file.equals(LibraryCoverArt.this.file)) {
+                    // the selection changed before getting here
+                    return;
+                }
                 Image image = retrieveImage(file);
-                if (file != null && file.equals(LibraryCoverArt.this.file)) {
+                if (file.equals(LibraryCoverArt.this.file)) {
                     setPrivateImage(image);
                 }
             }
-        }, "Cover Art extract");
-        t.setDaemon(true);
-        t.start();
+        });
     }
 
     public void setDefault() {
         this.file = null;
-        new Thread(new Runnable() {
+        executor.execute(new Runnable() {
             public void run() {
-                Image image = retrieveImage(file);
-                setPrivateImage(image);
+                if (LibraryCoverArt.this.file == null) {
+                    setPrivateImage(defaultCoverArt);
+                }
             }
-        }).start();
+        });
     }
 
     @Override
@@ -104,9 +170,111 @@ public final class LibraryCoverArt extends JPanel {
         if (file == null) {
             return defaultCoverArt;
         }
-        Image image = new TagsReader(file).getArtwork();
 
-        return image;
+        String key = file.getAbsolutePath() + ":" + file.lastModified();
+
+        Image image;
+        synchronized (thumbnails) {
+            image = thumbnails.get(key);
+        }
+
+        if (image == null) {
+            File cacheFile = getCacheFile(key);
+
+            image = readThumbnail(cacheFile);
+
+            if (image == null) {
+                image = scale(new TagsReader(file).getArtwork());
+                writeThumbnail(cacheFile, image);
+            }
+
+            synchronized (thumbnails) {
+                thumbnails.put(key, image);
+            }
+        }
+
+        return image != NO_ARTWORK ? image : null;
+    }
+
+    /**
+     * Scales the artwork down to the size of the panel, keeping the aspect ratio.
+     */
+    private static Image scale(BufferedImage image) {
+        if (image == null) {
+            return NO_ARTWORK;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (width <= THUMBNAIL_SIZE && height <= THUMBNAIL_SIZE) {
+            return image;
+        }
+
+        float ratio = Math.min((float) THUMBNAIL_SIZE / width, (float) THUMBNAIL_SIZE / height);
+        int w = Math.max(1, Math.round(width * ratio));
+        int h = Math.max(1, Math.round(height * ratio));
+
+        BufferedImage thumbnail = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = thumbnail.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2.drawImage(image, 0, 0, w, h, null);
+        g2.dispose();
+
+        return thumbnail;
+    }
+
+    private static File getCacheFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return new File(LibrarySettings.LIBRARY_COVER_ART_CACHE, DataUtils.toHexString(digest) + ".png");
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the thumbnail, NO_ARTWORK if the file has no artwork, or null if it's not cached
+     */
+    private static Image readThumbnail(File cacheFile) {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return null;
+        }
+
+        try {
+            if (cacheFile.length() == 0) {
+                return NO_ARTWORK;
+            }
+
+            Image image = ImageIO.read(cacheFile);
+            // the age of the cache is counted from the last use
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return image;
+        } catch (Throwable e) {
+            LOG.warn("Failed to read cover art thumbnail: " + cacheFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the thumbnail, or an empty file if there is no artwork.
+     */
+    private static void writeThumbnail(File cacheFile, Image image) {
+        if (cacheFile == null) {
+            return;
+        }
+
+        try {
+            cacheFile.getParentFile().mkdirs();
+
+            if (image == NO_ARTWORK) {
+                cacheFile.createNewFile();
+            } else {
+                ImageIO.write((BufferedImage) image, "png", cacheFile);
+            }
+        } catch (Throwable e) {
+            LOG.warn("Failed to write cover art thumbnail: " + cacheFile, e);
+        }
     }
 
     private void setPrivateImage(Image image) {
@@ -45,8 +45,6 @@ import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 
-import org.limewire.util.FileUtils;
-
 import com.frostwire.alexandria.InternetRadioStation;
 import com.frostwire.alexandria.Playlist;
 import com.frostwire.gui.bittorrent.TorrentUtil;
@@ -417,6 +415,8 @@ public class LibraryExplorer extends AbstractLibraryListPanel {
                             search(dir, new HashSet<File>(), LibrarySettings.DIRECTORIES_NOT_TO_INCLUDE.getValue());
                         }
                     }
+
+                    LibraryFilesIndex.instance().saveIfDirty();
                 } else {
                     GUIMediator.safeInvokeLater(new Runnable() {
                         public void run() {
@@ -434,7 +434,7 @@ public class LibraryExplorer extends AbstractLibraryListPanel {
 
         private void search(File file, Set<File> ignore, Set<File> exludedSubFolders) {
 
-            if (file == null || !file.isDirectory() || !file.exists()) {
+            if (file == null) {
                 return;
             }
 
@@ -443,27 +443,28 @@ public class LibraryExplorer extends AbstractLibraryListPanel {
                 selectMediaTypeSavedFilesDirectoryHolderbyType(_mtsfdh.getMediaType());
             }
 
-            List<File> directories = new ArrayList<File>();
-            final List<File> files = new ArrayList<File>();
+            LibraryFilesIndex.Listing listing = LibraryFilesIndex.instance().list(file);
 
-            for (File child : FileUtils.listFiles(file)) {// file.listFiles()) {
+            if (listing == null) {
+                return;
+            }
 
-                DirectoryHolder directoryHolder = getSelectedDirectoryHolder();
-                if (!_mtsfdh.equals(directoryHolder)) {
-                    return;
-                }
+            DirectoryHolder directoryHolder = getSelectedDirectoryHolder();
+            if (!_mtsfdh.equals(directoryHolder)) {
+                return;
+            }
 
-                if (ignore.contains(child)) {
-                    continue;
-                }
+            List<File> directories = new ArrayList<File>();
+            final List<File> files = new ArrayList<File>();
 
-                if (child.isHidden()) {
-                    continue;
+            for (File child : listing.getFolders()) {
+                if (!ignore.contains(child) && !exludedSubFolders.contains(child)) {
+                    directories.add(child);
                 }
+            }
 
-                if (child.isDirectory() && !exludedSubFolders.contains(child)) {
-                    directories.add(child);
-                } else if (_mtsfdh.accept(child)) {
+            for (File child : listing.getFiles()) {
+                if (!ignore.contains(child) && _mtsfdh.accept(child)) {
                     files.add(child);
                 }
             }
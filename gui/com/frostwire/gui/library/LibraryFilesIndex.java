@@ -0,0 +1,434 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.gui.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.limewire.util.FileUtils;
+
+import com.limegroup.gnutella.settings.LibrarySettings;
+
+/**
+ * Persistent index of the library folders, with the non hidden files and
+ * sub folders of every folder listed so far.
+ * <p>
+ * A folder is listed again only when its modification time changes, so the
+ * media type views walk the library with a stat per folder instead of a stat
+ * per file. If {@link LibrarySettings#LIBRARY_WATCH_FOLDERS} is enabled the
+ * indexed folders are also watched, and the ones without changes are trusted
+ * without checking the modification time.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public final class LibraryFilesIndex {
+
+    private static final Logger LOG = Logger.getLogger(LibraryFilesIndex.class.getName());
+
+    private static final int VERSION = 1;
+
+    private static final String[] EMPTY = new String[0];
+
+    // folders modified this recently are scanned again, the modification time can have a resolution of seconds
+    private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries;
+    private final Map<String, WatchKey> watchKeys;
+
+    private volatile boolean dirty;
+
+    private WatchService watcher;
+
+    private static LibraryFilesIndex instance;
+
+    public synchronized static LibraryFilesIndex instance() {
+        if (instance == null) {
+            instance = new LibraryFilesIndex(LibrarySettings.LIBRARY_FILES_INDEX);
+        }
+        return instance;
+    }
+
+    private LibraryFilesIndex(File indexFile) {
+        this.indexFile = indexFile;
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.watchKeys = new ConcurrentHashMap<String, WatchKey>();
+
+        load();
+
+        if (LibrarySettings.LIBRARY_WATCH_FOLDERS.getValue()) {
+            startWatcher();
+        }
+    }
+
+    /**
+     * Returns the non hidden files and sub folders of the folder, listing it
+     * again only if it changed since the last time.
+     *
+     * @param folder
+     * @return the listing, or null if the file is not a folder
+     */
+    public Listing list(File folder) {
+        String path = folder.getAbsolutePath();
+
+        Entry entry = entries.get(path);
+
+        if (entry != null && isWatched(path)) {
+            return new Listing(folder, entry);
+        }
+
+        // watched before checking it, so the changes after this point are not missed
+        watch(folder);
+
+        long lastModified = folder.lastModified();
+
+        if (entry != null && entry.lastModified == lastModified && lastModified != 0) {
+            return new Listing(folder, entry);
+        }
+
+        if (!folder.isDirectory()) {
+            if (entry != null) {
+                remove(path);
+            }
+            return null;
+        }
+
+        Entry newEntry = scan(folder, lastModified);
+
+        if (entry != null) {
+            removeMissingFolders(path, entry, newEntry);
+        }
+
+        entries.put(path, newEntry);
+        dirty = true;
+
+        return new Listing(folder, newEntry);
+    }
+
+    /**
+     * Saves the index to disk if it changed since the last save.
+     */
+    public synchronized void saveIfDirty() {
+        if (!dirty) {
+            return;
+        }
+
+        dirty = false;
+
+        indexFile.getParentFile().mkdirs();
+
+        File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastModified);
+                writeNames(out, entry.files);
+                writeNames(out, entry.folders);
+            }
+
+            out.close();
+            out = null;
+
+            if (!FileUtils.forceRename(tempFile, indexFile)) {
+                LOG.warning("Unable to save the library files index to " + indexFile);
+            }
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Error saving the library files index", e);
+            dirty = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the folder and its sub folders, for the folders no longer in
+     * the library.
+     *
+     * @param folder
+     */
+    public void remove(File folder) {
+        remove(folder.getAbsolutePath());
+    }
+
+    private Entry scan(File folder, long lastModified) {
+        List<String> files = new ArrayList<String>();
+        List<String> folders = new ArrayList<String>();
+
+        for (File child : FileUtils.listFiles(folder)) {
+            if (child.isHidden()) {
+                continue;
+            }
+
+            if (child.isDirectory()) {
+                folders.add(child.getName());
+            } else {
+                files.add(child.getName());
+            }
+        }
+
+        if (System.currentTimeMillis() - lastModified < MODIFICATION_TIME_RESOLUTION) {
+            // the folder could change again without a new modification time
+            lastModified = -1;
+        }
+
+        return new Entry(lastModified, files.toArray(EMPTY), folders.toArray(EMPTY));
+    }
+
+    private void removeMissingFolders(String path, Entry oldEntry, Entry newEntry) {
+        Set<String> folders = new HashSet<String>();
+        for (String name : newEntry.folders) {
+            folders.add(name);
+        }
+
+        for (String name : oldEntry.folders) {
+            if (!folders.contains(name)) {
+                remove(new File(path, name).getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Removes the folder and all its sub folders.
+     */
+    private void remove(String path) {
+        String prefix = path + File.separator;
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                it.remove();
+                unwatch(key);
+            }
+        }
+
+        dirty = true;
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+            if (in.readInt() != VERSION) {
+                return;
+            }
+
+            int size = in.readInt();
+
+            for (int i = 0; i < size; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                String[] files = readNames(in);
+                String[] folders = readNames(in);
+
+                entries.put(path, new Entry(lastModified, files, folders));
+            }
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Error loading the library files index, it will be rebuilt", e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        String[] names = new String[length];
+        for (int i = 0; i < length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    private boolean isWatched(String path) {
+        WatchKey key = watchKeys.get(path);
+        return key != null && key.isValid();
+    }
+
+    private void watch(File folder) {
+        WatchService watcher = this.watcher;
+
+        if (watcher == null) {
+            return;
+        }
+
+        String path = folder.getAbsolutePath();
+
+        if (isWatched(path)) {
+            return;
+        }
+
+        try {
+            WatchKey key = folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watchKeys.put(path, key);
+        } catch (Throwable e) {
+            // too many watches, or not supported by the file system, the modification time is used
+            LOG.fine("Unable to watch folder " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void unwatch(String path) {
+        WatchKey key = watchKeys.remove(path);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    private void startWatcher() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (Throwable e) {
+            LOG.log(Level.WARNING, "Unable to start watching the library folders", e);
+            return;
+        }
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processWatchEvents();
+            }
+        }, "LibraryFilesIndex-Watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Drops the watch of the folders with changes, so the next listing checks
+     * the modification time and scans them again.
+     */
+    private void processWatchEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+
+                // any change, even an overflow, means the folder has to be listed again
+                key.pollEvents();
+
+                Path dir = (Path) key.watchable();
+                String path = dir.toFile().getAbsolutePath();
+
+                key.cancel();
+                watchKeys.remove(path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+        private final String[] files;
+        private final String[] folders;
+
+        public Entry(long lastModified, String[] files, String[] folders) {
+            this.lastModified = lastModified;
+            this.files = files;
+            this.folders = folders;
+        }
+    }
+
+    /**
+     * The non hidden files and sub folders of a folder.
+     */
+    public static final class Listing {
+
+        private final File folder;
+        private final Entry entry;
+
+        private Listing(File folder, Entry entry) {
+            this.folder = folder;
+            this.entry = entry;
+        }
+
+        public File[] getFiles() {
+            return toFiles(entry.files);
+        }
+
+        public File[] getFolders() {
+            return toFiles(entry.folders);
+        }
+
+        private File[] toFiles(String[] names) {
+            File[] files = new File[names.length];
+            for (int i = 0; i < names.length; i++) {
+                files[i] = new File(folder, names[i]);
+            }
+            return files;
+        }
+    }
+}
@@ -75,43 +75,43 @@ public class LibraryUtils {
 
     private static final ExecutorService executor;
 
+    /** number of imported files saved to a playlist at once */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
     static {
         executor = ExecutorsHelper.newProcessingQueue("LibraryUtils-Executor");
     }
 
-    private static void addPlaylistItem(Playlist playlist, File file, boolean starred) {
-        addPlaylistItem(playlist, file, starred, -1);
-    }
+    /**
+     * Reads the tags of the files and adds them to the playlist in batches, the playlist
+     * view is refreshed after each batch.
+     */
+    private static void addPlaylistItems(Playlist playlist, List<File> files, boolean starred, int index) {
+        List<PlaylistItem> batch = new ArrayList<PlaylistItem>(IMPORT_BATCH_SIZE);
 
-    private static void addPlaylistItem(Playlist playlist, File file, boolean starred, int index) {
         try {
-            LibraryMediator.instance().getLibrarySearch().pushStatus(I18n.tr("Importing") + " " + file.getName());
-            TagsData mt = new TagsReader(file).parse();
-            PlaylistItem item = playlist.newItem(file.getAbsolutePath(), file.getName(), file.length(), FileUtils.getFileExtension(file), mt.getTitle(), mt.getDuration(), mt.getArtist(), mt.getAlbum(), "",// TODO: cover art path
-                    mt.getBitrate(), mt.getComment(), mt.getGenre(), mt.getTrack(), mt.getYear(), starred);
-
-            List<PlaylistItem> items = playlist.getItems();
-            if (index != -1 && index < items.size()) {
-
-                // insert item
-                items.add(index, item);
-
-                // update all sort indexes from insertion point onwards
-                for (int i = index; i < items.size(); i++) {
-                    PlaylistItem cur_item = items.get(i);
-                    cur_item.setSortIndex(i + 1); //set index 1-based
-                    cur_item.save();
-                }
+            for (int i = 0; i < files.size() && !playlist.isDeleted(); i++) {
+                File file = files.get(i);
 
-            } else {
-                items.add(item);
-                item.setSortIndex(items.size()); // set sort index to 1-based size
-                item.save();
-            }
+                LibraryMediator.instance().getLibrarySearch().pushStatus(I18n.tr("Importing") + " " + file.getName());
+                TagsData mt = new TagsReader(file).parse();
+                batch.add(playlist.newItem(file.getAbsolutePath(), file.getName(), file.length(), FileUtils.getFileExtension(file), mt.getTitle(), mt.getDuration(), mt.getArtist(), mt.getAlbum(), "",// TODO: cover art path
+                        mt.getBitrate(), mt.getComment(), mt.getGenre(), mt.getTrack(), mt.getYear(), starred));
 
-            if (isPlaylistSelected(playlist)) {
-                // refresh UI
-                LibraryMediator.instance().getLibraryPlaylists().refreshSelection();
+                if (batch.size() == IMPORT_BATCH_SIZE || i == files.size() - 1) {
+                    playlist.addItems(index, batch);
+
+                    if (index != -1) {
+                        index += batch.size();
+                    }
+
+                    batch.clear();
+
+                    if (isPlaylistSelected(playlist)) {
+                        // refresh UI
+                        LibraryMediator.instance().getLibraryPlaylists().refreshSelection();
+                    }
+                }
             }
         } finally {
             LibraryMediator.instance().getLibrarySearch().revertStatus();
@@ -436,12 +436,14 @@ public class LibraryUtils {
     }
 
     private static void addToPlaylist(Playlist playlist, List<? extends AbstractLibraryTableDataLine<?>> lines) {
+        List<File> files = new ArrayList<File>(lines.size());
         for (int i = 0; i < lines.size() && !playlist.isDeleted(); i++) {
             AbstractLibraryTableDataLine<?> line = lines.get(i);
             if (MediaPlayer.isPlayableFile(line.getFile())) {
-                LibraryUtils.addPlaylistItem(playlist, line.getFile(), false);
+                files.add(line.getFile());
             }
         }
+        addPlaylistItems(playlist, files, false, -1);
     }
 
     private static int addToPlaylist(Playlist playlist, File[] files, boolean starred, Set<File> ignore) {
@@ -449,17 +451,24 @@ public class LibraryUtils {
     }
 
     private static int addToPlaylist(Playlist playlist, File[] files, boolean starred, int index, Set<File> ignore) {
-        int count = 0;
+        List<File> playableFiles = new ArrayList<File>();
+        collectPlayableFiles(playlist, files, ignore, playableFiles);
+        addPlaylistItems(playlist, playableFiles, starred, index);
+
+        return playableFiles.size();
+    }
+
+    private static void collectPlayableFiles(Playlist playlist, File[] files, Set<File> ignore, List<File> playableFiles) {
         for (int i = 0; i < files.length && !playlist.isDeleted(); i++) {
             if (MediaPlayer.isPlayableFile(files[i]) && !ignore.contains(files[i])) {
-                LibraryUtils.addPlaylistItem(playlist, files[i], starred, index + count);
-                count++;
+                playableFiles.add(files[i]);
             } else if (files[i].isDirectory()) {
-                count += addToPlaylist(playlist, files[i].listFiles(), starred, index + count, ignore);
+                File[] children = files[i].listFiles();
+                if (children != null) {
+                    collectPlayableFiles(playlist, children, ignore, playableFiles);
+                }
             }
         }
-
-        return count;
     }
 
     private static void addToPlaylist(Playlist playlist, PlaylistItem[] playlistItems) {
@@ -503,18 +512,16 @@ public class LibraryUtils {
             }
 
         } else {
+            List<PlaylistItem> toAdd = new ArrayList<PlaylistItem>(playlistItems.length);
             for (int i = 0; i < playlistItems.length && !playlist.isDeleted(); i++) {
-
-                playlistItems[i].setPlaylist(playlist);
-                items.add(playlistItems[i]);
-                playlistItems[i].setSortIndex(items.size()); // set sort index to be at the end (1-based)
-
                 if (starred) {
                     playlistItems[i].setStarred(starred);
                 }
-
-                playlistItems[i].save();
+                toAdd.add(playlistItems[i]);
             }
+
+            // sort indexes are set to be at the end (1-based)
+            playlist.addItems(toAdd);
         }
     }
 
@@ -819,11 +826,7 @@ public class LibraryUtils {
         }
 
         // second, generate new indexes based list order
-        for (int i = 0; i < items.size(); i++) {
-            PlaylistItem item = items.get(i);
-            item.setSortIndex(i + 1); // set index (1-based)
-            item.save();
-        }
+        playlist.saveSortIndexes();
 
         // initiate UI refresh
         GUIMediator.safeInvokeLater(new Runnable() {
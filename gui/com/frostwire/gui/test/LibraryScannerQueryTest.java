@@ -0,0 +1,221 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.gui.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.frostwire.content.ContentValues;
+import com.frostwire.content.Context;
+import com.frostwire.core.providers.ShareFilesDB;
+import com.frostwire.core.providers.ShareFilesDB.Columns;
+import com.frostwire.database.Cursor;
+import com.frostwire.database.sqlite.SQLiteDatabase;
+import com.frostwire.database.sqlite.SQLiteOpenHelper;
+import com.frostwire.gui.LibraryScanner;
+import com.limegroup.gnutella.settings.ApplicationSettings;
+
+/**
+ * Queries the share table while a {@link LibraryScanner} writes its batches,
+ * and while a write transaction stays open longer than the lock timeout, as
+ * a flush on a slow disk does, checking that every query returns a cursor
+ * and doesn't wait for the writes to finish.
+ * <p>
+ * Usage: LibraryScannerQueryTest [num_files]
+ * <p>
+ * The share table is created in a scratch folder, the settings aren't saved.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public class LibraryScannerQueryTest {
+
+    // a query waiting for a table lock fails after 2 seconds
+    private static final long MAX_QUERY_TIME = 1000;
+
+    private static final long SLOW_FLUSH_TIME = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+        // in the application the driver is registered by the first database opened
+        Class.forName("org.h2.Driver");
+
+        File root = new File(System.getProperty("java.io.tmpdir"), "LibraryScannerQueryTest-" + System.currentTimeMillis());
+        ApplicationSettings.APP_DATABASES_PATH.setValue(new File(root, "dbs"));
+
+        boolean ok;
+
+        try {
+            ok = run(new File(root, "files"), numFiles);
+        } finally {
+            deleteFiles(root);
+        }
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean run(final File folder, int numFiles) throws IOException, InterruptedException {
+        createFiles(folder, numFiles);
+
+        final AtomicBoolean scanning = new AtomicBoolean(true);
+
+        Thread scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new LibraryScanner(Collections.<File> emptySet(), null).scan(folder);
+                } finally {
+                    scanning.set(false);
+                }
+            }
+        }, "LibraryScannerQueryTest-Scanner");
+
+        boolean ok = queryWhile(scanner, scanning, folder, "scan");
+
+        // a flush on a slow disk, the write transaction stays open longer than the lock timeout
+        final SQLiteDatabase db = new ShareFilesHelper().getWritableDatabase();
+
+        final AtomicBoolean flushing = new AtomicBoolean(true);
+
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(Columns.FILE_PATH, new File(folder, "slow.txt").getAbsolutePath());
+                    values.put(Columns.SHARED, true);
+                    db.insert("ShareFiles", "", values);
+
+                    Thread.sleep(SLOW_FLUSH_TIME);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // rolled back, the row is not part of the library
+                    db.endTransaction();
+                    flushing.set(false);
+                }
+            }
+        }, "LibraryScannerQueryTest-Flusher");
+
+        ok &= queryWhile(flusher, flushing, folder, "slow flush");
+
+        db.close();
+
+        return ok;
+    }
+
+    /**
+     * Runs the writer and queries the rows under the folder until it ends.
+     *
+     * @return true if every query returned a cursor in time
+     */
+    private static boolean queryWhile(Thread writer, AtomicBoolean writing, File folder, String name) throws InterruptedException {
+        String[] columns = new String[] { Columns.ID, Columns.FILE_PATH };
+        String where = Columns.FILE_PATH + " LIKE ? AND " + Columns.SHARED + " = ?";
+        String[] whereArgs = new String[] { folder.getAbsolutePath() + "%", String.valueOf(true) };
+
+        int numQueries = 0;
+        int numFailed = 0;
+        long maxTime = 0;
+        int numRows = 0;
+
+        long start = System.currentTimeMillis();
+
+        writer.start();
+
+        while (writing.get()) {
+            long time = System.currentTimeMillis();
+
+            Cursor c = ShareFilesDB.intance().query(columns, where, whereArgs, null);
+
+            if (c == null) {
+                numFailed++;
+            } else {
+                try {
+                    numRows = 0;
+                    while (c.moveToNext()) {
+                        numRows++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            time = System.currentTimeMillis() - time;
+            maxTime = Math.max(maxTime, time);
+            numQueries++;
+        }
+
+        writer.join();
+
+        System.out.println(name + ": " + (System.currentTimeMillis() - start) + " ms, " + numQueries + " queries, " + numFailed + " without cursor, max time " + maxTime + " ms, last count " + numRows);
+
+        return numQueries > 0 && numFailed == 0 && maxTime <= MAX_QUERY_TIME;
+    }
+
+    private static void createFiles(File folder, int numFiles) throws IOException {
+        for (int i = 0; i < numFiles; i++) {
+            File sub = new File(folder, "folder" + (i % 10));
+            sub.mkdirs();
+
+            FileOutputStream out = new FileOutputStream(new File(sub, "file" + i + ".txt"));
+            try {
+                out.write(("file " + i).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void deleteFiles(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteFiles(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A second connection to the share table, the test writes to it the way
+     * {@link ShareFilesDB#bulkInsert(ContentValues[])} does.
+     */
+    private static final class ShareFilesHelper extends SQLiteOpenHelper {
+
+        public ShareFilesHelper() {
+            super(new Context(), "sharefiles", null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
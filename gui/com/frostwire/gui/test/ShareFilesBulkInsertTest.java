@@ -0,0 +1,132 @@
+/*
+ * Created by Angel Leon (@gubatron), Alden Torres (aldenml)
+ * Copyright (c) 2011, 2012, FrostWire(R). All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.frostwire.gui.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.frostwire.content.ContentValues;
+import com.frostwire.content.Context;
+import com.frostwire.core.providers.ShareFilesDB;
+import com.frostwire.core.providers.ShareFilesDB.Columns;
+import com.frostwire.database.Cursor;
+import com.frostwire.database.sqlite.SQLiteDatabase;
+import com.frostwire.database.sqlite.SQLiteOpenHelper;
+import com.limegroup.gnutella.settings.ApplicationSettings;
+
+/**
+ * Writes a batch to a share table created with the old INTEGER file size
+ * column, with a file over 2GB and a row that can't be inserted, checking
+ * that the column is widened when opened, that the big size reads back and
+ * that only the bad row is skipped.
+ * <p>
+ * The share table is created in a scratch folder, the settings aren't saved.
+ *
+ * @author gubatron
+ * @author aldenml
+ *
+ */
+public class ShareFilesBulkInsertTest {
+
+    private static final long BIG_FILE_SIZE = 3L * 1024 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        // in the application the driver is registered by the first database opened
+        Class.forName("org.h2.Driver");
+
+        File folder = new File(System.getProperty("java.io.tmpdir"), "ShareFilesBulkInsertTest-" + System.currentTimeMillis());
+        ApplicationSettings.APP_DATABASES_PATH.setValue(new File(folder, "dbs"));
+
+        new OldShareFilesHelper().getWritableDatabase().close();
+
+        boolean ok = bulkInsert(folder);
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean bulkInsert(File folder) {
+        ContentValues small = newRow(new File(folder, "small.txt"), 10);
+        ContentValues big = newRow(new File(folder, "big.iso"), BIG_FILE_SIZE);
+        ContentValues bad = newRow(new File(folder, "bad.txt"), 20);
+        bad.put(Columns.FILE_TYPE, "x");
+        ContentValues last = newRow(new File(folder, "last.txt"), 30);
+
+        List<ContentValues> written = new ArrayList<ContentValues>();
+        int count = ShareFilesDB.intance().bulkInsert(new ContentValues[] { small, big, bad, last }, written);
+
+        Map<String, Long> sizes = readSizes(folder);
+
+        System.out.println("count " + count + ", written " + written.size() + ", rows " + sizes);
+
+        return count == 3 && written.size() == 3 && !written.contains(bad) && sizes.size() == 3 && Long.valueOf(BIG_FILE_SIZE).equals(sizes.get(big.getAsString(Columns.FILE_PATH)))
+                && !sizes.containsKey(bad.getAsString(Columns.FILE_PATH));
+    }
+
+    private static ContentValues newRow(File file, long size) {
+        ContentValues values = new ContentValues();
+        values.put(Columns.FILE_PATH, file.getAbsolutePath());
+        values.put(Columns.FILE_SIZE, size);
+        return values;
+    }
+
+    private static Map<String, Long> readSizes(File folder) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+
+        Cursor c = ShareFilesDB.intance().query(new String[] { Columns.FILE_PATH, Columns.FILE_SIZE }, Columns.FILE_PATH + " LIKE ?", new String[] { folder.getAbsolutePath() + "%" }, null);
+
+        try {
+            int filePathCol = c.getColumnIndex(Columns.FILE_PATH);
+            int fileSizeCol = c.getColumnIndex(Columns.FILE_SIZE);
+
+            while (c.moveToNext()) {
+                sizes.put(c.getString(filePathCol), c.getLong(fileSizeCol));
+            }
+        } finally {
+            c.close();
+        }
+
+        return sizes;
+    }
+
+    /**
+     * The share table as created before the file size column was BIGINT.
+     */
+    private static final class OldShareFilesHelper extends SQLiteOpenHelper {
+
+        public OldShareFilesHelper() {
+            super(new Context(), "sharefiles", null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("SET IGNORECASE TRUE");
+
+            db.execSQL("CREATE TABLE ShareFiles (" + Columns.ID + " INTEGER IDENTITY," + Columns.FILE_TYPE + " INTEGER," + Columns.FILE_PATH + " VARCHAR," + Columns.FILE_SIZE + " INTEGER," + Columns.MIME + " VARCHAR," + Columns.DATE_ADDED + " BIGINT," + Columns.DATE_MODIFIED + " BIGINT,"
+                    + Columns.SHARED + " BOOLEAN," + Columns.TITLE + " VARCHAR," + Columns.ARTIST + " VARCHAR," + Columns.ALBUM + " VARCHAR," + Columns.YEAR + " VARCHAR" + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -58,6 +58,11 @@ public class PeerHttpUpload implements UploadTransfer {
     private long speedMarkTimestamp;
     private long totalSentSinceLastSpeedStamp;
 
+    // variables to limit the upload rate of this transfer
+    private long maxSpeed; // in bytes, 0 for no limit
+    private long throttleMarkTimestamp;
+    private long totalSentSinceLastThrottleStamp;
+
     public PeerHttpUpload(/*TransferManager manager,*/FileDescriptor fd) {
         //this.manager = manager;
         this.fd = fd;
@@ -137,6 +142,54 @@ public class PeerHttpUpload implements UploadTransfer {
         updateAverageUploadSpeed();
     }
 
+    /**
+     * Starts counting the bytes sent from the given position of the file, for
+     * the uploads of a range of the file.
+     * 
+     * @param offset
+     */
+    public void setOffset(long offset) {
+        bytesSent = offset;
+        totalSentSinceLastSpeedStamp = offset;
+        totalSentSinceLastThrottleStamp = offset;
+    }
+
+    public long getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * @param maxSpeed in bytes per second, 0 for no limit
+     */
+    public void setMaxSpeed(long maxSpeed) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    /**
+     * Blocks the uploading thread until the bytes sent so far are within the
+     * max speed of the upload.
+     * 
+     * @throws InterruptedException
+     */
+    public void throttle() throws InterruptedException {
+        if (maxSpeed <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        long expectedTime = ((bytesSent - totalSentSinceLastThrottleStamp) * 1000) / maxSpeed;
+        long elapsedTime = now - throttleMarkTimestamp;
+
+        if (throttleMarkTimestamp == 0 || elapsedTime - expectedTime > SPEED_AVERAGE_CALCULATION_INTERVAL_MILLISECONDS) {
+            // start again, the time the upload was below the max speed doesn't count as credit
+            throttleMarkTimestamp = now;
+            totalSentSinceLastThrottleStamp = bytesSent;
+        } else if (expectedTime > elapsedTime) {
+            Thread.sleep(expectedTime - elapsedTime);
+        }
+    }
+
     public void complete() {
         status = STATUS_COMPLETE;
         cancel();
@@ -19,6 +19,7 @@ import org.limewire.util.FileUtils;
 
 import com.frostwire.gui.Librarian;
 import com.frostwire.gui.library.AddLibraryDirectoryAction;
+import com.frostwire.gui.library.LibraryFilesIndex;
 import com.frostwire.gui.library.LibraryMediator;
 import com.frostwire.gui.library.RecursiveLibraryDirectoryPanel;
 import com.frostwire.gui.library.RemoveLibraryDirectoryAction;
@@ -183,6 +184,7 @@ public final class LibraryFoldersPaneItem extends AbstractPaneItem {
 	        }
 	        System.out.println("Deleting from share table: " + folderToUnshare.getAbsolutePath());
 	        Librarian.instance().deleteFolderFilesFromShareTable(folderToUnshare.getAbsolutePath());
+	        LibraryFilesIndex.instance().remove(folderToUnshare);
 	    }
 	    
 	    UPnPManager.instance().refreshPing();
@@ -16,6 +16,7 @@
 package com.limegroup.gnutella.gui.search;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.limegroup.gnutella.gui.tables.AbstractTableMediator;
@@ -147,6 +148,34 @@ class ResultPanelModel extends BasicDataLineModel<SearchResultDataLine, UISearch
         return addedAt;
     }
 
+    /**
+     * Adds the lines at the end of the list, firing a single event. If sort
+     * is true and the model is sorted, the list is resorted once instead of
+     * inserting each line in its sorted position.
+     */
+    public void addAll(List<SearchResultDataLine> lines, boolean sort) {
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        int first = _list.size();
+
+        for (SearchResultDataLine tl : lines) {
+            _numResults += 1;
+            String sha1 = tl.getHash();
+            if (sha1 != null)
+                _indexes.put(sha1, new Integer(_list.size()));
+            _list.add(tl);
+        }
+
+        if (sort && isSorted()) {
+            doResort();
+            fireTableDataChanged();
+        } else {
+            fireTableRowsInserted(first, _list.size() - 1);
+        }
+    }
+
     /**
      * Gets the row this DataLine is at.
      */
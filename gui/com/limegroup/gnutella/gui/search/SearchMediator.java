@@ -15,6 +15,8 @@
 
 package com.limegroup.gnutella.gui.search;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
 import java.text.Normalizer;
 import java.util.ArrayList;
@@ -25,10 +27,15 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JComponent;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -49,6 +56,7 @@ import com.frostwire.search.SearchManagerImpl;
 import com.frostwire.search.SearchManagerListener;
 import com.frostwire.search.SearchPerformer;
 import com.frostwire.search.SearchResult;
+import com.frostwire.search.TieredCrawlCache;
 import com.frostwire.search.VuzeMagnetDownloader;
 import com.frostwire.search.archiveorg.ArchiveorgCrawledSearchResult;
 import com.frostwire.search.torrent.TorrentSearchResult;
@@ -109,8 +117,20 @@ public final class SearchMediator {
 
     private static final int SEARCH_MANAGER_NUM_THREADS = 6;
 
+    /**
+     * Time the results received by the search threads wait to be added to the
+     * tables, so they are added in batches.
+     */
+    private static final int RESULTS_FLUSH_INTERVAL = 100;
+
     private final SearchManager manager;
 
+    private final Queue<PendingResults> pendingResults;
+    private final AtomicBoolean flushScheduled;
+    private final Timer flushTimer;
+
+    private TieredCrawlCache crawlCache;
+
     /**
      * This instance handles the display of all search results.
      * TODO: Changed to package-protected for testing to add special results
@@ -146,13 +166,23 @@ public final class SearchMediator {
         });
 
         try {
-            CrawlPagedWebSearchPerformer.setCache(new DatabaseCrawlCache());
+            crawlCache = new TieredCrawlCache(new DatabaseCrawlCache(), SearchSettings.SMART_SEARCH_MEMORY_CACHE_SIZE.getValue());
+            CrawlPagedWebSearchPerformer.setCache(crawlCache);
         } catch (Throwable t) {
             LOG.error("could not set database crawl cache", t);
         }
 
         CrawlPagedWebSearchPerformer.setMagnetDownloader(new VuzeMagnetDownloader());
 
+        this.pendingResults = new ConcurrentLinkedQueue<PendingResults>();
+        this.flushScheduled = new AtomicBoolean();
+        this.flushTimer = new Timer(RESULTS_FLUSH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flushResults();
+            }
+        });
+        this.flushTimer.setRepeats(false);
+
         this.manager = new SearchManagerImpl(SEARCH_MANAGER_NUM_THREADS);
         this.manager.registerListener(new ManagerListener());
     }
@@ -493,6 +523,11 @@ public final class SearchMediator {
 
     public void shutdown() {
         manager.stop();
+
+        if (crawlCache != null) {
+            // flush the pending writes to the crawl database
+            crawlCache.shutdown(2, TimeUnit.SECONDS);
+        }
     }
 
     /**
@@ -531,10 +566,84 @@ public final class SearchMediator {
         return SEARCH_FILTER_FACTORY;
     }
 
-    private void onFinished(long token) {
-        SearchResultMediator rp = getResultPanelForGUID(token);
-        updateSearchIcon(token, false);
-        rp.setToken(0); // to identify that the search is stopped (needs refactor)
+    private void onFinished(final long token) {
+        GUIMediator.safeInvokeLater(new Runnable() {
+            public void run() {
+                // the results still waiting belong to this search
+                flushResults();
+
+                SearchResultMediator rp = getResultPanelForGUID(token);
+                if (rp != null) {
+                    rp.updateSearchIcon(false);
+                    rp.setToken(0); // to identify that the search is stopped (needs refactor)
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the results to be added to the table in the next flush, it
+     * doesn't wait for the UI thread.
+     */
+    private void addResults(long token, SearchResultMediator rp, List<UISearchResult> results) {
+        pendingResults.add(new PendingResults(token, rp, results));
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            GUIMediator.safeInvokeLater(new Runnable() {
+                public void run() {
+                    flushTimer.restart();
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the queued results to their tables, with one insert per table.
+     * Must be called in the UI thread.
+     */
+    private void flushResults() {
+        // set before draining, the results queued after this are flushed next time
+        flushScheduled.set(false);
+
+        if (pendingResults.isEmpty()) {
+            return;
+        }
+
+        List<PendingResults> batches = new ArrayList<PendingResults>();
+
+        PendingResults results;
+        while ((results = pendingResults.poll()) != null) {
+            PendingResults batch = null;
+            for (PendingResults b : batches) {
+                if (b.rp == results.rp && b.token == results.token) {
+                    batch = b;
+                    break;
+                }
+            }
+
+            if (batch == null) {
+                batches.add(results);
+            } else {
+                batch.results.addAll(results.results);
+            }
+        }
+
+        SearchFilter filter = getSearchFilterFactory().createFilter();
+
+        for (PendingResults batch : batches) {
+            try {
+                List<UISearchResult> allowed = new ArrayList<UISearchResult>(batch.results.size());
+                for (UISearchResult sr : batch.results) {
+                    if (filter.allow(sr)) {
+                        allowed.add(sr);
+                    }
+                }
+
+                getSearchResultDisplayer().addQueryResults(batch.token, allowed, batch.rp);
+            } catch (Throwable e) {
+                LOG.error("Error adding search results", e);
+            }
+        }
     }
 
     private final class ManagerListener implements SearchManagerListener {
@@ -557,23 +666,9 @@ public final class SearchMediator {
                         return;
                     }
 
-                    final List<UISearchResult> uiResults = convertResults(filtered, se, rp.getQuery());
-
-                    GUIMediator.safeInvokeAndWait(new Runnable() {
-                        public void run() {
-                            try {
-                                SearchFilter filter = getSearchFilterFactory().createFilter();
-                                for (UISearchResult sr : uiResults) {
-                                    if (filter.allow(sr)) {
-                                        getSearchResultDisplayer().addQueryResult(token, sr, rp);
-                                    }
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                    });
+                    List<UISearchResult> uiResults = convertResults(filtered, se, rp.getQuery());
+
+                    addResults(token, rp, uiResults);
                 }
             }
         }
@@ -601,4 +696,17 @@ public final class SearchMediator {
         }
         return r;
     }
+
+    private static final class PendingResults {
+
+        private final long token;
+        private final SearchResultMediator rp;
+        private final List<UISearchResult> results;
+
+        public PendingResults(long token, SearchResultMediator rp, List<UISearchResult> results) {
+            this.token = token;
+            this.rp = rp;
+            this.results = results;
+        }
+    }
 }
@@ -365,6 +365,28 @@ public final class SearchResultDisplayer implements RefreshListener {
         tabbedPane.setTitleAt(resultPanelIndex, titleOf(rp));
     }
 
+    /**
+     * Adds the results to the result panel, updating its tab once.
+     * 
+     * @param token the token of the search the results are for, the results
+     *        are discarded if the panel shows another search
+     */
+    void addQueryResults(long token, List<UISearchResult> lines, SearchResultMediator rp) {
+        if (rp.isStopped() || !rp.matches(token)) {
+            return;
+        }
+
+        rp.addAll(lines);
+
+        int resultPanelIndex = entries.indexOf(rp);
+
+        // If we couldn't find it, silently exit.
+        if (resultPanelIndex == -1)
+            return;
+
+        tabbedPane.setTitleAt(resultPanelIndex, titleOf(rp));
+    }
+
     void updateSearchIcon(SearchResultMediator rp, boolean active) {
         int resultPanelIndex = -1;
         // Search for the ResultPanel to verify it exists.
@@ -23,6 +23,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -876,4 +877,56 @@ public final class SearchResultMediator extends AbstractTableMediator<TableRowFi
 
         schemaBox.updateCounters(o);
     }
+
+    /**
+     * Adds the results with a single table event and at most one resort,
+     * keeping the selected rows.
+     */
+    void addAll(List<UISearchResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        if (TABLE.isEditing()) {
+            TABLE.getCellEditor().cancelCellEditing();
+        }
+
+        List<SearchResultDataLine> lines = new ArrayList<SearchResultDataLine>(results.size());
+        for (UISearchResult sr : results) {
+            SearchResultDataLine line = DATA_MODEL.getNewDataLine(sr);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+
+        if (SETTINGS.REAL_TIME_SORT.getValue() && DATA_MODEL.isSorted()) {
+            // the rows move, the selected lines are selected again after the resort
+            int[] rows = TABLE.getSelectedRows();
+            SearchResultDataLine[] selected = new SearchResultDataLine[rows.length];
+            SearchResultDataLine inView = null;
+            for (int i = 0; i < rows.length; i++) {
+                selected[i] = DATA_MODEL.get(rows[i]);
+                if (inView == null && TABLE.isRowVisible(rows[i]))
+                    inView = selected[i];
+            }
+
+            DATA_MODEL.addAll(lines, true);
+
+            for (SearchResultDataLine line : selected) {
+                int row = DATA_MODEL.getRow(line);
+                if (row != -1) {
+                    TABLE.addRowSelectionInterval(row, row);
+                    if (inView == line) {
+                        TABLE.ensureRowVisible(row);
+                    }
+                }
+            }
+        } else {
+            DATA_MODEL.addAll(lines, false);
+        }
+
+        for (UISearchResult sr : results) {
+            schemaBox.updateCounters(sr);
+        }
+    }
 }
\ No newline at end of file
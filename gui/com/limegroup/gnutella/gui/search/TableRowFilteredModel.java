@@ -96,6 +96,32 @@ public class TableRowFilteredModel extends ResultPanelModel {
         return -1;
     }
 
+    /**
+     * Determines which of the lines should be added, as in
+     * {@link #add(SearchResultDataLine, int)}, and adds them at once.
+     */
+    @Override
+    public void addAll(List<SearchResultDataLine> lines, boolean sort) {
+        List<SearchResultDataLine> allowed = new ArrayList<SearchResultDataLine>(lines.size());
+
+        for (SearchResultDataLine tl : lines) {
+            boolean isNotJunk = junkFilter.allow(tl);
+
+            if (isNotJunk || !SearchSettings.hideJunk()) {
+                if (allow(tl)) {
+                    allowed.add(tl);
+                } else {
+                    HIDDEN.add(tl);
+                    _numResults += 1;
+                }
+            } else {
+                _numResults += 1;
+            }
+        }
+
+        super.addAll(allowed, sort);
+    }
+
     /**
      * Intercepts to clear the hidden map.
      */